@@ -16,26 +16,35 @@
 
 package com.soomla.levelup;
 
-import android.text.TextUtils;
-
 import com.soomla.Soomla;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.data.GateStorage;
 import com.soomla.levelup.data.LevelStorage;
+import com.soomla.levelup.data.LUKeyValueStorage;
 import com.soomla.levelup.data.MissionStorage;
+import com.soomla.levelup.data.ModelCache;
+import com.soomla.levelup.data.ModelIndex;
+import com.soomla.levelup.data.ModelUpdate;
 import com.soomla.levelup.data.ScoreStorage;
+import com.soomla.levelup.data.StateExporter;
+import com.soomla.levelup.data.StateImport;
+import com.soomla.levelup.data.StateSnapshot;
+import com.soomla.levelup.data.StateTransaction;
 import com.soomla.levelup.data.WorldStorage;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.security.Key;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 /**
  * The top level container for the android-levelup model and definitions.
@@ -49,24 +58,113 @@ public class LevelUp {
     public static JSONObject getLevelUpState() {
         JSONObject stateJSON = new JSONObject();
 
-        JSONObject modelJSON = getLevelUpModel();
-        if (modelJSON == null) {
+        ModelIndex index = ModelCache.getIndex();
+        if (index == null) {
             return stateJSON;
         }
 
-        applyGatesStateToJSON(modelJSON, stateJSON);
-        applyWorldsStateToJSON(modelJSON, stateJSON);
-        applyMissionsStateToJSON(modelJSON, stateJSON);
-        applyScoresStateToJSON(modelJSON, stateJSON);
+        applyGatesStateToJSON(index, stateJSON);
+        applyWorldsStateToJSON(index, stateJSON);
+        applyMissionsStateToJSON(index, stateJSON);
+        applyScoresStateToJSON(index, stateJSON);
 
         return stateJSON;
     }
 
+    /**
+     * Writes the same JSON as <code>getLevelUpState().toString()</code> to
+     * the given writer, without building it in memory first (see
+     * <code>StateExporter</code>).
+     *
+     * @param writer the writer to write the state to, which is flushed but
+     *               not closed
+     * @throws IOException if the writer fails
+     */
+    public static void writeLevelUpState(Writer writer) throws IOException {
+        StateExporter.writeState(ModelCache.getIndex(), writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the same JSON as <code>getLevelUpState().toString()</code> to
+     * the given stream, in UTF-8.
+     *
+     * @param out the stream to write the state to, which is flushed but not
+     *            closed
+     * @throws IOException if the stream fails
+     */
+    public static void writeLevelUpState(OutputStream out) throws IOException {
+        writeLevelUpState(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+    }
+
+    /**
+     * Writes the state of the items changed since the given version to the
+     * given writer, in the same JSON as <code>getLevelUpState()</code>, with
+     * <code>"version"</code> set to the version to pass next time, and
+     * <code>"full"</code> set to <code>true</code> if all items were written
+     * because the changes since the given version aren't known (on a first
+     * export, after the state was reset, or if the app died before the
+     * versions were stored). See <code>StateExporter</code>.
+     *
+     * @param version the version returned by the last export, or 0 for all
+     *                items
+     * @param writer the writer to write the state to, which is flushed but
+     *               not closed
+     * @return the version to pass next time
+     * @throws IOException if the writer fails
+     */
+    public static long writeLevelUpStateSince(long version, Writer writer) throws IOException {
+        long next = StateExporter.writeChanges(ModelCache.getIndex(), version, writer);
+        writer.flush();
+        return next;
+    }
+
+    /**
+     * Fetches the state of the items changed since the given version, as
+     * written by {@link #writeLevelUpStateSince(long, Writer)}.
+     *
+     * @param version the version returned by the last export, or 0 for all
+     *                items
+     * @return the changed state, with the version to pass next time under
+     * <code>"version"</code>, or <code>null</code> if it couldn't be
+     * written
+     */
+    public static JSONObject getLevelUpStateSince(long version) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeLevelUpStateSince(version, writer);
+            return new JSONObject(writer.toString());
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to write the changed state: " + e.getLocalizedMessage());
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read the changed state: " + e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Takes a compact binary snapshot of the state, holding the same as
+     * <code>getLevelUpState()</code> in a fraction of its size, for uploading
+     * or backing it up (see <code>StateSnapshot</code>).
+     *
+     * @param deflate whether to compress the snapshot with deflate
+     * @return the snapshot
+     */
+    public static byte[] getLevelUpStateSnapshot(boolean deflate) {
+        return StateSnapshot.encode(ModelCache.getIndex(), deflate);
+    }
+
     public static boolean resetLevelUpState(JSONObject state) {
         if (state == null) {
             return false;
         }
 
+        int threads = LevelUpConfig.restoreThreads;
+        if (threads > 1 && !StateTransaction.isOpen()) {
+            SoomlaUtils.LogDebug(TAG, "Resetting state on " + threads + " threads");
+            return StateImport.applyInParallel(state, threads);
+        }
+
         SoomlaUtils.LogDebug(TAG, "Resetting state with: " + state.toString());
 
         clearCurrentState();
@@ -79,159 +177,182 @@ public class LevelUp {
                 resetScoresStateFromJSON(state);
     }
 
-    public static JSONObject getLevelUpModel() {
-        JSONObject modelJSON = null;
+    /**
+     * Replaces the state with the given one on a background thread, in a
+     * single batch, leaving the state as it was if the given state is
+     * invalid, or if the import fails or is cancelled before it's stored
+     * (see <code>StateImport</code>).
+     *
+     * @param state the state to import, as returned by
+     *              {@link #getLevelUpState()}
+     * @param listener the listener to report progress and the outcome to,
+     *                 on the import's thread, or <code>null</code>
+     * @return the running import, which can be cancelled
+     */
+    public static StateImport resetLevelUpStateAsync(JSONObject state, StateImport.Listener listener) {
+        return StateImport.start(state, listener);
+    }
 
-        String model = KeyValueStorage.getValue(DB_KEY_PREFIX + "model");
-        SoomlaUtils.LogDebug(TAG, "model: " + model);
-        if (model == null) {
-            return null;
+    /**
+     * Replaces the state with the one in the given snapshot, like
+     * {@link #resetLevelUpState(JSONObject)} does with the state the
+     * snapshot was taken of.
+     *
+     * @param snapshot a snapshot taken by {@link #getLevelUpStateSnapshot(boolean)}
+     * @return <code>true</code> if the state was replaced, <code>false</code>
+     * if the snapshot is invalid or the state couldn't be replaced
+     */
+    public static boolean resetLevelUpStateFromSnapshot(byte[] snapshot) {
+        if (snapshot == null) {
+            return false;
         }
 
+        JSONObject state;
         try {
-            modelJSON = new JSONObject(model);
-        } catch (JSONException e) {
-            SoomlaUtils.LogError(TAG, "Unable to parse LevelUp model into JSON");
+            state = StateSnapshot.decode(snapshot);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read the state snapshot: " + e.getLocalizedMessage());
+            return false;
         }
-
-        return modelJSON;
+        return resetLevelUpState(state);
     }
 
-    public static HashMap<String, JSONObject> getWorlds(JSONObject model) {
-        HashMap<String, JSONObject> worlds = new HashMap<String, JSONObject>();
-
-        try {
-            JSONObject mainWorld = model.getJSONObject("mainWorld");
-            addWorldObjectToWorlds(worlds, mainWorld);
-        } catch (JSONException e) {
-            SoomlaUtils.LogError(TAG, "couldn't get something from model. error: " + e.getLocalizedMessage());
-        }
-
-        return worlds;
+    /**
+     * Fetches the LevelUp model. The model is parsed on first use and cached
+     * until the stored model string changes (see <code>ModelCache</code>).
+     * LevelUp itself works with the model index, so prefer
+     * {@link #getLevelUpModelIndex()} where it's enough.
+     *
+     * @return the shared parsed model, which must not be modified, or
+     * <code>null</code> if there is no valid model
+     */
+    public static JSONObject getLevelUpModel() {
+        return ModelCache.getModel();
     }
 
-    public static HashMap<String, JSONObject> getMissions(JSONObject model) {
-        HashMap<String, JSONObject> missions = getListFromWorlds(model, "missions");
-        findInternalLists(missions, new String[]{ "Challenge" }, "missions");
-
-        return missions;
+    /**
+     * Fetches the index of the LevelUp model, which answers item type and
+     * hierarchy queries without walking the model.
+     *
+     * @return the index of the current model, or <code>null</code> if there
+     * is no valid model
+     */
+    public static ModelIndex getLevelUpModelIndex() {
+        return ModelCache.getIndex();
     }
 
-    public static HashMap<String, JSONObject> getGates(JSONObject model) {
-        HashMap<String, JSONObject> resultHash = new HashMap<String, JSONObject>();
-
-        HashMap<String, JSONObject> worldJSONs = getWorlds(model);
-
-        for (JSONObject worldJSON : worldJSONs.values()) {
-            JSONObject gateJSON = worldJSON.optJSONObject("gate");
-
-            if (gateJSON != null) {
-                String objectId = gateJSON.optString("itemId");
-                if (!TextUtils.isEmpty(objectId)) {
-                    resultHash.put(objectId, gateJSON);
-                }
-            }
-        }
-
-
-        HashMap<String, JSONObject> missionJSONs = getMissions(model);
-        for (JSONObject missionJSON : missionJSONs.values()) {
-            JSONObject gateJSON = missionJSON.optJSONObject("gate");
-
-            if (gateJSON != null) {
-                String objectId = gateJSON.optString("itemId");
-                if (!TextUtils.isEmpty(objectId)) {
-                    resultHash.put(objectId, gateJSON);
-                }
-            }
-        }
-
-        findInternalLists(resultHash, new String[] {"GatesListAND", "GatesListOR"}, "gates");
+    /**
+     * Replaces the LevelUp model with the given one, re-indexing only what
+     * changed. State stored for items that are no longer in the model is
+     * left in place, and its keys are reported by the returned update.
+     *
+     * @param model the new model string
+     * @return the update, or <code>null</code> if the new model couldn't be
+     * loaded
+     */
+    public static ModelUpdate updateLevelUpModel(String model) {
+        return ModelCache.update(model);
+    }
 
-        return resultHash;
+    /**
+     * Retrieves all worlds (including levels) in the given model.
+     *
+     * @param model the LevelUp model
+     * @return a new map of world id to world JSON
+     */
+    public static HashMap<String, JSONObject> getWorlds(JSONObject model) {
+        return new HashMap<String, JSONObject>(getWorldsView(model));
     }
 
-    public static HashMap<String, JSONObject> getScores(JSONObject model) {
-        return getListFromWorlds(model, "scores");
+    /**
+     * Same as {@link #getWorlds(JSONObject)}, without copying the map out of
+     * the model index.
+     *
+     * @param model the LevelUp model
+     * @return a read-only map of world id to world JSON
+     */
+    public static Map<String, JSONObject> getWorldsView(JSONObject model) {
+        return ModelCache.getIndex(model).getWorlds();
     }
 
-    private static void clearCurrentState() {
-        List<String> allKeys = KeyValueStorage.getEncryptedKeys();
-        for (String key : allKeys) {
-            if (key.startsWith(GateStorage.DB_GATE_KEY_PREFIX) ||
-                    key.startsWith(LevelStorage.DB_LEVEL_KEY_PREFIX) ||
-                    key.startsWith(MissionStorage.DB_MISSION_KEY_PREFIX) ||
-                    key.startsWith(ScoreStorage.DB_SCORE_KEY_PREFIX) ||
-                    key.startsWith(WorldStorage.DB_WORLD_KEY_PREFIX)) {
-                KeyValueStorage.deleteKeyValue(key);
-            }
-        }
+    /**
+     * Retrieves all missions in the given model, including missions nested
+     * in challenges.
+     *
+     * @param model the LevelUp model
+     * @return a new map of mission id to mission JSON
+     */
+    public static HashMap<String, JSONObject> getMissions(JSONObject model) {
+        return new HashMap<String, JSONObject>(getMissionsView(model));
     }
 
-    private static void addWorldObjectToWorlds(HashMap<String, JSONObject> worlds, JSONObject worldJSON) throws JSONException {
-        String worldId = worldJSON.getString("itemId");
-        worlds.put(worldId, worldJSON);
+    /**
+     * Same as {@link #getMissions(JSONObject)}, without copying the map out of
+     * the model index.
+     *
+     * @param model the LevelUp model
+     * @return a read-only map of mission id to mission JSON
+     */
+    public static Map<String, JSONObject> getMissionsView(JSONObject model) {
+        return ModelCache.getIndex(model).getMissions();
+    }
 
-        JSONArray worldsArr = worldJSON.getJSONArray("worlds");
-        for (int i=0; i<worldsArr.length(); i++) {
-            JSONObject innerWorldJSON = worldsArr.getJSONObject(i);
-            addWorldObjectToWorlds(worlds, innerWorldJSON);
-        }
+    /**
+     * Retrieves all gates in the given model, including gates nested in
+     * gate lists.
+     *
+     * @param model the LevelUp model
+     * @return a new map of gate id to gate JSON
+     */
+    public static HashMap<String, JSONObject> getGates(JSONObject model) {
+        return new HashMap<String, JSONObject>(getGatesView(model));
     }
 
-    private static HashMap<String, JSONObject> getListFromWorlds(JSONObject model, String listName) {
-        HashMap<String, JSONObject> resultHash = new HashMap<String, JSONObject>();
-
-        HashMap<String, JSONObject> worldJSONs = getWorlds(model);
-
-        for (JSONObject worldJSON : worldJSONs.values()) {
-            JSONArray objectJSONs = worldJSON.optJSONArray(listName);
-            if (objectJSONs != null) {
-                for (int i = 0; i < objectJSONs.length(); i++) {
-                    JSONObject objectJSON = objectJSONs.optJSONObject(i);
-                    if (objectJSON != null) {
-                        String objectId = objectJSON.optString("itemId");
-                        if (!TextUtils.isEmpty(objectId)) {
-                            resultHash.put(objectId, objectJSON);
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Same as {@link #getGates(JSONObject)}, without copying the map out of
+     * the model index.
+     *
+     * @param model the LevelUp model
+     * @return a read-only map of gate id to gate JSON
+     */
+    public static Map<String, JSONObject> getGatesView(JSONObject model) {
+        return ModelCache.getIndex(model).getGates();
+    }
 
-        return resultHash;
+    /**
+     * Retrieves all scores in the given model.
+     *
+     * @param model the LevelUp model
+     * @return a new map of score id to score JSON
+     */
+    public static HashMap<String, JSONObject> getScores(JSONObject model) {
+        return new HashMap<String, JSONObject>(getScoresView(model));
     }
 
-    private static void findInternalLists(HashMap<String, JSONObject> objects, String[] listClasses, String listName) {
-        try {
-            List<String> classes = Arrays.asList(listClasses);
-            for (JSONObject objectJSON : objects.values()) {
-                findInternalLists(objects, classes, listName, objectJSON);
-            }
-        } catch (JSONException e) {
-            SoomlaUtils.LogError(TAG, "couldn't get internal lists for " + listName + ". error: " + e.getLocalizedMessage());
-        }
+    /**
+     * Same as {@link #getScores(JSONObject)}, without copying the map out of
+     * the model index.
+     *
+     * @param model the LevelUp model
+     * @return a read-only map of score id to score JSON
+     */
+    public static Map<String, JSONObject> getScoresView(JSONObject model) {
+        return ModelCache.getIndex(model).getScores();
     }
 
-    private static void findInternalLists(HashMap<String, JSONObject> objects, List<String> listClasses, String listName, JSONObject checkJSON) throws JSONException {
-        if (listClasses.contains(checkJSON.optString("className"))) {
-            JSONArray internalList = checkJSON.getJSONArray(listName);
-            for (int i = 0; i < internalList.length(); i++) {
-                JSONObject targetObject = internalList.getJSONObject(i);
-                String itemId = targetObject.getString("itemId");
-                objects.put(itemId, targetObject);
-                findInternalLists(objects, listClasses, listName, targetObject);
-            }
-        }
+    private static void clearCurrentState() {
+        LUKeyValueStorage.deleteAll(GateStorage.DB_GATE_KEY_PREFIX,
+                LevelStorage.DB_LEVEL_KEY_PREFIX,
+                MissionStorage.DB_MISSION_KEY_PREFIX,
+                ScoreStorage.DB_SCORE_KEY_PREFIX,
+                WorldStorage.DB_WORLD_KEY_PREFIX);
     }
 
-    private static void applyGatesStateToJSON(JSONObject modelJSON, JSONObject stateJSON) {
+    private static void applyGatesStateToJSON(ModelIndex index, JSONObject stateJSON) {
         JSONObject gatesStateJSON = new JSONObject();
-        HashMap<String, JSONObject> gates = getGates(modelJSON);
-        for (JSONObject gateJSON : gates.values()) {
+        for (String gateId : index.getGateIds()) {
             JSONObject gateValuesJSON = new JSONObject();
             try {
-                String gateId = gateJSON.getString("itemId");
                 gateValuesJSON.put("open", GateStorage.isOpen(gateId));
 
                 gatesStateJSON.put(gateId, gateValuesJSON);
@@ -248,22 +369,20 @@ public class LevelUp {
         }
     }
 
-    private static void applyWorldsStateToJSON(JSONObject modelJSON, JSONObject stateJSON) {
+    private static void applyWorldsStateToJSON(ModelIndex index, JSONObject stateJSON) {
         JSONObject worldsStateJSON = new JSONObject();
         JSONObject levelsStateJSON = new JSONObject();
 
-        HashMap<String, JSONObject> worlds = getWorlds(modelJSON);
-        for (JSONObject worldJSON : worlds.values()) {
+        for (String worldId : index.getWorldIds()) {
             JSONObject worldValuesJSON = new JSONObject();
             try {
-                String worldId = worldJSON.getString("itemId");
                 worldValuesJSON.put("completed", WorldStorage.isCompleted(worldId));
                 worldValuesJSON.put("assignedReward", WorldStorage.getAssignedReward(worldId));
                 worldValuesJSON.put("lastCompletedInnerWorld", WorldStorage.getLastCompletedInnerWorld(worldId));
 
                 worldsStateJSON.put(worldId, worldValuesJSON);
 
-                if (worldJSON.getString("className").equals("Level")) {
+                if (index.isLevel(worldId)) {
                     JSONObject levelValuesJSON = new JSONObject();
                     levelValuesJSON.put("started", LevelStorage.getTimesStarted(worldId));
                     levelValuesJSON.put("played", LevelStorage.getTimesPlayed(worldId));
@@ -287,13 +406,11 @@ public class LevelUp {
         }
     }
 
-    private static void applyMissionsStateToJSON(JSONObject modelJSON, JSONObject stateJSON) {
+    private static void applyMissionsStateToJSON(ModelIndex index, JSONObject stateJSON) {
         JSONObject missionsStateJSON = new JSONObject();
-        HashMap<String, JSONObject> missions = getMissions(modelJSON);
-        for (JSONObject missionJSON : missions.values()) {
+        for (String missionId : index.getMissionIds()) {
             JSONObject missionValuesJSON = new JSONObject();
             try {
-                String missionId = missionJSON.getString("itemId");
                 missionValuesJSON.put("timesCompleted", MissionStorage.getTimesCompleted(missionId));
 
                 missionsStateJSON.put(missionId, missionValuesJSON);
@@ -310,13 +427,11 @@ public class LevelUp {
         }
     }
 
-    private static void applyScoresStateToJSON(JSONObject modelJSON, JSONObject stateJSON) {
+    private static void applyScoresStateToJSON(ModelIndex index, JSONObject stateJSON) {
         JSONObject scoresStateJSON = new JSONObject();
-        HashMap<String, JSONObject> scores = getScores(modelJSON);
-        for (JSONObject scoreJSON : scores.values()) {
+        for (String scoreId : index.getScoreIds()) {
             JSONObject scoreValuesJSON = new JSONObject();
             try {
-                String scoreId = scoreJSON.getString("itemId");
                 scoreValuesJSON.put("latest", ScoreStorage.getLatestScore(scoreId));
                 scoreValuesJSON.put("record", ScoreStorage.getRecordScore(scoreId));
 
@@ -475,12 +590,12 @@ public class LevelUp {
             public boolean applyState(String itemId, JSONObject itemValuesJSON) {
                 try {
                     if (itemValuesJSON.has("latest")) {
-                        double latestScore = itemValuesJSON.getInt("latest");
+                        double latestScore = itemValuesJSON.getDouble("latest");
                         ScoreStorage.setLatestScore(itemId, latestScore, false);
                     }
 
                     if (itemValuesJSON.has("record")) {
-                        double recordScore = itemValuesJSON.getInt("record");
+                        double recordScore = itemValuesJSON.getDouble("record");
                         ScoreStorage.setRecordScore(itemId, recordScore, false);
                     }
                 } catch (JSONException e) {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup;
+
+import com.soomla.levelup.data.StateStorage;
+
+/**
+ * This class holds the android-levelup configuration.
+ * Set these before <code>WorldStorage.initLevelUp()</code> is called.
+ */
+public class LevelUpConfig {
+
+    /**
+     * When <code>true</code>, the model is indexed lazily: a world's
+     * subtree (inner worlds, missions, scores and gate) is only indexed the
+     * first time something in it is looked up. Memory and startup then scale
+     * with the part of the game that was actually played, at the price of
+     * keeping the model text in memory. Whole-model operations such as
+     * <code>LevelUp.getLevelUpState()</code> index everything.
+     */
+    public static boolean lazyModelLoading = false;
+
+    /**
+     * The most memory, in bytes, the in-memory mirror of LevelUp state may
+     * take (see <code>LUKeyValueStorage</code>). The least recently used
+     * keys are evicted beyond it, and 0 turns the mirror off.
+     */
+    public static long stateMirrorMaxBytes = 512 * 1024;
+
+    /**
+     * When <code>true</code>, state writes are kept in an in-memory journal
+     * and written to <code>KeyValueStorage</code> in batches on a
+     * background thread, instead of on the calling (usually the game)
+     * thread. Pending writes are flushed a while after the first one, when a
+     * level ends, when the app goes to the background, and on
+     * <code>LUKeyValueStorage.flush()</code>. A crash may lose the writes of
+     * the last <code>writeBehindDelayMillis</code>.
+     */
+    public static boolean writeBehind = false;
+
+    /**
+     * How long, in milliseconds, a write may stay in the journal before it's
+     * flushed, in write-behind mode.
+     */
+    public static long writeBehindDelayMillis = 2000;
+
+    /**
+     * When <code>true</code>, all the state of a level or world is stored as
+     * one record, instead of under a key per field, so it's read with a
+     * single lookup. State stored in the other layout is migrated when
+     * LevelUp is initialized.
+     */
+    public static boolean packedStateRecords = false;
+
+    /**
+     * When <code>true</code>, counters, durations and scores are stored in a
+     * compact binary form (see <code>NumberCodec</code>) instead of as
+     * decimal strings, which takes less space for large numbers and
+     * fractional scores. Numbers stored in the other form are migrated when
+     * LevelUp is initialized.
+     */
+    public static boolean binaryNumbers = false;
+
+    /**
+     * When <code>true</code>, state changes are appended to a log file
+     * instead of overwriting keys in <code>KeyValueStorage</code>, which
+     * then holds a snapshot that the log is compacted into from time to
+     * time. The log is replayed when LevelUp is initialized.
+     */
+    public static boolean stateLog = false;
+
+    /**
+     * The size, in bytes, beyond which the state log is compacted.
+     */
+    public static long stateLogMaxBytes = 256 * 1024;
+
+    /**
+     * When <code>true</code>, the counters, durations, scores and gate flags
+     * of model items are kept in a memory-mapped file, addressed by item
+     * handle, instead of in <code>KeyValueStorage</code>. Reading or writing
+     * them is then a memory access. State is copied into the file the first
+     * time, and back to <code>KeyValueStorage</code> when this is turned
+     * off, when LevelUp is initialized.
+     */
+    public static boolean mappedState = false;
+
+    /**
+     * The storage LevelUp keeps its model and state in, or <code>null</code>
+     * for SOOMLA's <code>KeyValueStorage</code>. It's picked when LevelUp is
+     * first initialized and can't be changed afterwards, and state isn't
+     * copied between storages (see <code>StateStorage</code>).
+     */
+    public static StateStorage stateStorage = null;
+
+    /**
+     * How many threads <code>LevelUp.resetLevelUpState()</code> applies the
+     * state on. With more than one, the state is checked first, and its
+     * categories (and ranges of items in large ones) are applied in
+     * parallel and stored in one batch, so an invalid state or a failure
+     * leaves the state as it was (see <code>StateImport</code>).
+     */
+    public static int restoreThreads = 1;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A <code>StateStorage</code> kept in memory and backed by a file of its
+ * own, in the format of a <code>StateLog</code>: every write is appended to
+ * the file, and a {@link #setValues(Map)} call is appended as one record,
+ * so it's stored entirely or not at all. The file is read when the storage
+ * is created, and rewritten with just the current values once it has grown
+ * to more than twice their size.
+ *
+ * Writes return once they're on disk.
+ */
+public class FileStateStorage extends MemoryStateStorage {
+
+    /**
+     * Creates a storage backed by the given file, and reads the file if it
+     * exists.
+     *
+     * @param file the file to store keys and values in
+     * @throws IOException if the file couldn't be read
+     */
+    public FileStateStorage(File file) throws IOException {
+        mFile = file;
+        mLog = new StateLog(file);
+        super.setValues(mLog.read());
+        mCompactedLength = file.length();
+    }
+
+    @Override
+    public synchronized void setValue(String key, String value) {
+        append(Collections.singletonMap(key, value));
+        super.setValue(key, value);
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void deleteKeyValue(String key) {
+        append(Collections.<String, String>singletonMap(key, null));
+        super.deleteKeyValue(key);
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void setValues(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        append(values);
+        super.setValues(values);
+        compactIfNeeded();
+    }
+
+    /**
+     * Closes the file. The storage mustn't be written to afterwards.
+     */
+    public synchronized void close() {
+        mLog.close();
+    }
+
+    private void append(Map<String, String> values) {
+        try {
+            mLog.append(values);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't write to " + mFile.getName(), e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mLog.length() > Math.max(2 * mCompactedLength, MIN_COMPACT_LENGTH)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the values are in the old file, which is only longer than it needs to be
+                SoomlaUtils.LogError(TAG, "Couldn't compact " + mFile.getName() + ": " + e.getMessage());
+                mCompactedLength = mLog.length();
+            }
+        }
+    }
+
+    /**
+     * Writes the current values to a new file, which then replaces the old
+     * one, so a crash leaves either file whole.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + TMP_POSTFIX);
+        if (tmp.exists() && !tmp.delete()) {
+            throw new IOException("Unable to delete " + tmp.getName());
+        }
+
+        StateLog log = new StateLog(tmp);
+        try {
+            log.append(getAll());
+        } finally {
+            log.close();
+        }
+
+        mLog.close();
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile.getName());
+        }
+        mCompactedLength = mFile.length();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA FileStateStorage";
+
+    private static final String TMP_POSTFIX = ".tmp";
+
+    // small files aren't worth rewriting
+    private static final long MIN_COMPACT_LENGTH = 64 * 1024;
+
+    private final File mFile;
+    private final StateLog mLog;
+    private long mCompactedLength;
+}
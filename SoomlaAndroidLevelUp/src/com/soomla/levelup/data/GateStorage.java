@@ -18,8 +18,6 @@ package com.soomla.levelup.data;
 
 import android.text.TextUtils;
 
-import com.soomla.BusProvider;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.LevelUp;
 import com.soomla.levelup.events.GateClosedEvent;
 import com.soomla.levelup.events.GateOpenedEvent;
@@ -41,6 +39,13 @@ public class GateStorage {
         return keyGates(gateId, "open");
     }
 
+    /**
+     * Retrieves all the keys the state of the given gate may be stored under.
+     */
+    static String[] stateKeys(String gateId) {
+        return new String[] { keyGateOpen(gateId) };
+    }
+
     /**
      * Opens or closes the given gate.
      *
@@ -53,20 +58,50 @@ public class GateStorage {
     }
 
     public static void setOpen(String gateId, boolean open, boolean notify) {
-        String key = keyGateOpen(gateId);
+        int gateHandle = ItemKeys.getHandle(gateId);
+        if (gateHandle != ModelIndex.NO_HANDLE) {
+            setOpen(gateHandle, open, notify);
+            return;
+        }
+        setOpen(gateId, keyGateOpen(gateId), open, notify);
+    }
 
-        if (open) {
-            KeyValueStorage.setValue(key, "yes");
+    /**
+     * Opens or closes the gate with the given handle.
+     *
+     * @param gateHandle the handle of the gate in the model index
+     * @param open the status (<code>true</code> for open,
+     *             <code>false</code> for closed)
+     */
+    public static void setOpen(int gateHandle, boolean open) {
+        setOpen(gateHandle, open, true);
+    }
+
+    public static void setOpen(int gateHandle, boolean open, boolean notify) {
+        OPEN.setFlag(gateHandle, open);
+
+        if (notify) {
+            postOpen(KEYS.getItemId(gateHandle), open);
+        }
+    }
 
-            if (notify) {
-                BusProvider.getInstance().post(new GateOpenedEvent(gateId));
-            }
+    private static void setOpen(String gateId, String key, boolean open, boolean notify) {
+        if (open) {
+            LUKeyValueStorage.setValue(key, "yes");
         } else {
-            KeyValueStorage.deleteKeyValue(key);
+            LUKeyValueStorage.deleteKeyValue(key);
+        }
+
+        if (notify) {
+            postOpen(gateId, open);
+        }
+    }
 
-            if (notify) {
-                BusProvider.getInstance().post(new GateClosedEvent(gateId));
-            }
+    private static void postOpen(String gateId, boolean open) {
+        if (open) {
+            StateTransaction.post(new GateOpenedEvent(gateId));
+        } else {
+            StateTransaction.post(new GateClosedEvent(gateId));
         }
     }
 
@@ -77,10 +112,29 @@ public class GateStorage {
      * @return <code>true</code> if open, <code>false</code> otherwise
      */
     public static boolean isOpen(String gateId) {
-        String key = keyGateOpen(gateId);
-        String val = KeyValueStorage.getValue(key);
+        int gateHandle = ItemKeys.getHandle(gateId);
+        if (gateHandle != ModelIndex.NO_HANDLE) {
+            return isOpen(gateHandle);
+        }
+        return isOpenForKey(keyGateOpen(gateId));
+    }
+
+    /**
+     * Checks if the gate with the given handle is open.
+     *
+     * @param gateHandle the handle of the gate in the model index
+     * @return <code>true</code> if open, <code>false</code> otherwise
+     */
+    public static boolean isOpen(int gateHandle) {
+        return OPEN.getFlag(gateHandle);
+    }
+
+    private static boolean isOpenForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
         return !TextUtils.isEmpty(val);
     }
 
     public static final String DB_GATE_KEY_PREFIX = LevelUp.DB_KEY_PREFIX + "gates.";
+    private static final ItemKeys KEYS = new ItemKeys(DB_GATE_KEY_PREFIX, "open");
+    private static final StateColumn OPEN = StateColumn.ofFlag(KEYS, 0);
 }
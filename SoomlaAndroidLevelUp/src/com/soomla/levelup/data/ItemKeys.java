@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+/**
+ * Caches the storage keys of model items by their handle in the current
+ * model index, so storage calls made with a handle don't build key strings.
+ * Each storage class keeps one of these for its namespace.
+ *
+ * The cache is dropped whenever the model index is replaced. Filling it
+ * isn't synchronized: two threads may build the same key, which is harmless
+ * since keys are immutable strings.
+ */
+class ItemKeys {
+
+    /**
+     * Constructor
+     *
+     * @param prefix the namespace of the keys
+     * @param postfixes the postfixes of the keys of a single item
+     */
+    ItemKeys(String prefix, String... postfixes) {
+        mPrefix = prefix;
+        mPostfixes = postfixes;
+    }
+
+    String getPrefix() {
+        return mPrefix;
+    }
+
+    String[] getPostfixes() {
+        return mPostfixes;
+    }
+
+    /**
+     * Retrieves the handle of the given item in the current model.
+     *
+     * @param itemId the id of the item
+     * @return the item's handle, or <code>ModelIndex.NO_HANDLE</code> if
+     * there is no model or the item is not in it
+     */
+    static int getHandle(String itemId) {
+        ModelIndex index = ModelCache.getIndex();
+        return index != null ? index.getHandle(itemId) : ModelIndex.NO_HANDLE;
+    }
+
+    /**
+     * Retrieves the id of the item with the given handle.
+     *
+     * @param handle the handle of the item
+     * @return the id of the item
+     * @throws IllegalArgumentException if there is no item with the given
+     * handle in the current model
+     */
+    String getItemId(int handle) {
+        return getTable(handle).index.getItemId(handle);
+    }
+
+    /**
+     * Retrieves a storage key of the item with the given handle.
+     *
+     * @param handle the handle of the item
+     * @param postfix the offset of the key's postfix, as given to the
+     *                constructor
+     * @return the storage key
+     * @throws IllegalArgumentException if there is no item with the given
+     * handle in the current model
+     */
+    String get(int handle, int postfix) {
+        Table table = getTable(handle);
+        String[] keys = table.keys[handle];
+        if (keys == null) {
+            String itemId = table.index.getItemId(handle);
+            keys = new String[mPostfixes.length];
+            for (int i = 0; i < mPostfixes.length; i++) {
+                keys[i] = mPrefix + itemId + "." + mPostfixes[i];
+            }
+            table.keys[handle] = keys;
+        }
+        return keys[postfix];
+    }
+
+    private Table getTable(int handle) {
+        ModelIndex index = ModelCache.getIndex();
+        if (index == null || index.getItemId(handle) == null) {
+            throw new IllegalArgumentException("No model item with handle " + handle);
+        }
+
+        Table table = mTable;
+        if (table == null || table.index != index || handle >= table.keys.length) {
+            // a lazily loaded index may have given out more handles since
+            table = new Table(index, table != null && table.index == index ? table.keys : null);
+            mTable = table;
+        }
+        return table;
+    }
+
+    private static class Table {
+
+        Table(ModelIndex index, String[][] oldKeys) {
+            this.index = index;
+            keys = new String[index.getHandleCount()][];
+            if (oldKeys != null) {
+                System.arraycopy(oldKeys, 0, keys, 0, Math.min(oldKeys.length, keys.length));
+            }
+        }
+
+        final ModelIndex index;
+        final String[][] keys;
+    }
+
+    private final String mPrefix;
+    private final String[] mPostfixes;
+    private volatile Table mTable;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+/**
+ * Striped locks for read-modify-write updates of state keys that have no
+ * <code>StateColumn</code> slot, such as those of items that aren't in the
+ * model. Updates of the same key always take the same lock.
+ */
+class KeyLocks {
+
+    static Object forKey(String key) {
+        return LOCKS[stripeOf(key)];
+    }
+
+    static int stripeOf(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (STRIPES - 1);
+    }
+
+    static Object forStripe(int stripe) {
+        return LOCKS[stripe];
+    }
+
+    // a power of two
+    static final int STRIPES = 16;
+
+    private static final Object[] LOCKS = new Object[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+}
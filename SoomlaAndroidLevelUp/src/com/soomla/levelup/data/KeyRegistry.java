@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.text.TextUtils;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.levelup.LevelUp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of keys LevelUp stored state under, kept in storage next to the
+ * state, so LevelUp's keys can be found without listing (and decrypting)
+ * every key of the app.
+ *
+ * The list is stored in chunks of {@link #CHUNK_SIZE} keys under
+ * <code>soomla.levelup.keys.&lt;n&gt;</code>, with the number of chunks under
+ * <code>soomla.levelup.keys</code>, so registering a key only rewrites the
+ * last chunk. Keys stay listed when they're deleted one by one, so the list
+ * may hold keys that no longer exist, but never misses one. On installs from
+ * before the list, it's built once by listing the storage's LevelUp keys.
+ *
+ * Not thread safe, <code>LUKeyValueStorage</code> guards it.
+ */
+class KeyRegistry {
+
+    KeyRegistry(StateStorage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * Registers the given key.
+     *
+     * @param key the key state is about to be stored under
+     * @return the registry keys and values to store before the key, empty
+     * if the key was already registered or isn't a state key
+     */
+    Map<String, String> add(String key) {
+        if (!isStateKey(key)) {
+            return Collections.emptyMap();
+        }
+
+        load();
+        if (!mKeySet.add(key)) {
+            return Collections.emptyMap();
+        }
+
+        mKeys.add(key);
+        Map<String, String> writes = new LinkedHashMap<String, String>();
+        int chunk = (mKeys.size() - 1) / CHUNK_SIZE;
+        if (chunk * CHUNK_SIZE == mKeys.size() - 1) {
+            writes.put(DB_REGISTRY_KEY, String.valueOf(chunk + 1));
+        }
+        writes.put(chunkKey(chunk), joinChunk(chunk));
+        return writes;
+    }
+
+    /**
+     * Retrieves the registered keys that start with any of the given prefixes.
+     *
+     * @param prefixes the key prefixes
+     * @return the matching keys
+     */
+    List<String> getKeys(String... prefixes) {
+        load();
+        List<String> keys = new ArrayList<String>();
+        for (String key : mKeys) {
+            for (String prefix : prefixes) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                    break;
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Unregisters the given keys, once they were deleted.
+     *
+     * @param keys the deleted keys
+     * @return the registry keys to store, and to delete (mapped to
+     * <code>null</code>)
+     */
+    Map<String, String> removeAll(Collection<String> keys) {
+        load();
+        int oldChunks = chunkCount(mKeys.size());
+        // not removeAll(), which goes through the keys with contains() when
+        // there are as many of them as registered keys
+        for (String key : keys) {
+            mKeySet.remove(key);
+        }
+        mKeys.retainAll(mKeySet);
+
+        Map<String, String> writes = new LinkedHashMap<String, String>();
+        int chunks = chunkCount(mKeys.size());
+        writes.put(DB_REGISTRY_KEY, String.valueOf(chunks));
+        for (int chunk = 0; chunk < oldChunks; chunk++) {
+            writes.put(chunkKey(chunk), chunk < chunks ? joinChunk(chunk) : null);
+        }
+        return writes;
+    }
+
+    private void load() {
+        if (mKeys != null) {
+            return;
+        }
+
+        mKeys = new ArrayList<String>();
+        mKeySet = new HashSet<String>();
+
+        String chunks = mStorage.getValue(DB_REGISTRY_KEY);
+        if (TextUtils.isEmpty(chunks)) {
+            build();
+            return;
+        }
+
+        List<String> chunkKeys = new ArrayList<String>();
+        for (int chunk = 0; chunk < Integer.parseInt(chunks); chunk++) {
+            chunkKeys.add(chunkKey(chunk));
+        }
+        Map<String, String> values = mStorage.getValues(chunkKeys);
+        for (String chunkKey : chunkKeys) {
+            String keys = values.get(chunkKey);
+            if (!TextUtils.isEmpty(keys)) {
+                for (String key : keys.split(SEPARATOR)) {
+                    if (mKeySet.add(key)) {
+                        mKeys.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists LevelUp's keys the slow way, once, and stores the list.
+     */
+    private void build() {
+        SoomlaUtils.LogDebug(TAG, "Building the list of LevelUp keys");
+
+        for (String key : mStorage.getKeys(LevelUp.DB_KEY_PREFIX)) {
+            if (isStateKey(key) && mKeySet.add(key)) {
+                mKeys.add(key);
+            }
+        }
+
+        Map<String, String> writes = new LinkedHashMap<String, String>();
+        int chunks = chunkCount(mKeys.size());
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            writes.put(chunkKey(chunk), joinChunk(chunk));
+        }
+        writes.put(DB_REGISTRY_KEY, String.valueOf(chunks));
+        mStorage.setValues(writes);
+    }
+
+    private String joinChunk(int chunk) {
+        int end = Math.min(mKeys.size(), (chunk + 1) * CHUNK_SIZE);
+        return TextUtils.join(SEPARATOR, mKeys.subList(chunk * CHUNK_SIZE, end));
+    }
+
+    /**
+     * Checks if the given key is one state is stored under, in the namespace
+     * of one of the storage classes.
+     */
+    static boolean isStateKey(String key) {
+        for (String prefix : STATE_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int chunkCount(int keys) {
+        return (keys + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private static String chunkKey(int chunk) {
+        return DB_REGISTRY_KEY + "." + chunk;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA KeyRegistry";
+
+    private static final String DB_REGISTRY_KEY = LevelUp.DB_KEY_PREFIX + "keys";
+
+    private static final List<String> STATE_PREFIXES = Arrays.asList(
+            GateStorage.DB_GATE_KEY_PREFIX, LevelStorage.DB_LEVEL_KEY_PREFIX, MissionStorage.DB_MISSION_KEY_PREFIX,
+            ScoreStorage.DB_SCORE_KEY_PREFIX, WorldStorage.DB_WORLD_KEY_PREFIX);
+
+    private static final String SEPARATOR = "\n";
+
+    private static final int CHUNK_SIZE = 256;
+
+    private final StateStorage mStorage;
+    private List<String> mKeys;
+    private HashSet<String> mKeySet;
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.data.KeyValueStorage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default <code>StateStorage</code>, SOOMLA's encrypted
+ * <code>KeyValueStorage</code>. It has no bulk calls, so bulk reads and
+ * writes go key by key, and listing keys decrypts all the app's keys.
+ */
+public final class KeyValueStateStorage implements StateStorage {
+
+    @Override
+    public String getValue(String key) {
+        return KeyValueStorage.getValue(key);
+    }
+
+    @Override
+    public void setValue(String key, String value) {
+        KeyValueStorage.setValue(key, value);
+    }
+
+    @Override
+    public void deleteKeyValue(String key) {
+        KeyValueStorage.deleteKeyValue(key);
+    }
+
+    @Override
+    public Map<String, String> getValues(Collection<String> keys) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = KeyValueStorage.getValue(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void setValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                KeyValueStorage.setValue(entry.getKey(), entry.getValue());
+            } else {
+                KeyValueStorage.deleteKeyValue(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public List<String> getKeys(String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : KeyValueStorage.getEncryptedKeys()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,1104 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.content.Context;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import com.soomla.events.AppToBackgroundEvent;
+import com.soomla.levelup.LevelUp;
+import com.soomla.levelup.LevelUpConfig;
+import com.squareup.otto.Subscribe;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The storage the LevelUp storage classes read and write state through.
+ * It has the same calls as <code>KeyValueStorage</code>, and keeps a
+ * read-through mirror of the <code>soomla.levelup.*</code> namespace in
+ * memory, so repeated reads skip the encrypted database.
+ *
+ * The mirror is filled lazily on reads (missing keys are remembered too),
+ * or in bulk by {@link #preload()}, and is kept coherent by writes and
+ * deletes going through this class. It's bounded by
+ * <code>LevelUpConfig.stateMirrorMaxBytes</code> and evicts the least
+ * recently used keys beyond that. Anything that changes LevelUp keys in
+ * <code>KeyValueStorage</code> directly must call {@link #clearMirror()}.
+ *
+ * With <code>LevelUpConfig.writeBehind</code> on, writes and deletes of
+ * LevelUp keys only go into an in-memory journal, which is written to
+ * <code>KeyValueStorage</code> on a background thread: a while after the
+ * first pending write, when a level ends, or when {@link #flush()} is
+ * called. The journal is also flushed, on the spot, when the app goes to
+ * the background. Reads see pending writes.
+ *
+ * A flush of more than one key first stores the whole batch under a single
+ * journal key, and deletes it once every key was written. If the app dies
+ * half way, the batch is written again when LevelUp is next initialized, so
+ * a batch (such as a committed <code>StateTransaction</code>) is stored
+ * either entirely or not at all.
+ *
+ * The keys state is stored under are listed in a <code>KeyRegistry</code>,
+ * which {@link #deleteAll(String...)} goes by.
+ *
+ * In the packed layout (see <code>RecordLayout</code>), level and world
+ * field keys are read from and written to the record of their item, which
+ * is what's pending, mirrored and stored.
+ *
+ * Everything is stored in the <code>StateStorage</code> set in
+ * <code>LevelUpConfig.stateStorage</code>, which is picked when LevelUp is
+ * first initialized, and which <code>KeyValueStorage</code> stands for here
+ * (it's the default).
+ *
+ * With <code>LevelUpConfig.stateLog</code> on, state is stored by appending
+ * every batch to a <code>StateLog</code> file rather than by overwriting its
+ * keys in <code>KeyValueStorage</code>, which then holds a snapshot that's
+ * only brought up to date when the log is compacted. What was logged since
+ * is kept in memory, and read before the snapshot.
+ *
+ * Every state write marks its item as changed in <code>StateVersions</code>,
+ * for exporting just the changes.
+ */
+public class LUKeyValueStorage {
+
+    /**
+     * Picks the storage set in <code>LevelUpConfig.stateStorage</code>, the
+     * first time, finishes writing a batch that was cut short, replays the state log (see
+     * <code>LevelUpConfig.stateLog</code>), migrates the state to the
+     * layout set in <code>LevelUpConfig.packedStateRecords</code> and the
+     * number encoding set in <code>LevelUpConfig.binaryNumbers</code>, opens
+     * (or moves out of) the mapped state file of
+     * <code>LevelUpConfig.mappedState</code>, hooks
+     * the journal up to the app's lifecycle, so pending writes are flushed
+     * when the app goes to the background. Called when LevelUp is
+     * initialized.
+     */
+    public static void init() {
+        selectStorage();
+        recover();
+        openLog();
+        migrateLayout();
+        migrateNumbers();
+        openMappedState();
+        StateVersions.load();
+
+        synchronized (LOCK) {
+            if (mPauseListener != null) {
+                return;
+            }
+            mPauseListener = new PauseListener();
+        }
+        BusProvider.getInstance().register(mPauseListener);
+    }
+
+    /**
+     * Retrieves the value of the given key, from the journal or the mirror
+     * if it's there.
+     *
+     * @param key the key to look up
+     * @return the key's value, or <code>null</code> if it has none
+     */
+    public static String getValue(String key) {
+        StateTransaction transaction = StateTransaction.current();
+        if (transaction != null && transaction.hasWrite(key)) {
+            return transaction.getWrite(key);
+        }
+
+        RecordLayout.Field field = RecordLayout.getField(key);
+        if (field != null) {
+            return RecordLayout.get(getValue(field.recordKey), field.index);
+        }
+
+        if (!isMirrored(key)) {
+            return mStorage.getValue(key);
+        }
+
+        long writeCount;
+        synchronized (LOCK) {
+            if (mPending.containsKey(key)) {
+                mHits++;
+                return mPending.get(key);
+            }
+            if (mFlushing != null && mFlushing.containsKey(key)) {
+                mHits++;
+                return mFlushing.get(key);
+            }
+            Entry entry = mMirror.get(key);
+            if (entry != null) {
+                mHits++;
+                return entry.value;
+            }
+            if (mLogged.containsKey(key)) {
+                mHits++;
+                String value = mLogged.get(key);
+                put(key, value);
+                return value;
+            }
+            mMisses++;
+            writeCount = mWriteCount;
+        }
+
+        String value = mStorage.getValue(key);
+        synchronized (LOCK) {
+            // a write that raced with the read wins
+            if (writeCount == mWriteCount) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Sets the value of the given key, in both the mirror and
+     * <code>KeyValueStorage</code> (or the journal, in write-behind mode).
+     *
+     * @param key the key to set
+     * @param value the new value
+     */
+    public static void setValue(String key, String value) {
+        write(key, value);
+    }
+
+    /**
+     * Deletes the given key, from both the mirror and
+     * <code>KeyValueStorage</code> (or through the journal, in write-behind
+     * mode).
+     *
+     * @param key the key to delete
+     */
+    public static void deleteKeyValue(String key) {
+        write(key, null);
+    }
+
+    /**
+     * Writes all pending writes to <code>KeyValueStorage</code> (or the state
+     * log) on the calling thread, and returns once they're stored. Waits for a flush
+     * that's already running on the background thread.
+     */
+    public static void flush() {
+        synchronized (WRITE_LOCK) {
+            Map<String, String> batch;
+            synchronized (LOCK) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = mPending;
+                mFlushing = batch;
+                mPending = new LinkedHashMap<String, String>();
+            }
+
+            int written = 0;
+            try {
+                if (mLog != null) {
+                    // one record, so it's logged entirely or not at all
+                    log(batch);
+                    written = batch.size();
+                } else {
+                    // a journal left by a failed flush must not be replayed over this batch
+                    boolean journaled = batch.size() > 1 || mJournalStored;
+                    if (journaled) {
+                        mStorage.setValue(DB_JOURNAL_KEY, toJournal(batch));
+                        mJournalStored = true;
+                    }
+                    // readers may be looking at the batch, it's not changed here
+                    mStorage.setValues(batch);
+                    written = batch.size();
+                    if (journaled) {
+                        mStorage.deleteKeyValue(DB_JOURNAL_KEY);
+                        mJournalStored = false;
+                    }
+                }
+            } finally {
+                synchronized (LOCK) {
+                    // whatever wasn't written is pending again, unless it was since overwritten
+                    boolean wasEmpty = mPending.isEmpty();
+                    int i = 0;
+                    for (Map.Entry<String, String> entry : batch.entrySet()) {
+                        if (i++ >= written && !mPending.containsKey(entry.getKey())) {
+                            mPending.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    mFlushing = null;
+                    // a non-empty journal already has a flush scheduled
+                    if (wasEmpty && !mPending.isEmpty()) {
+                        scheduleFlush();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all the state keys that start with any of the given prefixes,
+     * going by the list of keys LevelUp stored state under rather than
+     * through all the app's keys. Pending writes are flushed first.
+     *
+     * @param prefixes the key prefixes, in the <code>soomla.levelup.</code>
+     *                 namespace
+     */
+    public static void deleteAll(String... prefixes) {
+        synchronized (WRITE_LOCK) {
+            flush();
+
+            List<String> keys;
+            synchronized (LOCK) {
+                keys = mRegistry.getKeys(prefixes);
+            }
+
+            Map<String, String> writes = new LinkedHashMap<String, String>();
+            for (String key : keys) {
+                writes.put(key, null);
+            }
+            if (mLog == null) {
+                store(writes);
+                writes.clear();
+            }
+
+            synchronized (LOCK) {
+                for (String key : keys) {
+                    put(key, null);
+                }
+                mWriteCount++;
+                writes.putAll(mRegistry.removeAll(keys));
+            }
+            save(writes);
+        }
+
+        // the columns don't see bulk deletes
+        StateColumn.clearMapped(prefixes);
+        StateColumn.invalidateAll();
+        StateVersions.reset();
+    }
+
+    /**
+     * Starts writing all pending writes to <code>KeyValueStorage</code> on
+     * the background thread, without waiting for it.
+     */
+    public static void flushAsync() {
+        synchronized (LOCK) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            getExecutor().execute(FLUSH);
+        }
+    }
+
+    /**
+     * Retrieves the number of keys with writes that were not yet written to
+     * <code>KeyValueStorage</code>.
+     *
+     * @return the number of pending keys
+     */
+    public static int getPendingCount() {
+        synchronized (LOCK) {
+            return mPending.size() + (mFlushing != null ? mFlushing.size() : 0);
+        }
+    }
+
+    /**
+     * Reads all the LevelUp keys into the mirror in one go, as far as the
+     * memory bound allows.
+     */
+    public static void preload() {
+        List<String> keys = new ArrayList<String>();
+        for (String key : mStorage.getKeys(LevelUp.DB_KEY_PREFIX)) {
+            if (isMirrored(key)) {
+                keys.add(key);
+            }
+        }
+
+        long writeCount;
+        synchronized (LOCK) {
+            writeCount = mWriteCount;
+        }
+        Map<String, String> values = mStorage.getValues(keys);
+        synchronized (LOCK) {
+            mMisses += keys.size();
+            // a write that raced with the read wins, the keys are read again when needed
+            if (writeCount != mWriteCount) {
+                return;
+            }
+            for (String key : keys) {
+                if (!mPending.containsKey(key) && (mFlushing == null || !mFlushing.containsKey(key))) {
+                    put(key, mLogged.containsKey(key) ? mLogged.get(key) : values.get(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops everything in the mirror, so it's read again from
+     * <code>KeyValueStorage</code>. Pending writes are kept.
+     */
+    public static void clearMirror() {
+        synchronized (LOCK) {
+            mMirror.clear();
+            mMirrorBytes = 0;
+            mWriteCount++;
+        }
+    }
+
+    /**
+     * Retrieves the number of reads served from memory.
+     *
+     * @return the number of hits since the last reset
+     */
+    public static long getHits() {
+        synchronized (LOCK) {
+            return mHits;
+        }
+    }
+
+    /**
+     * Retrieves the number of reads that went to <code>KeyValueStorage</code>.
+     *
+     * @return the number of misses since the last reset
+     */
+    public static long getMisses() {
+        synchronized (LOCK) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * Retrieves the approximate memory taken by the mirror.
+     *
+     * @return the mirror's size in bytes
+     */
+    public static long getMirrorBytes() {
+        synchronized (LOCK) {
+            return mMirrorBytes;
+        }
+    }
+
+    /**
+     * Sets the hit and miss counters back to zero.
+     */
+    public static void resetStats() {
+        synchronized (LOCK) {
+            mHits = 0;
+            mMisses = 0;
+        }
+    }
+
+    /**
+     * Makes the given writes visible at once, as pending writes that
+     * {@link #storePublished()} then stores in one batch.
+     *
+     * @param writes key to value, or to <code>null</code> for a delete
+     */
+    static void publish(Map<String, String> writes) {
+        // keeps records from being changed by write-through writes meanwhile
+        synchronized (WRITE_LOCK) {
+            synchronized (LOCK) {
+                for (Map.Entry<String, String> entry : writes.entrySet()) {
+                    String key = entry.getKey();
+                    String value = entry.getValue();
+                    RecordLayout.Field field = RecordLayout.getField(key);
+                    if (field != null) {
+                        key = field.recordKey;
+                        value = RecordLayout.with(getLocked(key), field, value);
+                    }
+
+                    register(key, value, mPending);
+                    mPending.put(key, value);
+                    if (isMirrored(key)) {
+                        put(key, value);
+                    }
+                }
+                mWriteCount++;
+            }
+        }
+
+        // versioned once visible, as in write()
+        for (String key : writes.keySet()) {
+            StateVersions.touch(key);
+        }
+    }
+
+    /**
+     * Sets the value of the given key without the calling thread waiting for
+     * storage: through the journal for state keys in write-behind mode, and
+     * on the background thread otherwise (the journal only takes state keys,
+     * others are stored right away). Bypasses the calling thread's
+     * transaction.
+     *
+     * @param key the key to set
+     * @param value the new value
+     */
+    static void setValueInBackground(final String key, final String value) {
+        if (LevelUpConfig.writeBehind && isMirrored(key)) {
+            writeVisible(key, value);
+            return;
+        }
+
+        synchronized (LOCK) {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeVisible(key, value);
+                    } catch (RuntimeException e) {
+                        SoomlaUtils.LogError(TAG, "couldn't write " + key + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stores the writes made visible by {@link #publish(Map)}, on the calling
+     * thread, or on the background thread in write-behind mode.
+     */
+    static void storePublished() {
+        if (LevelUpConfig.writeBehind) {
+            flushAsync();
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Retrieves the keys state was stored under (or is pending) with any of
+     * the given prefixes, as {@link #deleteAll(String...)} finds them.
+     *
+     * @param prefixes the key prefixes
+     * @return the keys
+     */
+    static List<String> getKeys(String... prefixes) {
+        synchronized (LOCK) {
+            return mRegistry.getKeys(prefixes);
+        }
+    }
+
+    /**
+     * Retrieves the storage LevelUp's model and state are kept in.
+     */
+    static StateStorage getStorage() {
+        return mStorage;
+    }
+
+    private static boolean isMirrored(String key) {
+        return KeyRegistry.isStateKey(key);
+    }
+
+    /**
+     * Retrieves the current value of the given key, like
+     * {@link #getValue(String)} does, with <code>LOCK</code> held throughout.
+     */
+    private static String getLocked(String key) {
+        if (mPending.containsKey(key)) {
+            return mPending.get(key);
+        }
+        if (mFlushing != null && mFlushing.containsKey(key)) {
+            return mFlushing.get(key);
+        }
+        Entry entry = mMirror.get(key);
+        if (entry != null) {
+            return entry.value;
+        }
+
+        String value = mLogged.containsKey(key) ? mLogged.get(key) : mStorage.getValue(key);
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * Adds the registry writes a write of the given key needs, if any.
+     */
+    private static void register(String key, String value, Map<String, String> writes) {
+        if (value != null) {
+            writes.putAll(mRegistry.add(key));
+        }
+    }
+
+    private static void store(Map<String, String> writes) {
+        mStorage.setValues(writes);
+    }
+
+    private static void store(String key, String value) {
+        if (value != null) {
+            mStorage.setValue(key, value);
+        } else {
+            mStorage.deleteKeyValue(key);
+        }
+    }
+
+    /**
+     * Stores the given writes in <code>KeyValueStorage</code>, in one batch
+     * that's replayed by {@link #recover()} if it's cut short.
+     */
+    private static void storeJournaled(Map<String, String> writes) {
+        mStorage.setValue(DB_JOURNAL_KEY, toJournal(writes));
+        mJournalStored = true;
+        store(writes);
+        mStorage.deleteKeyValue(DB_JOURNAL_KEY);
+        mJournalStored = false;
+    }
+
+    /**
+     * Stores the given writes, in the state log if it's on, or in
+     * <code>KeyValueStorage</code>. Called with <code>WRITE_LOCK</code> held.
+     */
+    private static void save(Map<String, String> writes) {
+        if (mLog != null) {
+            log(writes);
+        } else {
+            store(writes);
+        }
+    }
+
+    /**
+     * Appends the given writes to the state log, and compacts it once it's
+     * grown past <code>LevelUpConfig.stateLogMaxBytes</code>. If the log
+     * can't be written to, it's compacted and dropped, and state goes back
+     * to being stored in <code>KeyValueStorage</code>.
+     */
+    private static void log(Map<String, String> writes) {
+        boolean logged = false;
+        try {
+            mLog.append(writes);
+            logged = true;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't append to the state log, dropping it: " + e.getMessage());
+        }
+
+        synchronized (LOCK) {
+            mLogged.putAll(writes);
+        }
+
+        if (!logged) {
+            compact();
+            closeLog();
+        } else if (mLog.length() > LevelUpConfig.stateLogMaxBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes everything in the state log to the snapshot in
+     * <code>KeyValueStorage</code>, in one batch, and empties the log.
+     */
+    private static void compact() {
+        Map<String, String> logged;
+        synchronized (LOCK) {
+            if (mLog == null || mLogged.isEmpty()) {
+                return;
+            }
+            logged = new LinkedHashMap<String, String>(mLogged);
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Compacting the state log");
+        storeJournaled(logged);
+
+        // readers go to the snapshot from now on, it holds the same values
+        synchronized (LOCK) {
+            mLogged.clear();
+        }
+
+        try {
+            mLog.clear();
+        } catch (IOException e) {
+            // replaying it over the snapshot would be harmless, but it can't go on from here
+            SoomlaUtils.LogError(TAG, "Couldn't empty the state log, dropping it: " + e.getMessage());
+            closeLog();
+        }
+    }
+
+    /**
+     * Replays a state log left by the last run over the snapshot, and opens
+     * the log if <code>LevelUpConfig.stateLog</code> is on.
+     */
+    private static void openLog() {
+        synchronized (WRITE_LOCK) {
+            if (mLog != null) {
+                if (LevelUpConfig.stateLog) {
+                    return;
+                }
+                // pending writes would go to the log
+                flush();
+                compact();
+                closeLog();
+                return;
+            }
+
+            File file = getFile(LOG_FILE_NAME);
+            if (file == null) {
+                return;
+            }
+
+            StateLog log = new StateLog(file);
+            try {
+                Map<String, String> tail = log.read();
+                if (!tail.isEmpty()) {
+                    // the snapshot and the tail of the log make up the state
+                    SoomlaUtils.LogDebug(TAG, "Replaying the state log");
+                    storeJournaled(tail);
+                    clearMirror();
+                    StateColumn.invalidateAll();
+                }
+                if (LevelUpConfig.stateLog) {
+                    log.clear();
+                    mLog = log;
+                } else {
+                    log.delete();
+                }
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the state log: " + e.getMessage());
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the mapped state file if <code>LevelUpConfig.mappedState</code>
+     * is on, copying the stored state into it the first time, or copies the
+     * mapped state back to storage and deletes the file if it's off.
+     */
+    private static void openMappedState() {
+        MappedState mapped = StateColumn.getMapped();
+        boolean on = LevelUpConfig.mappedState;
+        if (mapped == null) {
+            File file = getFile(MAPPED_STATE_FILE_NAME);
+            if (file == null || (!on && !file.exists())) {
+                return;
+            }
+
+            try {
+                mapped = MappedState.open(file);
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't open the mapped state: " + e.getMessage());
+                return;
+            }
+        } else if (on) {
+            return;
+        }
+
+        if (on) {
+            if (!MAPPED_STATE_COPIED.equals(mStorage.getValue(DB_MAPPED_STATE_KEY))) {
+                SoomlaUtils.LogDebug(TAG, "Copying state to the mapped state file");
+                flush();
+                List<String> keys;
+                synchronized (LOCK) {
+                    keys = mRegistry.getKeys(GateStorage.DB_GATE_KEY_PREFIX, LevelStorage.DB_LEVEL_KEY_PREFIX,
+                            MissionStorage.DB_MISSION_KEY_PREFIX, ScoreStorage.DB_SCORE_KEY_PREFIX);
+                }
+                StateColumn.copyToMapped(mapped, keys);
+                mapped.force();
+                mStorage.setValue(DB_MAPPED_STATE_KEY, MAPPED_STATE_COPIED);
+            }
+            StateColumn.setMapped(mapped);
+            return;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Copying the mapped state file back to storage");
+        StateColumn.setMapped(null);
+        // in one batch, along with dropping the marker
+        StateTransaction transaction = StateTransaction.begin();
+        try {
+            StateColumn.copyFromMapped(mapped);
+            transaction.write(DB_MAPPED_STATE_KEY, null);
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+        mapped.delete();
+    }
+
+    /**
+     * Switches to the storage set in <code>LevelUpConfig.stateStorage</code>
+     * when LevelUp is first initialized. It's only picked once, so that
+     * reads and writes don't have to check for a switch. State isn't moved
+     * between storages.
+     */
+    private static void selectStorage() {
+        synchronized (WRITE_LOCK) {
+            StateStorage storage = LevelUpConfig.stateStorage != null ? LevelUpConfig.stateStorage : mStorage;
+            if (mStorageSelected) {
+                if (storage != mStorage) {
+                    SoomlaUtils.LogError(TAG, "The state storage can only be set before LevelUp is first initialized");
+                }
+                return;
+            }
+            mStorageSelected = true;
+            if (storage == mStorage) {
+                return;
+            }
+
+            // writes made before initializing belong to the default storage
+            flush();
+            synchronized (LOCK) {
+                mStorage = storage;
+                mRegistry = new KeyRegistry(storage);
+            }
+        }
+
+        clearMirror();
+        StateColumn.invalidateAll();
+        ModelCache.invalidate();
+    }
+
+    private static void closeLog() {
+        if (mLog != null) {
+            mLog.delete();
+            mLog = null;
+        }
+    }
+
+    private static File getFile(String name) {
+        Context context = SoomlaApp.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        return new File(context.getFilesDir(), name);
+    }
+
+    private static void recover() {
+        synchronized (WRITE_LOCK) {
+            String journal = mStorage.getValue(DB_JOURNAL_KEY);
+            if (journal == null) {
+                return;
+            }
+
+            SoomlaUtils.LogDebug(TAG, "Writing a batch that was cut short");
+            try {
+                JSONObject batch = new JSONObject(journal);
+                Map<String, String> writes = new LinkedHashMap<String, String>();
+                Iterator<String> keys = batch.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    writes.put(key, batch.isNull(key) ? null : batch.getString(key));
+                }
+                store(writes);
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the journal, dropping it: " + e.getMessage());
+            }
+            mStorage.deleteKeyValue(DB_JOURNAL_KEY);
+            mJournalStored = false;
+        }
+
+        clearMirror();
+        StateColumn.invalidateAll();
+    }
+
+    private static void migrateLayout() {
+        boolean packed = LevelUpConfig.packedStateRecords;
+        if (packed != LAYOUT_PACKED.equals(mStorage.getValue(DB_LAYOUT_KEY))) {
+            SoomlaUtils.LogDebug(TAG, packed ? "Packing level and world state" : "Unpacking level and world state");
+
+            synchronized (WRITE_LOCK) {
+                // pending writes are in the old layout, and are read below from the snapshot
+                flush();
+                compact();
+
+                synchronized (LOCK) {
+                    List<String> keys = mRegistry.getKeys(LevelStorage.DB_LEVEL_KEY_PREFIX,
+                            WorldStorage.DB_WORLD_KEY_PREFIX);
+                    Map<String, String> values = mStorage.getValues(keys);
+                    Map<String, String> writes = new LinkedHashMap<String, String>();
+                    if (packed) {
+                        RecordLayout.pack(keys, values, writes);
+                    } else {
+                        RecordLayout.unpack(keys, values, writes);
+                    }
+
+                    List<String> deletedKeys = new ArrayList<String>();
+                    for (Map.Entry<String, String> entry : writes.entrySet()) {
+                        if (entry.getValue() != null) {
+                            register(entry.getKey(), entry.getValue(), mPending);
+                        } else {
+                            deletedKeys.add(entry.getKey());
+                        }
+                    }
+                    mPending.putAll(mRegistry.removeAll(deletedKeys));
+                    mPending.putAll(writes);
+                    mPending.put(DB_LAYOUT_KEY, packed ? LAYOUT_PACKED : null);
+                }
+
+                // written in one batch, so it's migrated all at once
+                flush();
+            }
+
+            clearMirror();
+            StateColumn.invalidateAll();
+        }
+
+        RecordLayout.setPacked(packed);
+    }
+
+    private static void migrateNumbers() {
+        boolean binary = LevelUpConfig.binaryNumbers;
+        if (binary != NUMBERS_BINARY.equals(mStorage.getValue(DB_NUMBERS_KEY))) {
+            SoomlaUtils.LogDebug(TAG, binary ? "Encoding numbers in binary" : "Encoding numbers in decimal");
+
+            synchronized (WRITE_LOCK) {
+                // pending writes are in the old encoding, and are read below from the snapshot
+                flush();
+                compact();
+
+                synchronized (LOCK) {
+                    // world state holds ids, which are left as they are
+                    List<String> keys = mRegistry.getKeys(LevelStorage.DB_LEVEL_KEY_PREFIX,
+                            MissionStorage.DB_MISSION_KEY_PREFIX, ScoreStorage.DB_SCORE_KEY_PREFIX);
+                    Map<String, String> values = mStorage.getValues(keys);
+                    for (String key : keys) {
+                        String value = values.get(key);
+                        String recoded;
+                        String[] fields = RecordLayout.split(key, value);
+                        if (fields != null) {
+                            for (int i = 0; i < fields.length; i++) {
+                                fields[i] = NumberCodec.recode(fields[i], binary);
+                            }
+                            recoded = RecordLayout.join(fields);
+                        } else {
+                            recoded = NumberCodec.recode(value, binary);
+                        }
+
+                        if (recoded != null && !recoded.equals(value)) {
+                            mPending.put(key, recoded);
+                        }
+                    }
+                    mPending.put(DB_NUMBERS_KEY, binary ? NUMBERS_BINARY : null);
+                }
+
+                // written in one batch, so it's migrated all at once
+                flush();
+            }
+
+            clearMirror();
+            StateColumn.invalidateAll();
+        }
+
+        NumberCodec.setBinary(binary);
+    }
+
+    private static String toJournal(Map<String, String> batch) {
+        JSONObject journal = new JSONObject();
+        try {
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                journal.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : JSONObject.NULL);
+            }
+        } catch (JSONException e) {
+            // can't happen, keys aren't null
+            throw new IllegalStateException(e);
+        }
+        return journal.toString();
+    }
+
+    private static void write(String key, String value) {
+        StateTransaction transaction = StateTransaction.current();
+        if (transaction != null) {
+            transaction.write(key, value);
+            return;
+        }
+
+        writeVisible(key, value);
+        // versioned once visible, so an export never hands out a version past an unseen write
+        StateVersions.touch(key);
+    }
+
+    private static void writeVisible(String key, String value) {
+        if (!isMirrored(key)) {
+            store(key, value);
+            return;
+        }
+
+        RecordLayout.Field field = RecordLayout.getField(key);
+        if (LevelUpConfig.writeBehind) {
+            synchronized (LOCK) {
+                if (field != null) {
+                    key = field.recordKey;
+                    value = RecordLayout.with(getLocked(key), field, value);
+                }
+                // registering a new key adds registry writes to the journal too
+                boolean wasEmpty = mPending.isEmpty();
+                register(key, value, mPending);
+                mPending.put(key, value);
+                put(key, value);
+                mWriteCount++;
+                if (wasEmpty) {
+                    scheduleFlush();
+                }
+            }
+            return;
+        }
+
+        synchronized (WRITE_LOCK) {
+            if (field != null) {
+                // no other write-through write or commit changes the record meanwhile
+                key = field.recordKey;
+                value = RecordLayout.with(getValue(key), field, value);
+            }
+
+            Map<String, String> writes = new LinkedHashMap<String, String>();
+            synchronized (LOCK) {
+                register(key, value, writes);
+            }
+            // listed before it's stored, so it can't be missed by deleteAll()
+            writes.put(key, value);
+            save(writes);
+            synchronized (LOCK) {
+                // an older pending write of the key must not be flushed over this one
+                mPending.remove(key);
+                put(key, value);
+                mWriteCount++;
+            }
+        }
+    }
+
+    private static void put(String key, String value) {
+        long maxBytes = LevelUpConfig.stateMirrorMaxBytes;
+        Entry entry = new Entry(value, sizeOf(key, value));
+
+        Entry old = mMirror.put(key, entry);
+        if (old != null) {
+            mMirrorBytes -= old.bytes;
+        }
+        mMirrorBytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> iterator = mMirror.entrySet().iterator();
+        while (mMirrorBytes > maxBytes && iterator.hasNext()) {
+            mMirrorBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static int sizeOf(String key, String value) {
+        int chars = key.length() + (value != null ? value.length() : 0);
+        return ENTRY_OVERHEAD + chars * 2;
+    }
+
+    private static void scheduleFlush() {
+        getExecutor().schedule(FLUSH, LevelUpConfig.writeBehindDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SOOMLA LevelUp journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    private static class Entry {
+
+        Entry(String value, int bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+
+        final String value;
+        final int bytes;
+    }
+
+    /**
+     * Flushes the journal before the app may be killed in the background.
+     */
+    public static class PauseListener {
+
+        @Subscribe
+        public void onAppToBackground(AppToBackgroundEvent appToBackgroundEvent) {
+            // before the flush, which then clears the versions' marker key
+            StateVersions.store();
+            flush();
+
+            MappedState mapped = StateColumn.getMapped();
+            if (mapped != null) {
+                mapped.force();
+            }
+        }
+    }
+
+    private static final Runnable FLUSH = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // the batch stays pending, and is retried with the next flush
+                SoomlaUtils.LogError(TAG, "couldn't flush pending writes: " + e.getMessage());
+            }
+        }
+    };
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA LUKeyValueStorage";
+
+    private static final String DB_JOURNAL_KEY = LevelUp.DB_KEY_PREFIX + "journal";
+    private static final String DB_LAYOUT_KEY = LevelUp.DB_KEY_PREFIX + "layout";
+    private static final String LAYOUT_PACKED = "packed";
+    private static final String DB_NUMBERS_KEY = LevelUp.DB_KEY_PREFIX + "numbers";
+    private static final String NUMBERS_BINARY = "binary";
+    private static final String LOG_FILE_NAME = LevelUp.DB_KEY_PREFIX + "log";
+    private static final String MAPPED_STATE_FILE_NAME = LevelUp.DB_KEY_PREFIX + "state";
+    private static final String DB_MAPPED_STATE_KEY = LevelUp.DB_KEY_PREFIX + "mapped";
+    private static final String MAPPED_STATE_COPIED = "copied";
+
+    private static final Object LOCK = new Object();
+
+    // held while writing to KeyValueStorage, taken before LOCK
+    private static final Object WRITE_LOCK = new Object();
+
+    // access ordered, so iteration starts with the least recently used key
+    private static final LinkedHashMap<String, Entry> mMirror = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    private static long mMirrorBytes = 0;
+    private static long mHits = 0;
+    private static long mMisses = 0;
+    private static long mWriteCount = 0;
+
+    // key to value, or to null for a delete
+    private static LinkedHashMap<String, String> mPending = new LinkedHashMap<String, String>();
+    private static Map<String, String> mFlushing;
+    private static ScheduledExecutorService mExecutor;
+    private static PauseListener mPauseListener;
+    // picked once, see selectStorage()
+    private static StateStorage mStorage = new KeyValueStateStorage();
+    private static boolean mStorageSelected = false;
+    private static KeyRegistry mRegistry = new KeyRegistry(mStorage);
+    private static boolean mJournalStored = false;
+
+    // the state log, and what's in it (key to value, or to null for a delete)
+    private static StateLog mLog;
+    private static final HashMap<String, String> mLogged = new HashMap<String, String>();
+
+    // rough cost of a map entry, the entry and two strings, beyond their chars
+    private static final int ENTRY_OVERHEAD = 128;
+}
@@ -18,8 +18,6 @@ package com.soomla.levelup.data;
 
 import android.text.TextUtils;
 
-import com.soomla.BusProvider;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.LevelUp;
 import com.soomla.levelup.events.LevelEndedEvent;
 import com.soomla.levelup.events.LevelStartedEvent;
@@ -57,33 +55,82 @@ public class LevelStorage {
         return keyLevels(levelId, "fastest");
     }
 
+    /**
+     * Retrieves all the keys the state of the given level may be stored under.
+     */
+    static String[] stateKeys(String levelId) {
+        return new String[] {
+                keyTimesStarted(levelId),
+                keyTimesPlayed(levelId),
+                keyTimesCompleted(levelId),
+                keySlowestDuration(levelId),
+                keyFastestDuration(levelId)
+        };
+    }
+
 
     /**
      * Level Duration *
      */
 
     public static void setSlowestDurationMillis(String levelId, long duration) {
-        String key = keySlowestDuration(levelId);
-        String val = String.valueOf(duration);
-        KeyValueStorage.setValue(key, val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            setSlowestDurationMillis(levelHandle, duration);
+            return;
+        }
+        setDurationForKey(keySlowestDuration(levelId), duration);
+    }
+
+    public static void setSlowestDurationMillis(int levelHandle, long duration) {
+        SLOWEST_DURATION.setLong(levelHandle, duration);
     }
 
     public static long getSlowestDurationMillis(String levelId) {
-        String key = keySlowestDuration(levelId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? 0 : Long.parseLong(val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return getSlowestDurationMillis(levelHandle);
+        }
+        return getDurationForKey(keySlowestDuration(levelId));
+    }
+
+    public static long getSlowestDurationMillis(int levelHandle) {
+        return SLOWEST_DURATION.getLong(levelHandle);
     }
 
     public static void setFastestDurationMillis(String levelId, long duration) {
-        String key = keyFastestDuration(levelId);
-        String val = String.valueOf(duration);
-        KeyValueStorage.setValue(key, val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            setFastestDurationMillis(levelHandle, duration);
+            return;
+        }
+        setDurationForKey(keyFastestDuration(levelId), duration);
+    }
+
+    public static void setFastestDurationMillis(int levelHandle, long duration) {
+        FASTEST_DURATION.setLong(levelHandle, duration);
     }
 
     public static long getFastestDurationMillis(String levelId) {
-        String key = keyFastestDuration(levelId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? 0 : Long.parseLong(val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return getFastestDurationMillis(levelHandle);
+        }
+        return getDurationForKey(keyFastestDuration(levelId));
+    }
+
+    public static long getFastestDurationMillis(int levelHandle) {
+        return FASTEST_DURATION.getLong(levelHandle);
+    }
+
+    private static void setDurationForKey(String key, long duration) {
+        String val = NumberCodec.encode(duration);
+        LUKeyValueStorage.setValue(key, val);
+    }
+
+    private static long getDurationForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
+        return TextUtils.isEmpty(val) ? 0 : NumberCodec.decodeLong(val);
     }
 
 
@@ -92,40 +139,63 @@ public class LevelStorage {
      */
 
     public static int incTimesStarted(String levelId) {
-        int started = getTimesStarted(levelId);
-        if (started < 0) { /* can't be negative */
-            started = 0;
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return incTimesStarted(levelHandle);
         }
 
-        setTimesStarted(levelId, started + 1);
+        int count = incCountForKey(keyTimesStarted(levelId));
 
         // Notify level has started
-        BusProvider.getInstance().post(new LevelStartedEvent(levelId));
+        StateTransaction.post(new LevelStartedEvent(levelId));
 
-        return started + 1;
+        return count;
+    }
+
+    public static int incTimesStarted(int levelHandle) {
+        int count = TIMES_STARTED.increment(levelHandle);
+
+        // Notify level has started
+        StateTransaction.post(new LevelStartedEvent(KEYS.getItemId(levelHandle)));
+
+        return count;
     }
 
     public static int decTimesStarted(String levelId) {
-        int started = getTimesStarted(levelId);
-        if (started <= 0) { /* can't be negative or zero */
-            return 0;
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return decTimesStarted(levelHandle);
         }
+        return decCountForKey(keyTimesStarted(levelId));
+    }
 
-        setTimesStarted(levelId, started - 1);
-
-        return started - 1;
+    public static int decTimesStarted(int levelHandle) {
+        return TIMES_STARTED.decrement(levelHandle);
     }
 
     public static void setTimesStarted(String levelId, int started) {
-        String startedStr = "" + started;
-        String key = keyTimesStarted(levelId);
-        KeyValueStorage.setValue(key, startedStr);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            setTimesStarted(levelHandle, started);
+            return;
+        }
+        setCountForKey(keyTimesStarted(levelId), started);
+    }
+
+    public static void setTimesStarted(int levelHandle, int started) {
+        TIMES_STARTED.setInt(levelHandle, started);
     }
 
     public static int getTimesStarted(String levelId) {
-        String key = keyTimesStarted(levelId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? 0 : Integer.parseInt(val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return getTimesStarted(levelHandle);
+        }
+        return getCountForKey(keyTimesStarted(levelId));
+    }
+
+    public static int getTimesStarted(int levelHandle) {
+        return TIMES_STARTED.getInt(levelHandle);
     }
 
 
@@ -134,80 +204,176 @@ public class LevelStorage {
      */
 
     public static int incTimesPlayed(String levelId) {
-        int played = getTimesPlayed(levelId);
-        if (played < 0) { /* can't be negative */
-            played = 0;
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return incTimesPlayed(levelHandle);
         }
 
-        setTimesPlayed(levelId, played + 1);
+        int count = incCountForKey(keyTimesPlayed(levelId));
+
+        // Notify level has ended, and store what was played
+        LUKeyValueStorage.flushAsync();
+        StateTransaction.post(new LevelEndedEvent(levelId));
+
+        return count;
+    }
+
+    public static int incTimesPlayed(int levelHandle) {
+        int count = TIMES_PLAYED.increment(levelHandle);
 
-        // Notify level has ended
-        BusProvider.getInstance().post(new LevelEndedEvent(levelId));
+        // Notify level has ended, and store what was played
+        LUKeyValueStorage.flushAsync();
+        StateTransaction.post(new LevelEndedEvent(KEYS.getItemId(levelHandle)));
 
-        return played + 1;
+        return count;
     }
 
     public static int decTimesPlayed(String levelId) {
-        int played = getTimesPlayed(levelId);
-        if (played <= 0) { /* can't be negative or zero */
-            return 0;
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return decTimesPlayed(levelHandle);
         }
+        return decCountForKey(keyTimesPlayed(levelId));
+    }
 
-        setTimesPlayed(levelId, played - 1);
-
-        return played - 1;
+    public static int decTimesPlayed(int levelHandle) {
+        return TIMES_PLAYED.decrement(levelHandle);
     }
 
     public static void setTimesPlayed(String levelId, int played) {
-        String playedStr = "" + played;
-        String key = keyTimesPlayed(levelId);
-        KeyValueStorage.setValue(key, playedStr);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            setTimesPlayed(levelHandle, played);
+            return;
+        }
+        setCountForKey(keyTimesPlayed(levelId), played);
+    }
+
+    public static void setTimesPlayed(int levelHandle, int played) {
+        TIMES_PLAYED.setInt(levelHandle, played);
     }
 
     public static int getTimesPlayed(String levelId) {
-        String key = keyTimesPlayed(levelId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? 0 : Integer.parseInt(val);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return getTimesPlayed(levelHandle);
+        }
+        return getCountForKey(keyTimesPlayed(levelId));
+    }
+
+    public static int getTimesPlayed(int levelHandle) {
+        return TIMES_PLAYED.getInt(levelHandle);
     }
 
+
     /**
      * Level Times Completed *
      */
+
     public static int incTimesCompleted(String levelId) {
-        int completed = getTimesCompleted(levelId);
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return incTimesCompleted(levelHandle);
+        }
+        return incCountForKey(keyTimesCompleted(levelId));
+    }
+
+    public static int incTimesCompleted(int levelHandle) {
+        return TIMES_COMPLETED.increment(levelHandle);
+    }
 
-        if (completed < 0) { /* can't be negative */
-            completed = 0;
+    public static int decTimesCompleted(String levelId) {
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return decTimesCompleted(levelHandle);
         }
+        return decCountForKey(keyTimesCompleted(levelId));
+    }
+
+    public static int decTimesCompleted(int levelHandle) {
+        return TIMES_COMPLETED.decrement(levelHandle);
+    }
 
-        setTimesCompleted(levelId, completed + 1);
+    public static void setTimesCompleted(String levelId, int completed) {
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            setTimesCompleted(levelHandle, completed);
+            return;
+        }
+        setCountForKey(keyTimesCompleted(levelId), completed);
+    }
 
-        return completed + 1;
+    public static void setTimesCompleted(int levelHandle, int completed) {
+        TIMES_COMPLETED.setInt(levelHandle, completed);
     }
 
-    public static int decTimesCompleted(String levelId) {
-        int completed = getTimesCompleted(levelId);
+    public static int getTimesCompleted(String levelId) {
+        int levelHandle = ItemKeys.getHandle(levelId);
+        if (levelHandle != ModelIndex.NO_HANDLE) {
+            return getTimesCompleted(levelHandle);
+        }
+        return getCountForKey(keyTimesCompleted(levelId));
+    }
+
+    public static int getTimesCompleted(int levelHandle) {
+        return TIMES_COMPLETED.getInt(levelHandle);
+    }
+
+
+    /**
+     * Counters *
+     */
+
+    private static int incCountForKey(String key) {
+        synchronized (KeyLocks.forKey(key)) {
+            int value = getCountForKey(key);
+            int count = value < 0 ? 0 : value; /* can't be negative */
+
+            updateCountForKey(key, value, count + 1);
 
-        if (completed <= 0) { /* can't be negative or zero */
-            return 0;
+            return count + 1;
         }
+    }
+
+    private static int decCountForKey(String key) {
+        synchronized (KeyLocks.forKey(key)) {
+            int count = getCountForKey(key);
+
+            if (count <= 0) { /* can't be negative or zero */
+                return 0;
+            }
 
-        setTimesCompleted(levelId, completed - 1);
+            updateCountForKey(key, count, count - 1);
 
-        return completed - 1;
+            return count - 1;
+        }
     }
 
-    public static void setTimesCompleted(String levelId, int completed) {
-        String completedStr = "" + completed;
-        String key = keyTimesCompleted(levelId);
-        KeyValueStorage.setValue(key, completedStr);
+    private static void updateCountForKey(String key, int oldCount, int count) {
+        // in a transaction, applied to the count as it is on commit
+        if (!StateTransaction.count(key, count - oldCount)) {
+            setCountForKey(key, count);
+        }
     }
 
-    public static int getTimesCompleted(String levelId) {
-        String key = keyTimesCompleted(levelId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? 0 : Integer.parseInt(val);
+    private static void setCountForKey(String key, int count) {
+        String countStr = NumberCodec.encode(count);
+        synchronized (KeyLocks.forKey(key)) {
+            LUKeyValueStorage.setValue(key, countStr);
+        }
+    }
+
+    private static int getCountForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
+        return (TextUtils.isEmpty(val) ? 0 : (int) NumberCodec.decodeLong(val)) + StateTransaction.pendingCount(key);
     }
 
     public static final String DB_LEVEL_KEY_PREFIX = LevelUp.DB_KEY_PREFIX + "levels.";
+    static final ItemKeys KEYS = new ItemKeys(DB_LEVEL_KEY_PREFIX,
+            "started", "played", "timesCompleted", "slowest", "fastest");
+    private static final StateColumn TIMES_STARTED = StateColumn.ofInt(KEYS, 0, 0);
+    private static final StateColumn TIMES_PLAYED = StateColumn.ofInt(KEYS, 1, 0);
+    private static final StateColumn TIMES_COMPLETED = StateColumn.ofInt(KEYS, 2, 0);
+    private static final StateColumn SLOWEST_DURATION = StateColumn.ofLong(KEYS, 3, 0);
+    private static final StateColumn FASTEST_DURATION = StateColumn.ofLong(KEYS, 4, 0);
 }
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The numeric state of model items (counters, durations, scores and gate
+ * flags) in a memory-mapped file, which <code>StateColumn</code> reads and
+ * writes directly instead of going through <code>KeyValueStorage</code>,
+ * when <code>LevelUpConfig.mappedState</code> is on.
+ *
+ * Every item with state has a slot of {@link #SLOT_LONGS} longs: a header
+ * with the item's category and a bit per value that was set, up to
+ * {@link #MAX_COLUMNS} values (a column's postfix offset picks its value),
+ * and a checksum of the slot. The file is a header followed by the slots:
+ *
+ * <pre>
+ * int magic, short version, short slotLongs, int capacity, int reserved
+ * capacity x (long header, MAX_COLUMNS x long value, long checksum)
+ * </pre>
+ *
+ * The ids of the slots' items are appended to a separate file as slots are
+ * given out, so the slots don't depend on handles, which differ between
+ * model indexes. Items get a slot the first time one of their values is
+ * set, and the file is grown (and mapped again) when it runs out of slots.
+ * Older mappings of the file keep working, since they share its pages.
+ *
+ * Slot checksums are verified when the file is opened, and a slot that
+ * doesn't match (say, after a power loss half way through a write) is
+ * dropped, so its values go back to their defaults.
+ *
+ * Thread safe. Each slot is guarded by one of {@link #STRIPES} locks.
+ */
+class MappedState {
+
+    /**
+     * Opens the state in the given file, creating it if there's none.
+     *
+     * @param file the state file
+     * @return the state
+     * @throws IOException if the file couldn't be read or mapped
+     */
+    static MappedState open(File file) throws IOException {
+        MappedState state = new MappedState(file);
+        state.load();
+        return state;
+    }
+
+    /**
+     * Retrieves the category of the state stored under the given storage
+     * namespace.
+     *
+     * @param prefix the key prefix of a storage class
+     * @return the category, or 0 if that state isn't kept here
+     */
+    static int categoryOf(String prefix) {
+        return CATEGORY_PREFIXES.indexOf(prefix) + 1;
+    }
+
+    /**
+     * Retrieves a value of the item with the given handle.
+     *
+     * @param handle the handle of the item in the model index
+     * @param column the offset of the value in the item's slot
+     * @param defaultValue the value to return if it was never set
+     * @return the value
+     */
+    long get(int handle, int column, long defaultValue) {
+        int slot = getSlot(handle, false);
+        if (slot < 0) {
+            return defaultValue;
+        }
+
+        synchronized (lockFor(slot)) {
+            MappedByteBuffer buffer = bufferFor(slot);
+            int offset = offsetOf(slot);
+            if ((buffer.getLong(offset) & (1L << column)) == 0) {
+                return defaultValue;
+            }
+            return buffer.getLong(offset + (1 + column) * 8);
+        }
+    }
+
+    /**
+     * Sets a value of the item with the given handle, giving the item a
+     * slot if it has none.
+     *
+     * @param handle the handle of the item in the model index
+     * @param column the offset of the value in the item's slot
+     * @param category the category of the item's state
+     * @param value the new value
+     */
+    void set(int handle, int column, int category, long value) {
+        setSlotValue(getSlot(handle, true), column, category, value);
+    }
+
+    /**
+     * Sets a value of the item with the given id, giving the item a slot if
+     * it has none.
+     */
+    void set(String itemId, int column, int category, long value) {
+        setSlotValue(getSlot(itemId, true), column, category, value);
+        // handles known to have no slot may have one now
+        synchronized (this) {
+            mHandles = null;
+        }
+    }
+
+    /**
+     * Drops all the values of items in the given category.
+     *
+     * @param category the category, as given by {@link #categoryOf(String)}
+     */
+    void clear(int category) {
+        int count = getSlotCount();
+        for (int slot = 0; slot < count; slot++) {
+            synchronized (lockFor(slot)) {
+                MappedByteBuffer buffer = bufferFor(slot);
+                if (categoryOf(buffer.getLong(offsetOf(slot))) == category) {
+                    writeSlot(buffer, slot, category, 0);
+                }
+            }
+        }
+    }
+
+    int getSlotCount() {
+        synchronized (this) {
+            return mItemIds.size();
+        }
+    }
+
+    String getItemId(int slot) {
+        synchronized (this) {
+            return mItemIds.get(slot);
+        }
+    }
+
+    /**
+     * Retrieves the category of the item in the given slot.
+     *
+     * @return the category, or 0 if none of the item's values were set
+     */
+    int getCategory(int slot) {
+        synchronized (lockFor(slot)) {
+            return categoryOf(bufferFor(slot).getLong(offsetOf(slot)));
+        }
+    }
+
+    /**
+     * Checks whether a value of the item in the given slot was set.
+     */
+    boolean hasSlotValue(int slot, int column) {
+        synchronized (lockFor(slot)) {
+            return (bufferFor(slot).getLong(offsetOf(slot)) & (1L << column)) != 0;
+        }
+    }
+
+    long getSlotValue(int slot, int column) {
+        synchronized (lockFor(slot)) {
+            return bufferFor(slot).getLong(offsetOf(slot) + (1 + column) * 8);
+        }
+    }
+
+    /**
+     * Writes changes to the file to disk, and returns once they're there.
+     */
+    void force() {
+        mBuffer.force();
+    }
+
+    /**
+     * Deletes the state files. The state must not be used afterwards.
+     */
+    void delete() {
+        close();
+        boolean deleted = mFile.delete();
+        deleted &= getIdsFile().delete();
+        if (!deleted) {
+            SoomlaUtils.LogError(TAG, "Unable to delete the mapped state");
+        }
+    }
+
+    void close() {
+        try {
+            mIdsOut.close();
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+    }
+
+    private MappedState(File file) {
+        mFile = file;
+        mLocks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    private void load() throws IOException {
+        File idsFile = getIdsFile();
+        boolean idsValid = true;
+        if (idsFile.exists()) {
+            byte[] bytes = new byte[(int) idsFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(idsFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+
+            ByteArrayInputStream ids = new ByteArrayInputStream(bytes);
+            in = new DataInputStream(ids);
+            try {
+                while (ids.available() > 0) {
+                    String itemId = in.readUTF();
+                    mSlots.put(itemId, mItemIds.size());
+                    mItemIds.add(itemId);
+                }
+            } catch (EOFException e) {
+                // an id cut short
+                idsValid = false;
+            }
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        mChannel = file.getChannel();
+        int capacity = 0;
+        if (file.length() >= HEADER_BYTES) {
+            if (file.readInt() == MAGIC && file.readShort() == VERSION && file.readShort() == SLOT_LONGS) {
+                capacity = file.readInt();
+            } else {
+                SoomlaUtils.LogError(TAG, "Unknown mapped state file, dropping it");
+            }
+        }
+        if (capacity <= 0 || file.length() < HEADER_BYTES + (long) capacity * SLOT_BYTES) {
+            if (!mItemIds.isEmpty()) {
+                SoomlaUtils.LogError(TAG, "The mapped state file is cut short, dropping it");
+            }
+            mSlots.clear();
+            mItemIds.clear();
+            capacity = 0;
+            file.setLength(0);
+        }
+
+        // an id whose slot didn't make it to the file is dropped, along with the ids after it
+        int count = Math.min(mItemIds.size(), capacity);
+        if (count < mItemIds.size()) {
+            mItemIds.subList(count, mItemIds.size()).clear();
+            mSlots.clear();
+            for (int slot = 0; slot < count; slot++) {
+                mSlots.put(mItemIds.get(slot), slot);
+            }
+            idsValid = false;
+        }
+        if (!idsValid) {
+            rewriteIds();
+        }
+        mIdsOut = new DataOutputStream(new FileOutputStream(idsFile, true));
+
+        map(Math.max(capacity, INITIAL_CAPACITY));
+        verify();
+    }
+
+    /**
+     * Drops every slot whose checksum doesn't match.
+     */
+    private void verify() {
+        MappedByteBuffer buffer = mBuffer;
+        int corrupt = 0;
+        for (int slot = 0; slot < mItemIds.size(); slot++) {
+            int offset = offsetOf(slot);
+            long header = buffer.getLong(offset);
+            long checksum = header == 0 ? 0 : checksum(buffer, slot);
+            if (buffer.getLong(offset + (SLOT_LONGS - 1) * 8) != checksum) {
+                writeSlot(buffer, slot, 0, 0);
+                corrupt++;
+            }
+        }
+        if (corrupt > 0) {
+            SoomlaUtils.LogError(TAG, "Dropped the state of " + corrupt + " items, it was corrupt");
+        }
+    }
+
+    private int getSlot(int handle, boolean create) {
+        ModelIndex index = ModelCache.getIndex();
+        if (index == null || handle < 0 || handle >= index.getHandleCount()) {
+            throw new IllegalArgumentException("No model item with handle " + handle);
+        }
+
+        // 0 for not looked up yet, -1 for no slot, or the slot plus one
+        Handles handles = mHandles;
+        if (handles != null && handles.index == index && handle < handles.slots.length) {
+            int slot = handles.slots[handle];
+            if (slot > 0) {
+                return slot - 1;
+            }
+            if (slot < 0 && !create) {
+                return -1;
+            }
+        }
+
+        return lookUpSlot(index, handle, create);
+    }
+
+    /**
+     * Looks up the slot of the item with the given handle, and caches it.
+     * The cache is only filled (and replaced) with the lock held, like slots
+     * are made, so a reader that found no slot can't overwrite the slot a
+     * writer just made.
+     */
+    private synchronized int lookUpSlot(ModelIndex index, int handle, boolean create) {
+        Handles handles = mHandles;
+        if (handles == null || handles.index != index || handle >= handles.slots.length) {
+            handles = new Handles(index, handles != null && handles.index == index ? handles.slots : null);
+            mHandles = handles;
+        }
+
+        int slot = getSlot(index.getItemId(handle), create);
+        handles.slots[handle] = slot >= 0 ? slot + 1 : -1;
+        return slot;
+    }
+
+    private synchronized int getSlot(String itemId, boolean create) {
+        Integer slot = mSlots.get(itemId);
+        if (slot != null) {
+            return slot;
+        }
+        if (!create) {
+            return -1;
+        }
+
+        int newSlot = mItemIds.size();
+        if (newSlot >= mCapacity) {
+            grow(mCapacity * 2);
+        }
+        try {
+            // the id goes first, a slot without one is never read
+            mIdsOut.writeUTF(itemId);
+            mIdsOut.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to add a mapped state slot", e);
+        }
+        mSlots.put(itemId, newSlot);
+        mItemIds.add(itemId);
+        return newSlot;
+    }
+
+    private void setSlotValue(int slot, int column, int category, long value) {
+        synchronized (lockFor(slot)) {
+            MappedByteBuffer buffer = bufferFor(slot);
+            int offset = offsetOf(slot);
+            long bits = (buffer.getLong(offset) & COLUMN_MASK) | (1L << column);
+            buffer.putLong(offset + (1 + column) * 8, value);
+            writeSlot(buffer, slot, category, bits);
+        }
+    }
+
+    /**
+     * Retrieves a mapping of the file that covers the given slot. The slot
+     * may have been looked up through a handle without synchronizing with
+     * the thread that grew the file for it.
+     */
+    private MappedByteBuffer bufferFor(int slot) {
+        MappedByteBuffer buffer = mBuffer;
+        if (offsetOf(slot) + SLOT_BYTES > buffer.capacity()) {
+            synchronized (this) {
+                buffer = mBuffer;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes the header and checksum of a slot. Called with the slot's lock
+     * held.
+     */
+    private void writeSlot(MappedByteBuffer buffer, int slot, int category, long bits) {
+        int offset = offsetOf(slot);
+        long header = bits == 0 ? 0 : ((long) category << CATEGORY_SHIFT) | bits;
+        buffer.putLong(offset, header);
+        buffer.putLong(offset + (SLOT_LONGS - 1) * 8, header == 0 ? 0 : checksum(buffer, slot));
+    }
+
+    private void grow(int capacity) {
+        try {
+            map(capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow the mapped state", e);
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        long length = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) SLOT_LONGS);
+        buffer.putInt(8, capacity);
+        mCapacity = capacity;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Writes the ids file again with just the ids that have slots. It's
+     * written to a temporary file first and then moved into place, so a
+     * crash never leaves the ids of existing slots behind.
+     */
+    private void rewriteIds() throws IOException {
+        File idsFile = getIdsFile();
+        File tmpFile = new File(idsFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            for (String itemId : mItemIds) {
+                out.writeUTF(itemId);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(idsFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to move the mapped state ids into place");
+        }
+    }
+
+    private File getIdsFile() {
+        return new File(mFile.getPath() + ".ids");
+    }
+
+    private Object lockFor(int slot) {
+        return mLocks[slot & (STRIPES - 1)];
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static int categoryOf(long header) {
+        return (int) (header >>> CATEGORY_SHIFT);
+    }
+
+    private static long checksum(MappedByteBuffer buffer, int slot) {
+        int offset = offsetOf(slot);
+        long checksum = slot * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < SLOT_LONGS - 1; i++) {
+            checksum = (checksum ^ buffer.getLong(offset + i * 8)) * 0xbf58476d1ce4e5b9L;
+            checksum ^= checksum >>> 31;
+        }
+        // never 0, which marks an empty slot
+        return checksum != 0 ? checksum : 1;
+    }
+
+    /**
+     * The slots of the items of one model index, by handle.
+     */
+    private static class Handles {
+
+        Handles(ModelIndex index, int[] oldSlots) {
+            this.index = index;
+            slots = new int[index.getHandleCount()];
+            if (oldSlots != null) {
+                System.arraycopy(oldSlots, 0, slots, 0, Math.min(oldSlots.length, slots.length));
+            }
+        }
+
+        final ModelIndex index;
+        final int[] slots;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA MappedState";
+
+    private static final int MAGIC = 0x4c554d53; // "LUMS"
+    private static final short VERSION = 1;
+
+    static final int MAX_COLUMNS = 6;
+    private static final int SLOT_LONGS = MAX_COLUMNS + 2;
+    private static final int SLOT_BYTES = SLOT_LONGS * 8;
+    private static final int HEADER_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int CATEGORY_SHIFT = 56;
+    private static final long COLUMN_MASK = (1L << MAX_COLUMNS) - 1;
+
+    // a power of two
+    private static final int STRIPES = 16;
+
+    private static final List<String> CATEGORY_PREFIXES = Arrays.asList(
+            LevelStorage.DB_LEVEL_KEY_PREFIX, MissionStorage.DB_MISSION_KEY_PREFIX,
+            ScoreStorage.DB_SCORE_KEY_PREFIX, GateStorage.DB_GATE_KEY_PREFIX);
+
+    private final File mFile;
+    private final Object[] mLocks;
+    private FileChannel mChannel;
+    private DataOutputStream mIdsOut;
+    private volatile MappedByteBuffer mBuffer;
+    private volatile int mCapacity;
+    private volatile Handles mHandles;
+
+    // guarded by this
+    private final HashMap<String, Integer> mSlots = new HashMap<String, Integer>();
+    private final List<String> mItemIds = new ArrayList<String>();
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <code>StateStorage</code> that keeps everything in a concurrent hash
+ * map, and loses it with the process. Listing the keys with a prefix goes
+ * through all the keys, which LevelUp only does once in a while.
+ */
+public class MemoryStateStorage implements StateStorage {
+
+    @Override
+    public String getValue(String key) {
+        return mValues.get(key);
+    }
+
+    @Override
+    public void setValue(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    @Override
+    public void deleteKeyValue(String key) {
+        mValues.remove(key);
+    }
+
+    @Override
+    public Map<String, String> getValues(Collection<String> keys) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = mValues.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void setValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                mValues.put(entry.getKey(), entry.getValue());
+            } else {
+                mValues.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public List<String> getKeys(String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : mValues.keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Retrieves all the keys and values, for subclasses to store.
+     *
+     * @return the live map of keys to values
+     */
+    protected Map<String, String> getAll() {
+        return mValues;
+    }
+
+
+    /** Private Members **/
+
+    private final ConcurrentHashMap<String, String> mValues = new ConcurrentHashMap<String, String>();
+}
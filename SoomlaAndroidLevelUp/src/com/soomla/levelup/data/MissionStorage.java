@@ -18,8 +18,6 @@ package com.soomla.levelup.data;
 
 import android.text.TextUtils;
 
-import com.soomla.BusProvider;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.LevelUp;
 import com.soomla.levelup.events.MissionCompletedEvent;
 import com.soomla.levelup.events.MissionCompletionRevokedEvent;
@@ -42,6 +40,13 @@ public class MissionStorage {
         return keyMissions(missionId, "timesCompleted");
     }
 
+    /**
+     * Retrieves all the keys the state of the given mission may be stored under.
+     */
+    static String[] stateKeys(String missionId) {
+        return new String[] { keyMissionTimesCompleted(missionId) };
+    }
+
     /**
      * Sets the completion status of the given mission.
      *
@@ -53,20 +58,56 @@ public class MissionStorage {
     }
 
     public static void setCompleted(String missionId, boolean completed, boolean notify) {
-        int total = getTimesCompleted(missionId) + (completed ? 1 : -1);
-        if (total < 0) {
-            total = 0;
+        int missionHandle = ItemKeys.getHandle(missionId);
+        if (missionHandle != ModelIndex.NO_HANDLE) {
+            setCompleted(missionHandle, completed, notify);
+            return;
         }
+        setCompleted(missionId, keyMissionTimesCompleted(missionId), completed, notify);
+    }
 
-        String key = keyMissionTimesCompleted(missionId);
-        KeyValueStorage.setValue(key, String.valueOf(total));
+    /**
+     * Sets the completion status of the mission with the given handle.
+     *
+     * @param missionHandle the handle of the mission in the model index
+     * @param completed the completed status
+     */
+    public static void setCompleted(int missionHandle, boolean completed) {
+        setCompleted(missionHandle, completed, true);
+    }
+
+    public static void setCompleted(int missionHandle, boolean completed, boolean notify) {
+        TIMES_COMPLETED.add(missionHandle, completed ? 1 : -1);
 
         if (notify) {
-            if (completed) {
-                BusProvider.getInstance().post(new MissionCompletedEvent(missionId));
-            } else {
-                BusProvider.getInstance().post(new MissionCompletionRevokedEvent(missionId));
+            postCompletion(KEYS.getItemId(missionHandle), completed);
+        }
+    }
+
+    private static void setCompleted(String missionId, String key, boolean completed, boolean notify) {
+        synchronized (KeyLocks.forKey(key)) {
+            int oldTotal = getTimesCompletedForKey(key);
+            int total = oldTotal + (completed ? 1 : -1);
+            if (total < 0) {
+                total = 0;
             }
+
+            // in a transaction, applied to the count as it is on commit
+            if (!StateTransaction.count(key, total - oldTotal)) {
+                LUKeyValueStorage.setValue(key, NumberCodec.encode(total));
+            }
+        }
+
+        if (notify) {
+            postCompletion(missionId, completed);
+        }
+    }
+
+    private static void postCompletion(String missionId, boolean completed) {
+        if (completed) {
+            StateTransaction.post(new MissionCompletedEvent(missionId));
+        } else {
+            StateTransaction.post(new MissionCompletionRevokedEvent(missionId));
         }
     }
 
@@ -81,6 +122,17 @@ public class MissionStorage {
         return getTimesCompleted(missionId) > 0;
     }
 
+    /**
+     * Checks whether the mission with the given handle is complete.
+     *
+     * @param missionHandle the handle of the mission in the model index
+     * @return <code>true</code> if the mission's status is complete,
+     * <code>false</code> otherwise
+     */
+    public static boolean isCompleted(int missionHandle) {
+        return getTimesCompleted(missionHandle) > 0;
+    }
+
     /**
      * Fetches the number of times the mission has been completed.
      *
@@ -88,18 +140,51 @@ public class MissionStorage {
      * @return the number of times the mission has been completed, 0 by default.
      */
     public static int getTimesCompleted(String missionId) {
-        String key = keyMissionTimesCompleted(missionId);
-        String val = KeyValueStorage.getValue(key);
+        int missionHandle = ItemKeys.getHandle(missionId);
+        if (missionHandle != ModelIndex.NO_HANDLE) {
+            return getTimesCompleted(missionHandle);
+        }
+        return getTimesCompletedForKey(keyMissionTimesCompleted(missionId));
+    }
+
+    /**
+     * Fetches the number of times the mission with the given handle has been
+     * completed.
+     *
+     * @param missionHandle the handle of the mission in the model index
+     * @return the number of times the mission has been completed, 0 by default.
+     */
+    public static int getTimesCompleted(int missionHandle) {
+        return TIMES_COMPLETED.getInt(missionHandle);
+    }
+
+    private static int getTimesCompletedForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
+        int count = StateTransaction.pendingCount(key);
         if (TextUtils.isEmpty(val)) {
-            return 0;
+            return count;
         }
-        return Integer.parseInt(val);
+        return (int) NumberCodec.decodeLong(val) + count;
     }
 
     public static void setTimesCompleted(String missionId, int timesCompleted) {
+        int missionHandle = ItemKeys.getHandle(missionId);
+        if (missionHandle != ModelIndex.NO_HANDLE) {
+            setTimesCompleted(missionHandle, timesCompleted);
+            return;
+        }
+
         String key = keyMissionTimesCompleted(missionId);
-        KeyValueStorage.setValue(key, String.valueOf(timesCompleted));
+        synchronized (KeyLocks.forKey(key)) {
+            LUKeyValueStorage.setValue(key, NumberCodec.encode(timesCompleted));
+        }
+    }
+
+    public static void setTimesCompleted(int missionHandle, int timesCompleted) {
+        TIMES_COMPLETED.setInt(missionHandle, timesCompleted);
     }
 
     public static final String DB_MISSION_KEY_PREFIX = LevelUp.DB_KEY_PREFIX + "missions.";
+    private static final ItemKeys KEYS = new ItemKeys(DB_MISSION_KEY_PREFIX, "timesCompleted");
+    private static final StateColumn TIMES_COMPLETED = StateColumn.ofInt(KEYS, 0, 0);
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.content.Context;
+
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import com.soomla.levelup.LevelUp;
+import com.soomla.levelup.LevelUpConfig;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the LevelUp model in memory so it is loaded once and not on every
+ * lookup.
+ *
+ * The model string is written to <code>KeyValueStorage</code> by the game
+ * engine bridge, which then calls <code>WorldStorage.initLevelUp()</code>.
+ * (With another <code>LevelUpConfig.stateStorage</code>, the model is read
+ * from there, and must be saved with <code>LevelUp.updateLevelUpModel</code>.)
+ * The cache re-validates itself against the stored string on the first access
+ * after such a call (or after {@link #invalidate()}), and bumps its version
+ * only when the stored string actually changed.
+ *
+ * The index LevelUp works with is loaded by <code>ModelLoader</code> straight
+ * from the model text, and saved as a <code>ModelSnapshot</code> in the app's
+ * files dir. As long as the model's fingerprint matches the snapshot's, later
+ * cold starts read the snapshot instead of parsing the JSON. The org.json
+ * tree is only parsed if someone asks for it through {@link #getModel()}.
+ * With <code>LevelUpConfig.lazyModelLoading</code> the index is loaded lazily
+ * instead, and no snapshot is used.
+ *
+ * Once validated, the index is published through a volatile field, so
+ * {@link #getIndex()} (which the storage classes call on every access) doesn't
+ * take the cache's lock, and isn't held up by an update being diffed.
+ *
+ * NOTE: the returned <code>JSONObject</code> is shared between all callers
+ * and must be treated as read-only.
+ */
+public class ModelCache {
+
+    /**
+     * Fetches the parsed LevelUp model.
+     *
+     * @return the shared parsed model, or <code>null</code> if no model was
+     * saved or it could not be parsed
+     */
+    public static synchronized JSONObject getModel() {
+        if (!mValidated) {
+            reload();
+        }
+        if (mModelJSON == null && mIndex != null) {
+            String model = LUKeyValueStorage.getStorage().getValue(DB_MODEL_KEY);
+            if (model == null || fingerprint(model) != mFingerprint) {
+                // changed under our feet, start over
+                reload();
+                return getModel();
+            }
+
+            try {
+                mModelJSON = new JSONObject(model);
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Unable to parse LevelUp model into JSON");
+            }
+        }
+        return mModelJSON;
+    }
+
+    /**
+     * Retrieves the version of the cached model. The version changes every
+     * time a different model string is loaded, so it can be used to key
+     * anything derived from the model.
+     *
+     * @return the current model version
+     */
+    public static synchronized int getVersion() {
+        if (!mValidated) {
+            reload();
+        }
+        return mVersion;
+    }
+
+    /**
+     * Fetches the index of the LevelUp model. The index is loaded once per
+     * model version, and holds no JSON definitions.
+     *
+     * @return the index of the current model, or <code>null</code> if there
+     * is no valid model
+     */
+    public static ModelIndex getIndex() {
+        ModelIndex index = mPublishedIndex;
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (ModelCache.class) {
+            if (!mValidated) {
+                reload();
+            }
+            return mIndex;
+        }
+    }
+
+    /**
+     * Fetches an index with JSON definitions for the given model. If it is
+     * the cached model, its index is built once and cached, otherwise a new
+     * index is built.
+     *
+     * @param model the model to index
+     * @return an index of the given model
+     */
+    public static synchronized ModelIndex getIndex(JSONObject model) {
+        if (model == getModel()) {
+            if (mJSONIndex == null) {
+                mJSONIndex = new ModelIndex(model);
+            }
+            return mJSONIndex;
+        }
+        return new ModelIndex(model);
+    }
+
+    /**
+     * Replaces the stored model with the given one, re-indexing only the
+     * worlds that changed. If the previous model can't be compared with the
+     * new one, the new model is loaded from scratch and the two indexes are
+     * compared item by item instead. The new model is only stored once it
+     * was loaded, so an invalid one leaves the previous model in place.
+     *
+     * @param model the new model string
+     * @return the update, with the ids that were added and removed and the
+     * keys of any state that was orphaned, or <code>null</code> if the new
+     * model couldn't be loaded
+     */
+    public static synchronized ModelUpdate update(String model) {
+        if (!mValidated) {
+            reload();
+        }
+
+        String oldModel = mIndex != null ? LUKeyValueStorage.getStorage().getValue(DB_MODEL_KEY) : null;
+        ModelIndex oldIndex = mIndex;
+
+        ModelUpdate update = null;
+        if (oldModel != null && fingerprint(oldModel) == mFingerprint) {
+            try {
+                update = ModelUpdate.diff(oldIndex, oldModel, model);
+                SoomlaUtils.LogDebug(TAG, "model updated, " + update.getChangedWorldIds().size() + " worlds changed");
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Unable to update LevelUp model, loading it from scratch. error: " + e.getLocalizedMessage());
+            }
+        }
+
+        if (update == null) {
+            try {
+                ModelIndex index = LevelUpConfig.lazyModelLoading ?
+                        ModelLoader.loadLazily(model) : ModelLoader.load(model);
+                update = ModelUpdate.diff(oldIndex, index);
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Unable to load LevelUp model, keeping the previous one. error: " + e.getLocalizedMessage());
+                return null;
+            }
+        }
+
+        LUKeyValueStorage.getStorage().setValue(DB_MODEL_KEY, model);
+
+        long fingerprint = fingerprint(model);
+        if (!mHasModel || fingerprint != mFingerprint) {
+            mHasModel = true;
+            mFingerprint = fingerprint;
+            mVersion++;
+            clear();
+            mIndex = update.getIndex();
+            mPublishedIndex = mIndex;
+
+            File snapshotFile = getSnapshotFile();
+            if (snapshotFile != null && !LevelUpConfig.lazyModelLoading) {
+                ModelSnapshot.write(snapshotFile, mIndex, fingerprint);
+            }
+        }
+        return update;
+    }
+
+    /**
+     * Marks the cached model as stale. The stored model string will be
+     * compared against the cached one on next access, and reloaded only if
+     * it changed.
+     */
+    public static synchronized void invalidate() {
+        mValidated = false;
+        mPublishedIndex = null;
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a fingerprint of the given model string.
+     *
+     * @param model the model string
+     * @return the model's fingerprint
+     */
+    public static long fingerprint(String model) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < model.length(); i++) {
+            hash ^= model.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void reload() {
+        load();
+        mPublishedIndex = mIndex;
+    }
+
+    private static void load() {
+        mValidated = true;
+
+        String model = LUKeyValueStorage.getStorage().getValue(DB_MODEL_KEY);
+        if (model == null) {
+            if (mHasModel) {
+                mVersion++;
+            }
+            mHasModel = false;
+            clear();
+            return;
+        }
+
+        long fingerprint = fingerprint(model);
+        if (mHasModel && fingerprint == mFingerprint) {
+            return;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "model changed, loading (" + model.length() + " chars)");
+
+        mHasModel = true;
+        mFingerprint = fingerprint;
+        mVersion++;
+        clear();
+
+        if (LevelUpConfig.lazyModelLoading) {
+            // a snapshot holds the whole model, which is what lazy loading avoids
+            try {
+                mIndex = ModelLoader.loadLazily(model);
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Unable to load LevelUp model. error: " + e.getLocalizedMessage());
+            }
+            return;
+        }
+
+        File snapshotFile = getSnapshotFile();
+        if (snapshotFile != null) {
+            mIndex = ModelSnapshot.read(snapshotFile, fingerprint);
+            if (mIndex != null) {
+                SoomlaUtils.LogDebug(TAG, "model index loaded from snapshot");
+                return;
+            }
+        }
+
+        try {
+            mIndex = ModelLoader.load(model);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to load LevelUp model. error: " + e.getLocalizedMessage());
+            return;
+        }
+
+        if (snapshotFile != null) {
+            ModelSnapshot.write(snapshotFile, mIndex, fingerprint);
+        }
+    }
+
+    private static File getSnapshotFile() {
+        Context context = SoomlaApp.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        return new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    private static void clear() {
+        mPublishedIndex = null;
+        mIndex = null;
+        mModelJSON = null;
+        mJSONIndex = null;
+    }
+
+    private static boolean mValidated = false;
+    private static boolean mHasModel = false;
+    private static long mFingerprint;
+    private static int mVersion = 0;
+    private static ModelIndex mIndex;
+    // mIndex once validated, read without locking
+    private static volatile ModelIndex mPublishedIndex;
+    private static JSONObject mModelJSON;
+    private static ModelIndex mJSONIndex;
+
+    public static final String DB_MODEL_KEY = LevelUp.DB_KEY_PREFIX + "model";
+    private static final String SNAPSHOT_FILE_NAME = DB_MODEL_KEY + ".bin";
+    private static final String TAG = "SOOMLA ModelCache";
+}
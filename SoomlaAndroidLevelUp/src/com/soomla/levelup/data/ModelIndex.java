@@ -0,0 +1,972 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.text.TextUtils;
+
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index over a LevelUp model, mapping item ids to their types and to their
+ * place in the worlds hierarchy.
+ *
+ * The index is built by walking the worlds hierarchy exactly once, either over
+ * a parsed <code>JSONObject</code> (see {@link #ModelIndex(JSONObject)}) or
+ * straight from the model text by <code>ModelLoader</code>. Missions nested in
+ * <code>Challenge</code>s and gates nested in
+ * <code>GatesListAND</code>/<code>GatesListOR</code> are resolved during that
+ * same walk. Once built the index is never modified, so its tables are handed
+ * out as read-only views.
+ *
+ * Type checks such as {@link #isLevel(String)} are a single hash lookup.
+ * Every item also records the world it belongs to, so finding the world that
+ * owns an item, or walking up to the main world, costs O(depth).
+ *
+ * Each item is given a dense <code>int</code> handle as it's indexed, which
+ * the storage classes accept in place of the item id and which can be used
+ * to keep per-item data in arrays. Handles are stable for the lifetime of an
+ * index and are carried over by <code>ModelUpdate</code>, which keeps the
+ * handle of an item even while it's re-indexed, and leaves the handles of
+ * removed items unused. They differ between loads, so they must not be
+ * persisted.
+ * The JSON definitions of the items are only kept when the index was built
+ * from a <code>JSONObject</code>.
+ *
+ * A lazily loaded index starts out with only some of its worlds indexed, and
+ * indexes the subtree of a pending world the first time it's needed. Lookups
+ * of an item id that wasn't seen yet load pending worlds until it's found
+ * (unless the loader saw that it isn't in the model at all), and
+ * whole-model queries (such as {@link #getWorldIds()}) load everything.
+ * Once everything is loaded the index behaves like an eagerly built one.
+ *
+ * An index updated by <code>ModelUpdate</code> is an overlay on the index it
+ * was updated from: it holds only the items that were re-indexed (or
+ * removed), and looks everything else up in the shared base. Its whole-model
+ * lists are put together in model order the first time they're needed.
+ * Overlays are flattened into a plain index every few updates, so lookups
+ * never go through more than {@link #MAX_OVERLAYS} of them.
+ */
+public class ModelIndex {
+
+    /**
+     * The kinds of items a LevelUp model is made of.
+     */
+    public enum ItemType {
+        WORLD, LEVEL, MISSION, CHALLENGE, GATE, GATES_LIST, SCORE
+    }
+
+    /**
+     * Indexes the subtree of a world that was left pending by a lazy loader.
+     */
+    interface SubtreeLoader {
+        void loadSubtree(ModelIndex index, String worldId) throws IOException;
+    }
+
+    /**
+     * Constructor
+     * Walks the given model and indexes all of its items, keeping their JSON
+     * definitions.
+     *
+     * @param model the LevelUp model to index
+     */
+    public ModelIndex(JSONObject model) {
+        mModel = model;
+        mSubtreeLoader = null;
+        mBase = null;
+        mBaseHandleCount = 0;
+        mDepth = 0;
+        mWorlds = new HashMap<String, JSONObject>();
+        mMissions = new HashMap<String, JSONObject>();
+        mGates = new HashMap<String, JSONObject>();
+        mScores = new HashMap<String, JSONObject>();
+
+        JSONObject mainWorld = model.optJSONObject("mainWorld");
+        if (mainWorld != null) {
+            indexWorld(mainWorld, null, null);
+        } else {
+            SoomlaUtils.LogError(TAG, "couldn't get mainWorld from model");
+        }
+    }
+
+    /**
+     * Constructor
+     * Creates an empty index without JSON definitions, to be filled by a
+     * model loader.
+     */
+    ModelIndex() {
+        this((SubtreeLoader) null);
+    }
+
+    /**
+     * Constructor
+     * Creates an empty index without JSON definitions, to be filled lazily
+     * by the given subtree loader.
+     *
+     * @param subtreeLoader the loader of pending worlds, or <code>null</code>
+     *                      for an index that's filled up front
+     */
+    ModelIndex(SubtreeLoader subtreeLoader) {
+        mModel = null;
+        mSubtreeLoader = subtreeLoader;
+        mBase = null;
+        mBaseHandleCount = 0;
+        mDepth = 0;
+        mWorlds = null;
+        mMissions = null;
+        mGates = null;
+        mScores = null;
+    }
+
+    /**
+     * Constructor
+     * Creates an empty overlay on the given index, without JSON definitions,
+     * to be updated by <code>ModelUpdate</code>. The base must be fully
+     * loaded, and is flattened first if it's already too many overlays deep.
+     *
+     * @param base the index to update
+     */
+    ModelIndex(ModelIndex base) {
+        mModel = null;
+        mSubtreeLoader = null;
+        mWorlds = null;
+        mMissions = null;
+        mGates = null;
+        mScores = null;
+
+        if (base.mDepth >= MAX_OVERLAYS) {
+            base = flatten(base);
+        }
+        mBase = base;
+        mBaseHandleCount = base.handleCount();
+        mDepth = base.mDepth + 1;
+        mMainWorldId = base.mMainWorldId;
+        mListsBuilt = false;
+    }
+
+    /**
+     * Retrieves the model this index was built from.
+     *
+     * @return the indexed model, or <code>null</code> if the index was loaded
+     * without JSON definitions
+     */
+    public JSONObject getModel() {
+        return mModel;
+    }
+
+    /**
+     * Retrieves the ids of all worlds (including levels) in the model.
+     *
+     * @return a read-only list of world ids in model order
+     */
+    public List<String> getWorldIds() {
+        loadAll();
+        buildLists();
+        return Collections.unmodifiableList(mWorldIds);
+    }
+
+    /**
+     * Retrieves the ids of all missions in the model, including missions
+     * nested in challenges.
+     *
+     * @return a read-only list of mission ids
+     */
+    public List<String> getMissionIds() {
+        loadAll();
+        buildLists();
+        return Collections.unmodifiableList(mMissionIds);
+    }
+
+    /**
+     * Retrieves the ids of all gates in the model, including gates nested in
+     * gate lists.
+     *
+     * @return a read-only list of gate ids
+     */
+    public List<String> getGateIds() {
+        loadAll();
+        buildLists();
+        return Collections.unmodifiableList(mGateIds);
+    }
+
+    /**
+     * Retrieves the ids of all scores in the model.
+     *
+     * @return a read-only list of score ids
+     */
+    public List<String> getScoreIds() {
+        loadAll();
+        buildLists();
+        return Collections.unmodifiableList(mScoreIds);
+    }
+
+    /**
+     * Retrieves all worlds (including levels) in the model.
+     *
+     * @return a read-only map of world id to world JSON, or <code>null</code>
+     * if the index was loaded without JSON definitions
+     */
+    public Map<String, JSONObject> getWorlds() {
+        return readOnly(mWorlds);
+    }
+
+    /**
+     * Retrieves all missions in the model, including missions nested in
+     * challenges.
+     *
+     * @return a read-only map of mission id to mission JSON, or
+     * <code>null</code> if the index was loaded without JSON definitions
+     */
+    public Map<String, JSONObject> getMissions() {
+        return readOnly(mMissions);
+    }
+
+    /**
+     * Retrieves all gates in the model, including gates nested in gate lists.
+     *
+     * @return a read-only map of gate id to gate JSON, or <code>null</code>
+     * if the index was loaded without JSON definitions
+     */
+    public Map<String, JSONObject> getGates() {
+        return readOnly(mGates);
+    }
+
+    /**
+     * Retrieves all scores in the model.
+     *
+     * @return a read-only map of score id to score JSON, or <code>null</code>
+     * if the index was loaded without JSON definitions
+     */
+    public Map<String, JSONObject> getScores() {
+        return readOnly(mScores);
+    }
+
+    /**
+     * Checks whether the index is fully loaded, as opposed to a lazily loaded
+     * index with worlds still pending.
+     *
+     * @return <code>true</code> if every world in the model is indexed
+     */
+    boolean isFullyLoaded() {
+        return mFullyLoaded;
+    }
+
+    /**
+     * Retrieves the type of the given item.
+     *
+     * @param itemId the id of the item to check
+     * @return the item's type, or <code>null</code> if it's not in the model
+     */
+    public ItemType getItemType(String itemId) {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(itemId);
+                return typeOf(itemId);
+            }
+        }
+        return typeOf(itemId);
+    }
+
+    /**
+     * Retrieves the type of the item with the given handle.
+     *
+     * @param handle the handle of the item to check
+     * @return the item's type, or <code>null</code> if there is no item with
+     * the given handle
+     */
+    public ItemType getItemType(int handle) {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                return handleTypeOf(handle);
+            }
+        }
+        return handleTypeOf(handle);
+    }
+
+    /**
+     * Retrieves the handle of the given item.
+     *
+     * @param itemId the id of the item
+     * @return the item's handle, or {@link #NO_HANDLE} if it's not in the
+     * model
+     */
+    public int getHandle(String itemId) {
+        Integer handle;
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(itemId);
+                handle = handleOf(itemId);
+            }
+        } else {
+            handle = handleOf(itemId);
+        }
+        return handle != null && handleTypeOf(handle) != null ? handle : NO_HANDLE;
+    }
+
+    /**
+     * Retrieves the id of the item with the given handle.
+     *
+     * @param handle the handle of the item
+     * @return the item's id, or <code>null</code> if there is no item with
+     * the given handle
+     */
+    public String getItemId(int handle) {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                return itemId(handle);
+            }
+        }
+        return itemId(handle);
+    }
+
+    private String itemId(int handle) {
+        return handleTypeOf(handle) != null ? itemIdOf(handle) : null;
+    }
+
+    /**
+     * Retrieves the number of handles given out so far. All handles are
+     * lower than this, so it can be used to size arrays indexed by handle.
+     * A lazily loaded index gives out more handles as it loads.
+     *
+     * @return the number of handles
+     */
+    public int getHandleCount() {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                return handleCount();
+            }
+        }
+        return handleCount();
+    }
+
+    /**
+     * Checks if the given world is a level.
+     *
+     * @param worldId the id of the world to check
+     * @return <code>true</code> if the world is a level, <code>false</code>
+     * otherwise
+     */
+    public boolean isLevel(String worldId) {
+        return getItemType(worldId) == ItemType.LEVEL;
+    }
+
+    /**
+     * Retrieves the ids of the worlds directly inside the given world.
+     *
+     * @param worldId the id of the containing world
+     * @return the ids of the inner worlds in model order, empty if there are
+     * none or the world is not in the model
+     */
+    public List<String> getInnerWorldIds(String worldId) {
+        List<String> innerWorldIds;
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(worldId);
+                loadWorld(worldId);
+                innerWorldIds = innerWorldsOf(worldId);
+            }
+        } else {
+            innerWorldIds = innerWorldsOf(worldId);
+        }
+        if (innerWorldIds == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(innerWorldIds);
+    }
+
+    /**
+     * Retrieves the ids of all the levels under the given world, at any
+     * depth.
+     *
+     * @param worldId the id of the containing world
+     * @return the ids of the levels in model order
+     */
+    public List<String> getLevelIds(String worldId) {
+        List<String> levelIds = new ArrayList<String>();
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(worldId);
+                collectLevelIds(worldId, levelIds);
+            }
+        } else {
+            collectLevelIds(worldId, levelIds);
+        }
+        return levelIds;
+    }
+
+    /**
+     * Retrieves the world the given item belongs to. For a world this is its
+     * parent world. Missions nested in challenges and gates nested in gate
+     * lists belong to the world holding the challenge or gate list.
+     *
+     * @param itemId the id of the item
+     * @return the id of the owning world, or <code>null</code> for the main
+     * world and for items not in the model
+     */
+    public String getOwnerWorldId(String itemId) {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(itemId);
+                return ownerOf(itemId);
+            }
+        }
+        return ownerOf(itemId);
+    }
+
+    /**
+     * Retrieves the parent of the given world.
+     *
+     * @param worldId the id of the world
+     * @return the id of the parent world, or <code>null</code> for the main
+     * world and for ids that are not worlds
+     */
+    public String getParentWorldId(String worldId) {
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(worldId);
+                return parentWorldId(worldId);
+            }
+        }
+        return parentWorldId(worldId);
+    }
+
+    private String parentWorldId(String worldId) {
+        if (!isWorld(typeOf(worldId))) {
+            return null;
+        }
+        return ownerOf(worldId);
+    }
+
+    /**
+     * Retrieves the worlds containing the given item, starting with the
+     * world that owns it and ending with the main world.
+     *
+     * @param itemId the id of the item
+     * @return the ids of the item's ancestor worlds, innermost first, empty
+     * for the main world and for items not in the model
+     */
+    public List<String> getAncestorWorldIds(String itemId) {
+        List<String> ancestorIds = new ArrayList<String>();
+        if (!mFullyLoaded) {
+            synchronized (this) {
+                loadItem(itemId);
+                collectAncestorIds(itemId, ancestorIds);
+            }
+        } else {
+            collectAncestorIds(itemId, ancestorIds);
+        }
+        return ancestorIds;
+    }
+
+    private void collectAncestorIds(String itemId, List<String> ancestorIds) {
+        // owners are always indexed before the items they own
+        String worldId = ownerOf(itemId);
+        while (worldId != null) {
+            ancestorIds.add(worldId);
+            worldId = ownerOf(worldId);
+        }
+    }
+
+    private void collectLevelIds(String worldId, List<String> levelIds) {
+        if (!mFullyLoaded) {
+            loadWorld(worldId);
+        }
+        List<String> innerWorldIds = innerWorldsOf(worldId);
+        if (innerWorldIds == null) {
+            return;
+        }
+        for (String innerWorldId : innerWorldIds) {
+            if (typeOf(innerWorldId) == ItemType.LEVEL) {
+                levelIds.add(innerWorldId);
+            }
+            collectLevelIds(innerWorldId, levelIds);
+        }
+    }
+
+
+    /** Overlays **/
+
+    // An overlay keeps the items it re-indexed in its own tables, where a
+    // removed item maps to null, and looks up anything else in its base.
+    // Handles below mBaseHandleCount belong to the base, so the overlay's
+    // mItemIds holds only the handles it gave out itself.
+
+    private ItemType typeOf(String itemId) {
+        if (mBase == null || mTypes.containsKey(itemId)) {
+            return mTypes.get(itemId);
+        }
+        return mBase.typeOf(itemId);
+    }
+
+    private String ownerOf(String itemId) {
+        if (mBase == null || mOwners.containsKey(itemId)) {
+            return mOwners.get(itemId);
+        }
+        return mBase.ownerOf(itemId);
+    }
+
+    private List<String> innerWorldsOf(String worldId) {
+        if (mBase == null || mInnerWorlds.containsKey(worldId)) {
+            return mInnerWorlds.get(worldId);
+        }
+        return mBase.innerWorldsOf(worldId);
+    }
+
+    private Integer handleOf(String itemId) {
+        Integer handle = mHandles.get(itemId);
+        if (handle == null && mBase != null) {
+            handle = mBase.handleOf(itemId);
+        }
+        return handle;
+    }
+
+    private int handleCount() {
+        return mBaseHandleCount + mItemIds.size();
+    }
+
+    private String itemIdOf(int handle) {
+        if (handle < mBaseHandleCount) {
+            return mBase.itemIdOf(handle);
+        }
+        return mItemIds.get(handle - mBaseHandleCount);
+    }
+
+    private ItemType handleTypeOf(int handle) {
+        if (handle < 0 || handle >= handleCount()) {
+            return null;
+        }
+        if (mBase == null) {
+            return mHandleTypes.get(handle);
+        }
+        return typeOf(itemIdOf(handle));
+    }
+
+    /**
+     * Puts together the whole-model lists of an overlay, in model order:
+     * worlds depth first from the main world, and each world's own items
+     * where the world is.
+     */
+    private void buildLists() {
+        if (mListsBuilt) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mListsBuilt) {
+                return;
+            }
+
+            List<String> worldIds = new ArrayList<String>();
+            if (mMainWorldId != null && isWorld(typeOf(mMainWorldId))) {
+                collectWorldIds(mMainWorldId, worldIds);
+            }
+            orderByWorld(mMissionIds, mBase.getMissionIds(), worldIds, ItemType.MISSION, ItemType.CHALLENGE);
+            orderByWorld(mGateIds, mBase.getGateIds(), worldIds, ItemType.GATE, ItemType.GATES_LIST);
+            orderByWorld(mScoreIds, mBase.getScoreIds(), worldIds, ItemType.SCORE, ItemType.SCORE);
+            mWorldIds.clear();
+            mWorldIds.addAll(worldIds);
+            mListsBuilt = true;
+        }
+    }
+
+    private void collectWorldIds(String worldId, List<String> worldIds) {
+        worldIds.add(worldId);
+        List<String> innerWorldIds = innerWorldsOf(worldId);
+        if (innerWorldIds == null) {
+            return;
+        }
+        for (String innerWorldId : innerWorldIds) {
+            if (isWorld(typeOf(innerWorldId))) {
+                collectWorldIds(innerWorldId, worldIds);
+            }
+        }
+    }
+
+    /**
+     * Replaces the given overlay list with the items of both lists that are
+     * still of the given types, grouped by world in world order. The overlay
+     * list goes first, so re-indexed worlds keep their items' new order.
+     */
+    private void orderByWorld(List<String> categoryIds, List<String> baseIds, List<String> worldIds,
+                              ItemType type, ItemType otherType) {
+        HashMap<String, List<String>> worldItems = new HashMap<String, List<String>>();
+        HashSet<String> seen = new HashSet<String>();
+        for (List<String> itemIds : Arrays.asList(categoryIds, baseIds)) {
+            for (String itemId : itemIds) {
+                ItemType itemType = typeOf(itemId);
+                String ownerId = ownerOf(itemId);
+                if ((itemType != type && itemType != otherType) || ownerId == null || !seen.add(itemId)) {
+                    continue;
+                }
+                List<String> items = worldItems.get(ownerId);
+                if (items == null) {
+                    items = new ArrayList<String>();
+                    worldItems.put(ownerId, items);
+                }
+                items.add(itemId);
+            }
+        }
+
+        categoryIds.clear();
+        for (String worldId : worldIds) {
+            List<String> items = worldItems.get(worldId);
+            if (items != null) {
+                categoryIds.addAll(items);
+            }
+        }
+    }
+
+    /**
+     * Copies the given index, overlays and all, into a plain one, keeping
+     * its handles.
+     */
+    private static ModelIndex flatten(ModelIndex other) {
+        ModelIndex index = new ModelIndex();
+        int handleCount = other.handleCount();
+        for (int handle = 0; handle < handleCount; handle++) {
+            String itemId = other.itemIdOf(handle);
+            ItemType type = other.handleTypeOf(handle);
+            index.mHandles.put(itemId, handle);
+            index.mItemIds.add(itemId);
+            index.mHandleTypes.add(type);
+            if (type == null) {
+                continue;
+            }
+            index.mTypes.put(itemId, type);
+            String ownerId = other.ownerOf(itemId);
+            if (ownerId != null) {
+                index.mOwners.put(itemId, ownerId);
+            }
+            List<String> innerWorldIds = other.innerWorldsOf(itemId);
+            if (innerWorldIds != null) {
+                index.mInnerWorlds.put(itemId, innerWorldIds);
+            }
+        }
+        index.mWorldIds.addAll(other.getWorldIds());
+        index.mMissionIds.addAll(other.getMissionIds());
+        index.mGateIds.addAll(other.getGateIds());
+        index.mScoreIds.addAll(other.getScoreIds());
+        index.mMainWorldId = other.mMainWorldId;
+        return index;
+    }
+
+    private static boolean isWorld(ItemType type) {
+        return type == ItemType.WORLD || type == ItemType.LEVEL;
+    }
+
+
+    /** Lazy Loading **/
+
+    /**
+     * Indexes the subtree of the given world if it's pending.
+     * Must be called while holding the index's lock.
+     */
+    private void loadWorld(String worldId) {
+        if (!mPendingWorlds.remove(worldId)) {
+            return;
+        }
+
+        try {
+            mSubtreeLoader.loadSubtree(this, worldId);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to load world " + worldId + ". error: " + e.getLocalizedMessage());
+        }
+
+        if (mPendingWorlds.isEmpty()) {
+            mFullyLoaded = true;
+            mItemIdSet = null;
+        }
+    }
+
+    /**
+     * Indexes pending worlds until the given item is found, or there's
+     * nothing left to load. Must be called while holding the index's lock.
+     */
+    private void loadItem(String itemId) {
+        if (mItemIdSet != null && !mItemIdSet.contains(itemId)) {
+            return;
+        }
+        while (!mTypes.containsKey(itemId) && !mPendingWorlds.isEmpty()) {
+            loadWorld(mPendingWorlds.iterator().next());
+        }
+    }
+
+    private void loadAll() {
+        if (mFullyLoaded) {
+            return;
+        }
+
+        synchronized (this) {
+            while (!mPendingWorlds.isEmpty()) {
+                loadWorld(mPendingWorlds.iterator().next());
+            }
+        }
+    }
+
+
+    /** Index Building **/
+
+    void putPendingWorld(String worldId) {
+        mPendingWorlds.add(worldId);
+        mFullyLoaded = false;
+    }
+
+    /**
+     * Sets the ids of all items in the model, as a lazy loader found them
+     * (possibly with some that aren't items), so lookups of other ids don't
+     * load pending worlds.
+     */
+    void setItemIds(Set<String> itemIds) {
+        mItemIdSet = itemIds;
+    }
+
+    void setInnerWorldIds(String worldId, List<String> innerWorldIds) {
+        mInnerWorlds.put(worldId, innerWorldIds);
+    }
+
+    boolean putWorld(String worldId, String parentId, boolean level, List<String> innerWorldIds) {
+        if (!putType(worldId, parentId, level ? ItemType.LEVEL : ItemType.WORLD, mWorldIds)) {
+            return false;
+        }
+        if (innerWorldIds != null || mBase != null) {
+            mInnerWorlds.put(worldId, innerWorldIds);
+        }
+        if (parentId == null) {
+            mMainWorldId = worldId;
+        }
+        return true;
+    }
+
+    boolean putMission(String missionId, String ownerId, boolean challenge) {
+        return putType(missionId, ownerId, challenge ? ItemType.CHALLENGE : ItemType.MISSION, mMissionIds);
+    }
+
+    boolean putGate(String gateId, String ownerId, boolean gatesList) {
+        return putType(gateId, ownerId, gatesList ? ItemType.GATES_LIST : ItemType.GATE, mGateIds);
+    }
+
+    boolean putScore(String scoreId, String ownerId) {
+        return putType(scoreId, ownerId, ItemType.SCORE, mScoreIds);
+    }
+
+    void removeItems(Set<String> itemIds) {
+        if (itemIds.isEmpty()) {
+            return;
+        }
+
+        if (mBase != null) {
+            // hide the items from the base, the lists are put together later
+            for (String itemId : itemIds) {
+                mTypes.put(itemId, null);
+                mOwners.put(itemId, null);
+                mInnerWorlds.put(itemId, null);
+            }
+            return;
+        }
+
+        for (String itemId : itemIds) {
+            // keep the handle, in case the item is put back
+            Integer handle = mHandles.get(itemId);
+            if (handle != null) {
+                mHandleTypes.set(handle, null);
+            }
+            mTypes.remove(itemId);
+            mOwners.remove(itemId);
+            mInnerWorlds.remove(itemId);
+        }
+        mWorldIds.removeAll(itemIds);
+        mMissionIds.removeAll(itemIds);
+        mGateIds.removeAll(itemIds);
+        mScoreIds.removeAll(itemIds);
+    }
+
+    private boolean putType(String itemId, String ownerId, ItemType type, List<String> categoryIds) {
+        if (TextUtils.isEmpty(itemId)) {
+            return false;
+        }
+        if (mTypes.put(itemId, type) == null) {
+            categoryIds.add(itemId);
+        }
+        Integer handle = handleOf(itemId);
+        if (handle == null) {
+            mHandles.put(itemId, handleCount());
+            mItemIds.add(itemId);
+            if (mBase == null) {
+                mHandleTypes.add(type);
+            }
+        } else if (mBase == null) {
+            mHandleTypes.set(handle, type);
+        }
+        if (ownerId != null || mBase != null) {
+            mOwners.put(itemId, ownerId);
+        } else {
+            mOwners.remove(itemId);
+        }
+        return true;
+    }
+
+    private void indexWorld(JSONObject worldJSON, String parentId, List<String> siblingIds) {
+        String worldId = worldJSON.optString("itemId");
+        if (TextUtils.isEmpty(worldId)) {
+            SoomlaUtils.LogError(TAG, "found a world without an itemId, skipping it");
+            return;
+        }
+
+        JSONArray worldsArr = worldJSON.optJSONArray("worlds");
+        List<String> innerWorldIds = worldsArr != null && worldsArr.length() > 0 ?
+                new ArrayList<String>(worldsArr.length()) : null;
+        putWorld(worldId, parentId, CLASS_LEVEL.equals(worldJSON.optString("className")), innerWorldIds);
+        mWorlds.put(worldId, worldJSON);
+        if (siblingIds != null) {
+            siblingIds.add(worldId);
+        }
+
+        indexGate(worldJSON.optJSONObject("gate"), worldId);
+
+        JSONArray scoresArr = worldJSON.optJSONArray("scores");
+        if (scoresArr != null) {
+            for (int i = 0; i < scoresArr.length(); i++) {
+                JSONObject scoreJSON = scoresArr.optJSONObject(i);
+                if (scoreJSON != null && putScore(scoreJSON.optString("itemId"), worldId)) {
+                    mScores.put(scoreJSON.optString("itemId"), scoreJSON);
+                }
+            }
+        }
+
+        indexMissions(worldJSON.optJSONArray("missions"), worldId);
+
+        if (worldsArr != null) {
+            for (int i = 0; i < worldsArr.length(); i++) {
+                JSONObject innerWorldJSON = worldsArr.optJSONObject(i);
+                if (innerWorldJSON != null) {
+                    indexWorld(innerWorldJSON, worldId, innerWorldIds);
+                }
+            }
+        }
+    }
+
+    private void indexMissions(JSONArray missionsArr, String worldId) {
+        if (missionsArr == null) {
+            return;
+        }
+
+        for (int i = 0; i < missionsArr.length(); i++) {
+            JSONObject missionJSON = missionsArr.optJSONObject(i);
+            if (missionJSON == null) {
+                continue;
+            }
+
+            String missionId = missionJSON.optString("itemId");
+            boolean challenge = CLASS_CHALLENGE.equals(missionJSON.optString("className"));
+            if (!putMission(missionId, worldId, challenge)) {
+                continue;
+            }
+            mMissions.put(missionId, missionJSON);
+
+            indexGate(missionJSON.optJSONObject("gate"), worldId);
+
+            if (challenge) {
+                indexMissions(missionJSON.optJSONArray("missions"), worldId);
+            }
+        }
+    }
+
+    private void indexGate(JSONObject gateJSON, String worldId) {
+        if (gateJSON == null) {
+            return;
+        }
+
+        String gateId = gateJSON.optString("itemId");
+        boolean gatesList = isGatesList(gateJSON.optString("className"));
+        if (!putGate(gateId, worldId, gatesList)) {
+            return;
+        }
+        mGates.put(gateId, gateJSON);
+
+        if (gatesList) {
+            JSONArray gatesArr = gateJSON.optJSONArray("gates");
+            if (gatesArr != null) {
+                for (int i = 0; i < gatesArr.length(); i++) {
+                    indexGate(gatesArr.optJSONObject(i), worldId);
+                }
+            }
+        }
+    }
+
+    static boolean isGatesList(String className) {
+        return CLASS_GATES_LIST_AND.equals(className) || CLASS_GATES_LIST_OR.equals(className);
+    }
+
+    private static Map<String, JSONObject> readOnly(HashMap<String, JSONObject> items) {
+        return items != null ? Collections.unmodifiableMap(items) : null;
+    }
+
+
+    /** Private Members **/
+
+    private final JSONObject mModel;
+    private final SubtreeLoader mSubtreeLoader;
+    private final ModelIndex mBase;
+    private final int mBaseHandleCount;
+    private final int mDepth;
+    private volatile boolean mListsBuilt = true;
+    private String mMainWorldId;
+    private final LinkedHashSet<String> mPendingWorlds = new LinkedHashSet<String>();
+    private volatile boolean mFullyLoaded = true;
+    // every id a pending world may hold, null if not known
+    private Set<String> mItemIdSet;
+
+    private final HashMap<String, ItemType> mTypes = new HashMap<String, ItemType>();
+    private final HashMap<String, Integer> mHandles = new HashMap<String, Integer>();
+    private final ArrayList<String> mItemIds = new ArrayList<String>();
+    private final ArrayList<ItemType> mHandleTypes = new ArrayList<ItemType>();
+    private final HashMap<String, String> mOwners = new HashMap<String, String>();
+    private final HashMap<String, List<String>> mInnerWorlds = new HashMap<String, List<String>>();
+    private final ArrayList<String> mWorldIds = new ArrayList<String>();
+    private final ArrayList<String> mMissionIds = new ArrayList<String>();
+    private final ArrayList<String> mGateIds = new ArrayList<String>();
+    private final ArrayList<String> mScoreIds = new ArrayList<String>();
+
+    private final HashMap<String, JSONObject> mWorlds;
+    private final HashMap<String, JSONObject> mMissions;
+    private final HashMap<String, JSONObject> mGates;
+    private final HashMap<String, JSONObject> mScores;
+
+    public static final int NO_HANDLE = -1;
+
+    static final int MAX_OVERLAYS = 4;
+
+    public static final String CLASS_LEVEL = "Level";
+    public static final String CLASS_CHALLENGE = "Challenge";
+    public static final String CLASS_GATES_LIST_AND = "GatesListAND";
+    public static final String CLASS_GATES_LIST_OR = "GatesListOR";
+
+    private static final String TAG = "SOOMLA ModelIndex";
+}
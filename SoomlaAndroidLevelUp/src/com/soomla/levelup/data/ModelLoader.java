@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds a <code>ModelIndex</code> straight from the model text with a pull
+ * parser, without building an org.json DOM first.
+ *
+ * Only <code>itemId</code>, <code>className</code> and the
+ * <code>worlds</code>/<code>missions</code>/<code>scores</code>/<code>gate</code>/<code>gates</code>
+ * children of each item are read, everything else is skipped by the parser.
+ * Since JSON objects are unordered, each item is read into a small node
+ * holding just those fields, and the nodes are indexed once the model was read.
+ *
+ * {@link #loadLazily(String)} only indexes the main world's own items and the
+ * ids and types of its inner worlds. Every world remembers where it starts in
+ * the model text, and its subtree is indexed the first time the index needs
+ * it. The ids of all items are collected while skipping over the main world,
+ * so looking up an id that isn't in the model loads nothing.
+ */
+public class ModelLoader {
+
+    /**
+     * Loads an index from the given model string.
+     *
+     * @param model the LevelUp model JSON
+     * @return the model index, without JSON definitions
+     * @throws IOException if the model is not valid JSON
+     */
+    public static ModelIndex load(String model) throws IOException {
+        return load(new StringReader(model));
+    }
+
+    /**
+     * Loads an index from the given model stream.
+     *
+     * @param in a reader of the LevelUp model JSON
+     * @return the model index, without JSON definitions
+     * @throws IOException if the model can't be read or is not valid JSON
+     */
+    public static ModelIndex load(Reader in) throws IOException {
+        ModelIndex index = new ModelIndex();
+        Node mainWorld = null;
+
+        JsonReader reader = new JsonReader(in);
+        // match the leniency of org.json, which used to parse the model
+        reader.setLenient(true);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("mainWorld".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    mainWorld = readNode(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected tokens this way
+            throw new IOException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+
+        if (mainWorld != null) {
+            indexWorld(index, mainWorld, null, null);
+        } else {
+            SoomlaUtils.LogError(TAG, "couldn't get mainWorld from model");
+        }
+
+        return index;
+    }
+
+    /**
+     * Loads an index from the given model string lazily, indexing the
+     * subtree of each world only when it's first needed.
+     *
+     * @param model the LevelUp model JSON, which is kept until everything
+     *              was indexed
+     * @return the lazily loaded model index, without JSON definitions
+     * @throws IOException if the top of the model is not valid JSON
+     */
+    public static ModelIndex loadLazily(String model) throws IOException {
+        LazySubtreeLoader subtreeLoader = new LazySubtreeLoader(model);
+        ModelIndex index = new ModelIndex(subtreeLoader);
+
+        ModelScanner scanner = new ModelScanner(model, 0);
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            if ("mainWorld".equals(scanner.nextName()) && scanner.peek() == '{') {
+                // skipping over the main world anyway, so ids not in the model load nothing
+                Set<String> itemIds = new HashSet<String>();
+                subtreeLoader.putWorld(index, readWorldHeader(scanner, itemIds), null, null);
+                index.setItemIds(itemIds);
+                return index;
+            }
+            scanner.skipValue();
+        }
+
+        SoomlaUtils.LogError(TAG, "couldn't get mainWorld from model");
+        return index;
+    }
+
+    private static Node readNode(JsonReader reader) throws IOException {
+        Node node = new Node();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if ("itemId".equals(name)) {
+                node.itemId = reader.nextString();
+            } else if ("className".equals(name)) {
+                node.className = reader.nextString();
+            } else if (LUJSONConsts.LU_WORLDS.equals(name)) {
+                node.worlds = readNodes(reader);
+            } else if (LUJSONConsts.LU_MISSIONS.equals(name)) {
+                node.missions = readNodes(reader);
+            } else if (LUJSONConsts.LU_SCORES.equals(name)) {
+                node.scores = readNodes(reader);
+            } else if (LUJSONConsts.LU_GATES.equals(name)) {
+                node.gates = readNodes(reader);
+            } else if (LUJSONConsts.LU_GATE.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                node.gate = readNode(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return node;
+    }
+
+    private static List<Node> readNodes(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+
+        List<Node> nodes = new ArrayList<Node>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                nodes.add(readNode(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+
+        return nodes;
+    }
+
+    private static Node readNode(ModelScanner scanner) throws IOException {
+        Node node = new Node();
+
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            String name = scanner.nextName();
+            if (scanner.peekNull()) {
+                scanner.skipValue();
+            } else if ("itemId".equals(name)) {
+                node.itemId = scanner.nextString();
+            } else if ("className".equals(name)) {
+                node.className = scanner.nextString();
+            } else if (LUJSONConsts.LU_MISSIONS.equals(name)) {
+                node.missions = readNodes(scanner);
+            } else if (LUJSONConsts.LU_SCORES.equals(name)) {
+                node.scores = readNodes(scanner);
+            } else if (LUJSONConsts.LU_GATES.equals(name)) {
+                node.gates = readNodes(scanner);
+            } else if (LUJSONConsts.LU_GATE.equals(name) && scanner.peek() == '{') {
+                node.gate = readNode(scanner);
+            } else {
+                scanner.skipValue();
+            }
+        }
+        scanner.endObject();
+
+        return node;
+    }
+
+    private static List<Node> readNodes(ModelScanner scanner) throws IOException {
+        if (scanner.peek() != '[') {
+            scanner.skipValue();
+            return null;
+        }
+
+        List<Node> nodes = new ArrayList<Node>();
+        scanner.beginArray();
+        while (scanner.hasNext()) {
+            if (scanner.peek() == '{') {
+                nodes.add(readNode(scanner));
+            } else {
+                scanner.skipValue();
+            }
+        }
+        scanner.endArray();
+
+        return nodes;
+    }
+
+    /**
+     * Reads only the id and class of a world, and where it starts, skipping
+     * over everything else in it.
+     */
+    private static Node readWorldHeader(ModelScanner scanner) throws IOException {
+        return readWorldHeader(scanner, null);
+    }
+
+    /**
+     * Reads only the id and class of a world, and where it starts, skipping
+     * over everything else in it.
+     *
+     * @param itemIds the set to add the ids of the world and of all items
+     *                in it to, or <code>null</code>
+     */
+    private static Node readWorldHeader(ModelScanner scanner, Set<String> itemIds) throws IOException {
+        Node node = new Node();
+        scanner.peek();
+        node.start = scanner.position();
+
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            String name = scanner.nextName();
+            if (scanner.peekNull()) {
+                scanner.skipValue();
+            } else if ("itemId".equals(name)) {
+                node.itemId = scanner.nextString();
+                if (itemIds != null) {
+                    itemIds.add(node.itemId);
+                }
+            } else if ("className".equals(name)) {
+                node.className = scanner.nextString();
+            } else if (itemIds != null) {
+                scanner.skipValue(itemIds);
+            } else {
+                scanner.skipValue();
+            }
+        }
+        scanner.endObject();
+
+        return node;
+    }
+
+    /**
+     * Indexes the gate, scores and missions of the world starting at the
+     * given offset of the model text, leaving out its inner worlds.
+     *
+     * @param index the index to add the items to
+     * @param model the model text
+     * @param start the offset of the world object in the model text
+     * @param worldId the id of the world
+     * @throws IOException if the world is not valid JSON
+     */
+    static void indexWorldItems(ModelIndex index, String model, int start, String worldId) throws IOException {
+        indexWorldItems(new ModelScanner(model, start), index, worldId, null);
+    }
+
+    private static void indexWorldItems(ModelScanner scanner, ModelIndex index, String worldId,
+                                        List<Node> innerWorlds) throws IOException {
+        Node gate = null;
+        List<Node> scores = null;
+        List<Node> missions = null;
+
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            String name = scanner.nextName();
+            if (scanner.peekNull()) {
+                scanner.skipValue();
+            } else if (innerWorlds != null && LUJSONConsts.LU_WORLDS.equals(name) && scanner.peek() == '[') {
+                scanner.beginArray();
+                while (scanner.hasNext()) {
+                    if (scanner.peek() == '{') {
+                        innerWorlds.add(readWorldHeader(scanner));
+                    } else {
+                        scanner.skipValue();
+                    }
+                }
+                scanner.endArray();
+            } else if (LUJSONConsts.LU_MISSIONS.equals(name)) {
+                missions = readNodes(scanner);
+            } else if (LUJSONConsts.LU_SCORES.equals(name)) {
+                scores = readNodes(scanner);
+            } else if (LUJSONConsts.LU_GATE.equals(name) && scanner.peek() == '{') {
+                gate = readNode(scanner);
+            } else {
+                scanner.skipValue();
+            }
+        }
+        scanner.endObject();
+
+        indexGate(index, gate, worldId);
+
+        if (scores != null) {
+            for (Node score : scores) {
+                index.putScore(score.itemId, worldId);
+            }
+        }
+
+        indexMissions(index, missions, worldId);
+    }
+
+    private static void indexWorld(ModelIndex index, Node world, String parentId, List<String> siblingIds) {
+        List<String> innerWorldIds = world.worlds != null && !world.worlds.isEmpty() ?
+                new ArrayList<String>(world.worlds.size()) : null;
+        if (!index.putWorld(world.itemId, parentId, ModelIndex.CLASS_LEVEL.equals(world.className), innerWorldIds)) {
+            SoomlaUtils.LogError(TAG, "found a world without an itemId, skipping it");
+            return;
+        }
+        if (siblingIds != null) {
+            siblingIds.add(world.itemId);
+        }
+
+        indexGate(index, world.gate, world.itemId);
+
+        if (world.scores != null) {
+            for (Node score : world.scores) {
+                index.putScore(score.itemId, world.itemId);
+            }
+        }
+
+        indexMissions(index, world.missions, world.itemId);
+
+        if (world.worlds != null) {
+            for (Node innerWorld : world.worlds) {
+                indexWorld(index, innerWorld, world.itemId, innerWorldIds);
+            }
+        }
+    }
+
+    private static void indexMissions(ModelIndex index, List<Node> missions, String worldId) {
+        if (missions == null) {
+            return;
+        }
+
+        for (Node mission : missions) {
+            boolean challenge = ModelIndex.CLASS_CHALLENGE.equals(mission.className);
+            if (!index.putMission(mission.itemId, worldId, challenge)) {
+                continue;
+            }
+
+            indexGate(index, mission.gate, worldId);
+
+            if (challenge) {
+                indexMissions(index, mission.missions, worldId);
+            }
+        }
+    }
+
+    private static void indexGate(ModelIndex index, Node gate, String worldId) {
+        if (gate == null) {
+            return;
+        }
+
+        boolean gatesList = ModelIndex.isGatesList(gate.className);
+        if (!index.putGate(gate.itemId, worldId, gatesList)) {
+            return;
+        }
+
+        if (gatesList && gate.gates != null) {
+            for (Node innerGate : gate.gates) {
+                indexGate(index, innerGate, worldId);
+            }
+        }
+    }
+
+    /**
+     * Indexes the subtrees of worlds in a lazily loaded model, by going back
+     * to where each world starts in the model text.
+     */
+    private static class LazySubtreeLoader implements ModelIndex.SubtreeLoader {
+
+        LazySubtreeLoader(String model) {
+            mModel = model;
+        }
+
+        @Override
+        public void loadSubtree(ModelIndex index, String worldId) throws IOException {
+            Integer start = mWorldStarts.remove(worldId);
+            if (start == null) {
+                return;
+            }
+
+            List<Node> innerWorlds = new ArrayList<Node>();
+            indexWorldItems(new ModelScanner(mModel, start), index, worldId, innerWorlds);
+
+            if (!innerWorlds.isEmpty()) {
+                List<String> innerWorldIds = new ArrayList<String>(innerWorlds.size());
+                for (Node innerWorld : innerWorlds) {
+                    putWorld(index, innerWorld, worldId, innerWorldIds);
+                }
+                index.setInnerWorldIds(worldId, innerWorldIds);
+            }
+
+            if (mWorldStarts.isEmpty()) {
+                // everything was indexed, let go of the model text
+                mModel = null;
+            }
+        }
+
+        void putWorld(ModelIndex index, Node world, String parentId, List<String> siblingIds) {
+            if (!index.putWorld(world.itemId, parentId, ModelIndex.CLASS_LEVEL.equals(world.className), null)) {
+                SoomlaUtils.LogError(TAG, "found a world without an itemId, skipping it");
+                return;
+            }
+            if (siblingIds != null) {
+                siblingIds.add(world.itemId);
+            }
+            mWorldStarts.put(world.itemId, world.start);
+            index.putPendingWorld(world.itemId);
+        }
+
+        private String mModel;
+        private final HashMap<String, Integer> mWorldStarts = new HashMap<String, Integer>();
+    }
+
+    /**
+     * The parts of a model item the index is built from.
+     */
+    private static class Node {
+        String itemId;
+        String className;
+        List<Node> worlds;
+        List<Node> missions;
+        List<Node> scores;
+        List<Node> gates;
+        Node gate;
+        int start;
+    }
+
+    private static final String TAG = "SOOMLA ModelLoader";
+}
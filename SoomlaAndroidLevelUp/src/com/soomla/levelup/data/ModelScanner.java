@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A minimal pull scanner over JSON text that, unlike
+ * <code>android.util.JsonReader</code>, exposes its position. The lazy model
+ * loader uses it to remember where a world's subtree starts and ends, and to
+ * come back to it later.
+ *
+ * Like the reader used for eager loading, it is lenient: single quoted and
+ * unquoted strings are accepted.
+ */
+class ModelScanner {
+
+    ModelScanner(String text, int pos) {
+        mText = text;
+        mPos = pos;
+    }
+
+    int position() {
+        return mPos;
+    }
+
+    /**
+     * @return the next significant character, or 0 at the end of the text
+     */
+    char peek() {
+        skipWhitespace();
+        return mPos < mText.length() ? mText.charAt(mPos) : 0;
+    }
+
+    boolean peekNull() {
+        return peek() == 'n' && mText.startsWith("null", mPos);
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    boolean hasNext() {
+        char c = peek();
+        if (c == ',') {
+            mPos++;
+            c = peek();
+        }
+        return c != '}' && c != ']' && c != 0;
+    }
+
+    String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    String nextString() throws IOException {
+        char quote = peek();
+        if (quote != '"' && quote != '\'') {
+            int start = mPos;
+            skipLiteral();
+            return mText.substring(start, mPos);
+        }
+
+        mPos++;
+        int start = mPos;
+        StringBuilder sb = null;
+        while (mPos < mText.length()) {
+            char c = mText.charAt(mPos);
+            if (c == quote) {
+                String value = sb == null ?
+                        mText.substring(start, mPos) :
+                        sb.append(mText, start, mPos).toString();
+                mPos++;
+                return value;
+            }
+            if (c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                }
+                sb.append(mText, start, mPos);
+                sb.append(readEscape());
+                start = mPos;
+            } else {
+                mPos++;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    void skipValue() throws IOException {
+        char c = peek();
+        if (c == '"' || c == '\'') {
+            skipString(c);
+        } else if (c == '{' || c == '[') {
+            skipContainer();
+        } else {
+            skipLiteral();
+        }
+    }
+
+    /**
+     * Skips the next value like {@link #skipValue()}, collecting the values
+     * of the <code>itemId</code> fields in it, at any depth.
+     *
+     * @param itemIds the set to add the item ids to
+     */
+    void skipValue(Set<String> itemIds) throws IOException {
+        char c = peek();
+        if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                String name = nextName();
+                c = peek();
+                if ("itemId".equals(name) && c != '{' && c != '[' && !peekNull()) {
+                    itemIds.add(nextString());
+                } else {
+                    skipValue(itemIds);
+                }
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue(itemIds);
+            }
+            endArray();
+        } else {
+            skipValue();
+        }
+    }
+
+    private void skipContainer() throws IOException {
+        int depth = 0;
+        while (mPos < mText.length()) {
+            char c = mText.charAt(mPos);
+            if (c == '"' || c == '\'') {
+                skipString(c);
+                continue;
+            }
+            mPos++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw error("unterminated object or array");
+    }
+
+    private void skipString(char quote) throws IOException {
+        mPos++;
+        while (mPos < mText.length()) {
+            char c = mText.charAt(mPos++);
+            if (c == '\\') {
+                mPos++;
+            } else if (c == quote) {
+                return;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private void skipLiteral() throws IOException {
+        int start = mPos;
+        while (mPos < mText.length()) {
+            char c = mText.charAt(mPos);
+            if (c == ',' || c == ':' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            mPos++;
+        }
+        if (mPos == start) {
+            throw error("expected a value");
+        }
+    }
+
+    private char readEscape() throws IOException {
+        // at the backslash
+        mPos++;
+        if (mPos >= mText.length()) {
+            throw error("unterminated escape");
+        }
+        char c = mText.charAt(mPos++);
+        switch (c) {
+            case 'u':
+                if (mPos + 4 > mText.length()) {
+                    throw error("unterminated escape");
+                }
+                try {
+                    char unicode = (char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16);
+                    mPos += 4;
+                    return unicode;
+                } catch (NumberFormatException e) {
+                    throw error("bad unicode escape");
+                }
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                return c;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        mPos++;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at offset " + mPos);
+    }
+
+    private final String mText;
+    private int mPos;
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads and writes a compiled, binary form of a <code>ModelIndex</code>, so
+ * cold starts can skip parsing the model JSON as long as it didn't change.
+ *
+ * The snapshot holds the fingerprint of the model it was compiled from, an
+ * id table per item category with each item's type and owning world, and the
+ * inner worlds of every world. Worlds are referred to by their offset in the
+ * worlds table, and -1 stands for no world:
+ *
+ * <pre>
+ * int magic, short version, long fingerprint
+ * int worldCount,   worldCount   x (UTF itemId, byte type)
+ * int missionCount, missionCount x (UTF itemId, byte type, int ownerOffset)
+ * int gateCount,    gateCount    x (UTF itemId, byte type, int ownerOffset)
+ * int scoreCount,   scoreCount   x (UTF itemId, int ownerOffset)
+ * worldCount x (int parentOffset, int innerCount, innerCount x int worldOffset)
+ * </pre>
+ */
+public class ModelSnapshot {
+
+    /**
+     * Reads the snapshot in the given file, if it was compiled from the
+     * model with the given fingerprint.
+     *
+     * @param file the snapshot file
+     * @param fingerprint the fingerprint of the current model JSON
+     * @return the index in the snapshot, or <code>null</code> if there is no
+     * snapshot, it's from another model, or it's unreadable
+     */
+    public static ModelIndex read(File file, long fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readShort() != VERSION || in.readLong() != fingerprint) {
+                SoomlaUtils.LogDebug(TAG, "model snapshot is stale, ignoring it");
+                return null;
+            }
+
+            // every entry takes up bytes, so a larger count is corrupt
+            long maxCount = file.length();
+            ModelIndex index = new ModelIndex();
+
+            int worldCount = readCount(in, maxCount);
+            String[] worldIds = new String[worldCount];
+            boolean[] levels = new boolean[worldCount];
+            for (int i = 0; i < worldCount; i++) {
+                worldIds[i] = in.readUTF();
+                levels[i] = in.readByte() == ModelIndex.ItemType.LEVEL.ordinal();
+            }
+
+            int missionCount = readCount(in, maxCount);
+            for (int i = 0; i < missionCount; i++) {
+                String missionId = in.readUTF();
+                boolean challenge = in.readByte() == ModelIndex.ItemType.CHALLENGE.ordinal();
+                index.putMission(missionId, readWorldId(in, worldIds), challenge);
+            }
+
+            int gateCount = readCount(in, maxCount);
+            for (int i = 0; i < gateCount; i++) {
+                String gateId = in.readUTF();
+                boolean gatesList = in.readByte() == ModelIndex.ItemType.GATES_LIST.ordinal();
+                index.putGate(gateId, readWorldId(in, worldIds), gatesList);
+            }
+
+            int scoreCount = readCount(in, maxCount);
+            for (int i = 0; i < scoreCount; i++) {
+                String scoreId = in.readUTF();
+                index.putScore(scoreId, readWorldId(in, worldIds));
+            }
+
+            for (int i = 0; i < worldCount; i++) {
+                String parentId = readWorldId(in, worldIds);
+                int innerCount = readCount(in, maxCount);
+                List<String> innerWorldIds = null;
+                if (innerCount > 0) {
+                    innerWorldIds = new ArrayList<String>(innerCount);
+                    for (int j = 0; j < innerCount; j++) {
+                        innerWorldIds.add(worldIds[in.readInt()]);
+                    }
+                }
+                index.putWorld(worldIds[i], parentId, levels[i], innerWorldIds);
+            }
+
+            return index;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read model snapshot. error: " + e.getLocalizedMessage());
+        } catch (IndexOutOfBoundsException e) {
+            SoomlaUtils.LogError(TAG, "Model snapshot is corrupt");
+        } finally {
+            closeQuietly(in);
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the given index to a snapshot file. The snapshot is written to
+     * a temporary file first and then moved into place, so a crash never
+     * leaves a partial snapshot behind.
+     *
+     * @param file the snapshot file
+     * @param index the index to save
+     * @param fingerprint the fingerprint of the model JSON the index was
+     *                    built from
+     * @return <code>true</code> if the snapshot was written,
+     * <code>false</code> otherwise
+     */
+    public static boolean write(File file, ModelIndex index, long fingerprint) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(fingerprint);
+
+            List<String> worldIds = index.getWorldIds();
+            HashMap<String, Integer> worldOffsets = new HashMap<String, Integer>(worldIds.size() * 2);
+            out.writeInt(worldIds.size());
+            for (String worldId : worldIds) {
+                worldOffsets.put(worldId, worldOffsets.size());
+                out.writeUTF(worldId);
+                out.writeByte(index.getItemType(worldId).ordinal());
+            }
+
+            writeIds(out, index, index.getMissionIds(), worldOffsets, true);
+            writeIds(out, index, index.getGateIds(), worldOffsets, true);
+            writeIds(out, index, index.getScoreIds(), worldOffsets, false);
+
+            for (String worldId : worldIds) {
+                writeWorldOffset(out, index.getOwnerWorldId(worldId), worldOffsets);
+                List<String> innerWorldIds = index.getInnerWorldIds(worldId);
+                out.writeInt(innerWorldIds.size());
+                for (String innerWorldId : innerWorldIds) {
+                    out.writeInt(worldOffsets.get(innerWorldId));
+                }
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                SoomlaUtils.LogError(TAG, "Unable to move model snapshot into place");
+                tmpFile.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to write model snapshot. error: " + e.getLocalizedMessage());
+        } finally {
+            closeQuietly(out);
+        }
+
+        tmpFile.delete();
+        return false;
+    }
+
+    private static void writeIds(DataOutputStream out, ModelIndex index, List<String> itemIds,
+                                 HashMap<String, Integer> worldOffsets, boolean withType) throws IOException {
+        out.writeInt(itemIds.size());
+        for (String itemId : itemIds) {
+            out.writeUTF(itemId);
+            if (withType) {
+                out.writeByte(index.getItemType(itemId).ordinal());
+            }
+            writeWorldOffset(out, index.getOwnerWorldId(itemId), worldOffsets);
+        }
+    }
+
+    private static void writeWorldOffset(DataOutputStream out, String worldId, HashMap<String, Integer> worldOffsets) throws IOException {
+        Integer offset = worldId != null ? worldOffsets.get(worldId) : null;
+        out.writeInt(offset != null ? offset : -1);
+    }
+
+    private static int readCount(DataInputStream in, long maxCount) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > maxCount) {
+            throw new IOException("count out of range: " + count);
+        }
+        return count;
+    }
+
+    private static String readWorldId(DataInputStream in, String[] worldIds) throws IOException {
+        int offset = in.readInt();
+        return offset >= 0 ? worldIds[offset] : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do about it
+            }
+        }
+    }
+
+    private static final int MAGIC = 0x4c554d49; // "LUMI"
+    private static final short VERSION = 2;
+
+    private static final String TAG = "SOOMLA ModelSnapshot";
+}
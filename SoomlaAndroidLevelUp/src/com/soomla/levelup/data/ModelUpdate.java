@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.levelup.data.ModelIndex.ItemType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of replacing the LevelUp model with a new one, see
+ * <code>ModelCache.update(String)</code>.
+ *
+ * The old and new models are compared world by world, by <code>itemId</code>.
+ * Both model texts are scanned once, without building any objects, to find
+ * where each world's own definition (everything but the contents of its inner
+ * worlds) is. Own definitions that lie in the unchanged head or tail of the
+ * model text are equal without looking at them, the rest are compared
+ * character by character. Only worlds that were added, removed, moved or
+ * whose own definition changed have their items re-indexed, in an overlay
+ * that shares everything else with the old index (see <code>ModelIndex</code>).
+ * An old index that is still being loaded lazily isn't loaded any further:
+ * the new model is loaded lazily instead.
+ *
+ * Items that are no longer in the model, or whose type changed, may have left
+ * state behind. Their keys are reported by {@link #getOrphanedKeys()} so they
+ * can be deleted in bulk.
+ */
+public class ModelUpdate {
+
+    /**
+     * Retrieves the index of the new model.
+     *
+     * @return the updated index
+     */
+    public ModelIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Retrieves the ids of the items that are in the new model but were not
+     * in the old one.
+     *
+     * @return a read-only list of item ids
+     */
+    public List<String> getAddedIds() {
+        return Collections.unmodifiableList(mAddedIds);
+    }
+
+    /**
+     * Retrieves the ids of the items that were in the old model but are not
+     * in the new one.
+     *
+     * @return a read-only list of item ids
+     */
+    public List<String> getRemovedIds() {
+        return Collections.unmodifiableList(mRemovedIds);
+    }
+
+    /**
+     * Retrieves the ids of the worlds that were re-indexed because they were
+     * added, moved, or their own definition changed.
+     *
+     * @return a read-only list of world ids
+     */
+    public List<String> getChangedWorldIds() {
+        return Collections.unmodifiableList(mChangedWorldIds);
+    }
+
+    /**
+     * Retrieves the storage keys that may hold state of items that were
+     * removed from the model, or whose type changed so that the key no
+     * longer applies (for example a level that became a plain world).
+     *
+     * @return a read-only list of keys in the <code>DB_*_KEY_PREFIX</code>
+     * namespaces
+     */
+    public List<String> getOrphanedKeys() {
+        return Collections.unmodifiableList(mOrphanedKeys);
+    }
+
+    /**
+     * Compares the two models and updates the old model's index to match the
+     * new model, leaving the old index as it is.
+     *
+     * @param oldIndex the index of the old model
+     * @param oldModel the old model text
+     * @param newModel the new model text
+     * @return the update, holding the new model's index
+     * @throws IOException if either model is not valid JSON
+     */
+    static ModelUpdate diff(ModelIndex oldIndex, String oldModel, String newModel) throws IOException {
+        Map<String, WorldSpan> oldSpans = scanWorlds(oldModel);
+        Map<String, WorldSpan> newSpans = scanWorlds(newModel);
+        TextDiff textDiff = new TextDiff(oldModel, newModel);
+
+        ModelUpdate update = new ModelUpdate();
+        boolean lazy = !oldIndex.isFullyLoaded();
+        ModelIndex index = lazy ? ModelLoader.loadLazily(newModel) : new ModelIndex(oldIndex);
+
+        // drop the worlds that are gone or changed, along with their own items
+        HashMap<String, ItemType> oldTypes = new HashMap<String, ItemType>();
+        for (Map.Entry<String, WorldSpan> entry : oldSpans.entrySet()) {
+            String worldId = entry.getKey();
+            WorldSpan oldSpan = entry.getValue();
+            if (textDiff.same(oldSpan, newSpans.get(worldId))) {
+                continue;
+            }
+
+            oldTypes.put(worldId, worldType(oldSpan));
+            ModelIndex oldItems = new ModelIndex();
+            ModelLoader.indexWorldItems(oldItems, oldModel, oldSpan.start, worldId);
+            putTypes(oldItems, oldTypes);
+        }
+        if (!lazy) {
+            index.removeItems(oldTypes.keySet());
+        }
+
+        // and index them as they are now
+        for (Map.Entry<String, WorldSpan> entry : newSpans.entrySet()) {
+            String worldId = entry.getKey();
+            WorldSpan newSpan = entry.getValue();
+            if (textDiff.same(oldSpans.get(worldId), newSpan)) {
+                continue;
+            }
+
+            update.mChangedWorldIds.add(worldId);
+            addIfNew(worldId, oldTypes, oldIndex, update.mAddedIds);
+            if (!lazy) {
+                index.putWorld(worldId, newSpan.parentId, worldType(newSpan) == ItemType.LEVEL,
+                        newSpan.innerWorldIds.isEmpty() ? null : newSpan.innerWorldIds);
+            }
+
+            ModelIndex newItems = new ModelIndex();
+            ModelLoader.indexWorldItems(newItems, newModel, newSpan.start, worldId);
+            putItems(newItems, lazy ? null : index, worldId, oldTypes, oldIndex, update.mAddedIds);
+        }
+
+        update.mIndex = index;
+        update.addOrphans(oldTypes);
+        return update;
+    }
+
+    /**
+     * Compares the indexes of two models item by item, for when the old
+     * model text isn't available.
+     *
+     * @param oldIndex the index of the old model, or <code>null</code> if
+     *                 there was none
+     * @param newIndex the index of the new model
+     * @return the update, holding the new model's index
+     */
+    static ModelUpdate diff(ModelIndex oldIndex, ModelIndex newIndex) {
+        ModelUpdate update = new ModelUpdate();
+        update.mIndex = newIndex;
+
+        List<List<String>> newIds = Arrays.asList(newIndex.getWorldIds(), newIndex.getMissionIds(),
+                newIndex.getGateIds(), newIndex.getScoreIds());
+        update.mChangedWorldIds.addAll(newIndex.getWorldIds());
+        for (List<String> itemIds : newIds) {
+            for (String itemId : itemIds) {
+                if (oldIndex == null || oldIndex.getItemType(itemId) == null) {
+                    update.mAddedIds.add(itemId);
+                }
+            }
+        }
+
+        if (oldIndex == null) {
+            return update;
+        }
+
+        HashMap<String, ItemType> oldTypes = new HashMap<String, ItemType>();
+        for (String worldId : oldIndex.getWorldIds()) {
+            oldTypes.put(worldId, oldIndex.getItemType(worldId));
+        }
+        putTypes(oldIndex, oldTypes);
+        update.addOrphans(oldTypes);
+
+        return update;
+    }
+
+    private void addOrphans(Map<String, ItemType> oldTypes) {
+        for (Map.Entry<String, ItemType> entry : oldTypes.entrySet()) {
+            String itemId = entry.getKey();
+            ItemType newType = mIndex.getItemType(itemId);
+            if (newType == null) {
+                mRemovedIds.add(itemId);
+            }
+            if (newType != entry.getValue()) {
+                LinkedHashSet<String> keys = new LinkedHashSet<String>(stateKeys(itemId, entry.getValue()));
+                keys.removeAll(stateKeys(itemId, newType));
+                mOrphanedKeys.addAll(keys);
+            }
+        }
+    }
+
+    private static void putTypes(ModelIndex items, Map<String, ItemType> types) {
+        for (List<String> itemIds : Arrays.asList(items.getMissionIds(), items.getGateIds(), items.getScoreIds())) {
+            for (String itemId : itemIds) {
+                types.put(itemId, items.getItemType(itemId));
+            }
+        }
+    }
+
+    /**
+     * Puts the given world's items into the index, unless it's
+     * <code>null</code> because the new model was loaded on its own.
+     */
+    private static void putItems(ModelIndex items, ModelIndex index, String worldId,
+                                 Map<String, ItemType> oldTypes, ModelIndex oldIndex, List<String> addedIds) {
+        for (String missionId : items.getMissionIds()) {
+            if (index != null) {
+                index.putMission(missionId, worldId, items.getItemType(missionId) == ItemType.CHALLENGE);
+            }
+            addIfNew(missionId, oldTypes, oldIndex, addedIds);
+        }
+        for (String gateId : items.getGateIds()) {
+            if (index != null) {
+                index.putGate(gateId, worldId, items.getItemType(gateId) == ItemType.GATES_LIST);
+            }
+            addIfNew(gateId, oldTypes, oldIndex, addedIds);
+        }
+        for (String scoreId : items.getScoreIds()) {
+            if (index != null) {
+                index.putScore(scoreId, worldId);
+            }
+            addIfNew(scoreId, oldTypes, oldIndex, addedIds);
+        }
+    }
+
+    private static void addIfNew(String itemId, Map<String, ItemType> oldTypes, ModelIndex oldIndex,
+                                 List<String> addedIds) {
+        // items of the changed worlds are known without asking the old index,
+        // which may have to load them
+        if (!oldTypes.containsKey(itemId) && oldIndex.getItemType(itemId) == null) {
+            addedIds.add(itemId);
+        }
+    }
+
+    private static ItemType worldType(WorldSpan span) {
+        return ModelIndex.CLASS_LEVEL.equals(span.className) ? ItemType.LEVEL : ItemType.WORLD;
+    }
+
+    private static List<String> stateKeys(String itemId, ItemType type) {
+        if (type == null) {
+            return Collections.emptyList();
+        }
+
+        switch (type) {
+            case WORLD:
+                return Arrays.asList(WorldStorage.stateKeys(itemId));
+            case LEVEL:
+                List<String> keys = new ArrayList<String>(Arrays.asList(WorldStorage.stateKeys(itemId)));
+                keys.addAll(Arrays.asList(LevelStorage.stateKeys(itemId)));
+                return keys;
+            case MISSION:
+            case CHALLENGE:
+                return Arrays.asList(MissionStorage.stateKeys(itemId));
+            case GATE:
+            case GATES_LIST:
+                return Arrays.asList(GateStorage.stateKeys(itemId));
+            case SCORE:
+                return Arrays.asList(ScoreStorage.stateKeys(itemId));
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+
+    /** Model Scanning **/
+
+    /**
+     * Finds every world in the model, in model order.
+     */
+    private static Map<String, WorldSpan> scanWorlds(String model) throws IOException {
+        LinkedHashMap<String, WorldSpan> spans = new LinkedHashMap<String, WorldSpan>();
+
+        ModelScanner scanner = new ModelScanner(model, 0);
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            if ("mainWorld".equals(scanner.nextName()) && scanner.peek() == '{') {
+                scanWorld(scanner, model, spans);
+                break;
+            }
+            scanner.skipValue();
+        }
+
+        return spans;
+    }
+
+    private static String scanWorld(ModelScanner scanner, String model, Map<String, WorldSpan> spans) throws IOException {
+        WorldSpan span = new WorldSpan();
+        scanner.peek();
+        span.start = scanner.position();
+
+        String worldId = null;
+
+        scanner.beginObject();
+        while (scanner.hasNext()) {
+            scanner.peek();
+            int memberStart = scanner.position();
+            String name = scanner.nextName();
+
+            if (LUJSONConsts.LU_WORLDS.equals(name) && scanner.peek() == '[') {
+                // inner worlds are only part of this world by their ids
+                scanner.beginArray();
+                while (scanner.hasNext()) {
+                    if (scanner.peek() == '{') {
+                        String innerWorldId = scanWorld(scanner, model, spans);
+                        if (innerWorldId != null) {
+                            span.innerWorldIds.add(innerWorldId);
+                        }
+                    } else {
+                        scanner.skipValue();
+                    }
+                }
+                scanner.endArray();
+                continue;
+            }
+
+            if ("itemId".equals(name)) {
+                worldId = scanner.nextString();
+            } else if ("className".equals(name)) {
+                span.className = scanner.nextString();
+            } else {
+                scanner.skipValue();
+            }
+            span.addMember(memberStart, scanner.position());
+        }
+        scanner.endObject();
+
+        if (worldId == null || worldId.length() == 0) {
+            return null;
+        }
+
+        for (String innerWorldId : span.innerWorldIds) {
+            spans.get(innerWorldId).parentId = worldId;
+        }
+        spans.put(worldId, span);
+        return worldId;
+    }
+
+    /**
+     * Where a world starts in the model text, and where its own members are.
+     */
+    private static class WorldSpan {
+
+        void addMember(int start, int end) {
+            if (memberCount * 2 == members.length) {
+                members = Arrays.copyOf(members, members.length * 2);
+            }
+            members[memberCount * 2] = start;
+            members[memberCount * 2 + 1] = end;
+            memberCount++;
+        }
+
+        int start;
+        String className;
+        String parentId;
+        final List<String> innerWorldIds = new ArrayList<String>();
+        int[] members = new int[16];
+        int memberCount;
+    }
+
+    /**
+     * Compares worlds across the old and new model texts. The texts are
+     * equal up to <code>mPrefix</code> and in their last <code>mSuffix</code>
+     * characters, and anything in there needs no comparing.
+     */
+    private static class TextDiff {
+
+        TextDiff(String oldText, String newText) {
+            mOldText = oldText;
+            mNewText = newText;
+
+            int maxLength = Math.min(oldText.length(), newText.length());
+            int prefix = 0;
+            while (prefix < maxLength && oldText.charAt(prefix) == newText.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < maxLength - prefix &&
+                    oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix)) {
+                suffix++;
+            }
+            mPrefix = prefix;
+            mSuffix = suffix;
+        }
+
+        boolean same(WorldSpan oldSpan, WorldSpan newSpan) {
+            if (oldSpan == null || newSpan == null ||
+                    oldSpan.memberCount != newSpan.memberCount ||
+                    !equal(oldSpan.parentId, newSpan.parentId) ||
+                    !oldSpan.innerWorldIds.equals(newSpan.innerWorldIds)) {
+                return false;
+            }
+
+            for (int i = 0; i < oldSpan.memberCount * 2; i += 2) {
+                if (!sameMember(oldSpan.members[i], oldSpan.members[i + 1],
+                        newSpan.members[i], newSpan.members[i + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean sameMember(int oldStart, int oldEnd, int newStart, int newEnd) {
+            int length = oldEnd - oldStart;
+            if (length != newEnd - newStart) {
+                return false;
+            }
+            if (oldStart == newStart && oldEnd <= mPrefix) {
+                return true;
+            }
+            if (mOldText.length() - oldStart <= mSuffix &&
+                    mOldText.length() - oldStart == mNewText.length() - newStart) {
+                return true;
+            }
+            return mOldText.regionMatches(oldStart, mNewText, newStart, length);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        private final String mOldText;
+        private final String mNewText;
+        private final int mPrefix;
+        private final int mSuffix;
+    }
+
+
+    /** Private Members **/
+
+    private ModelIndex mIndex;
+    private final List<String> mAddedIds = new ArrayList<String>();
+    private final List<String> mRemovedIds = new ArrayList<String>();
+    private final List<String> mChangedWorldIds = new ArrayList<String>();
+    private final List<String> mOrphanedKeys = new ArrayList<String>();
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+/**
+ * Encodes the numbers stored as state (counters, durations and scores).
+ *
+ * <code>KeyValueStorage</code> only stores strings, so numbers are either
+ * decimal strings, or, with <code>LevelUpConfig.binaryNumbers</code> on, a
+ * compact form written with 64 digits (<code>0-9A-Za-z-_</code>), 6 bits
+ * each:
+ * <ul>
+ *     <li><code>#</code> followed by a variable number of digits holds a
+ *     whole number, zigzag encoded so small negative numbers stay short</li>
+ *     <li><code>*</code> followed by up to 11 digits holds the raw bits of a
+ *     double, most significant first, without trailing zero digits (which
+ *     most doubles have plenty of)</li>
+ * </ul>
+ * A number is written in the compact form only if it's shorter than its
+ * decimal string, so small counters stay decimal. Both forms are always
+ * read, whichever is configured.
+ */
+class NumberCodec {
+
+    static boolean isBinary() {
+        return mBinary;
+    }
+
+    static void setBinary(boolean binary) {
+        mBinary = binary;
+    }
+
+    static String encode(long value) {
+        return encode(value, mBinary);
+    }
+
+    static String encode(double value) {
+        return encode(value, mBinary);
+    }
+
+    /**
+     * Decodes a whole number.
+     *
+     * @throws NumberFormatException if the value isn't a number
+     */
+    static long decodeLong(String value) {
+        char tag = value.charAt(0);
+        if (tag == WHOLE) {
+            return unzigzag(decodeWhole(value));
+        }
+        if (tag == RAW) {
+            return (long) decodeDouble(value);
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Decodes a number, losslessly if it was written as a double.
+     *
+     * @throws NumberFormatException if the value isn't a number
+     */
+    static double decodeDouble(String value) {
+        char tag = value.charAt(0);
+        if (tag == WHOLE) {
+            return unzigzag(decodeWhole(value));
+        }
+        if (tag == RAW) {
+            return Double.longBitsToDouble(decodeRaw(value));
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Re-encodes a stored value in the given form.
+     *
+     * @return the re-encoded value, or the value itself if it's empty or not
+     * a number
+     */
+    static String recode(String value, boolean binary) {
+        if (value == null || value.length() == 0) {
+            return value;
+        }
+
+        try {
+            char tag = value.charAt(0);
+            if (tag == WHOLE) {
+                return encode(decodeLong(value), binary);
+            }
+            if (tag == RAW) {
+                return encode(decodeDouble(value), binary);
+            }
+            if (value.indexOf('.') < 0 && value.indexOf('E') < 0) {
+                return encode(Long.parseLong(value), binary);
+            }
+            return encode(Double.parseDouble(value), binary);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static String encode(long value, boolean binary) {
+        String decimal = String.valueOf(value);
+        if (!binary) {
+            return decimal;
+        }
+
+        String whole = encodeWhole(zigzag(value));
+        return whole.length() < decimal.length() ? whole : decimal;
+    }
+
+    private static String encode(double value, boolean binary) {
+        String decimal = String.valueOf(value);
+        if (!binary) {
+            return decimal;
+        }
+
+        String compact;
+        long whole = (long) value;
+        if (whole == value && (whole != 0 || Double.doubleToRawLongBits(value) == 0) &&
+                Math.abs(whole) < WHOLE_DOUBLE_LIMIT) {
+            // exactly a whole number (and not -0.0)
+            compact = encodeWhole(zigzag(whole));
+        } else {
+            compact = encodeRaw(Double.doubleToRawLongBits(value));
+        }
+        return compact.length() < decimal.length() ? compact : decimal;
+    }
+
+    private static String encodeWhole(long value) {
+        char[] chars = new char[1 + RAW_DIGITS];
+        int pos = chars.length;
+        do {
+            chars[--pos] = DIGITS[(int) (value & 63)];
+            value >>>= 6;
+        } while (value != 0);
+        chars[--pos] = WHOLE;
+        return new String(chars, pos, chars.length - pos);
+    }
+
+    /**
+     * Writes the bits most significant first, padded with two zero bits to
+     * whole digits, so the zero bits at the end of most doubles' mantissa
+     * make zero digits that can be left out.
+     */
+    private static String encodeRaw(long bits) {
+        char[] chars = new char[1 + RAW_DIGITS];
+        chars[0] = RAW;
+        int end = 2;
+        for (int i = 0; i < RAW_DIGITS; i++) {
+            int shift = RAW_SHIFT - i * 6;
+            int digit = (int) ((shift >= 0 ? bits >>> shift : bits << -shift) & 63);
+            chars[i + 1] = DIGITS[digit];
+            if (digit != 0) {
+                end = i + 2;
+            }
+        }
+        return new String(chars, 0, end);
+    }
+
+    private static long decodeRaw(String value) {
+        if (value.length() < 2 || value.length() - 1 > RAW_DIGITS) {
+            throw new NumberFormatException("Invalid number: " + value);
+        }
+
+        long bits = 0;
+        for (int i = 1; i < value.length(); i++) {
+            int shift = RAW_SHIFT - (i - 1) * 6;
+            long digit = decodeDigit(value, i);
+            bits |= shift >= 0 ? digit << shift : digit >>> -shift;
+        }
+        return bits;
+    }
+
+    private static long decodeWhole(String value) {
+        if (value.length() < 2 || value.length() - 1 > RAW_DIGITS) {
+            throw new NumberFormatException("Invalid number: " + value);
+        }
+
+        long result = 0;
+        for (int i = 1; i < value.length(); i++) {
+            result = (result << 6) | decodeDigit(value, i);
+        }
+        return result;
+    }
+
+    private static int decodeDigit(String value, int index) {
+        char c = value.charAt(index);
+        int digit = c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : -1;
+        if (digit < 0) {
+            throw new NumberFormatException("Invalid number: " + value);
+        }
+        return digit;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    /** Private Members **/
+
+    private static final char WHOLE = '#';
+    private static final char RAW = '*';
+
+    // 64 bits take 11 digits, the first one holding the top 6 bits
+    private static final int RAW_DIGITS = 11;
+    private static final int RAW_SHIFT = 58;
+
+    // whole doubles below it convert to a long and back exactly
+    private static final long WHOLE_DOUBLE_LIMIT = 1L << 53;
+
+    private static final char[] DIGITS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz-_".toCharArray();
+    private static final int[] DIGIT_VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < DIGIT_VALUES.length; i++) {
+            DIGIT_VALUES[i] = -1;
+        }
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGIT_VALUES[DIGITS[i]] = i;
+        }
+    }
+
+    private static volatile boolean mBinary = false;
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The packed layout of level and world state. Normally every field of a
+ * level or world (such as <code>soomla.levelup.levels.&lt;id&gt;.played</code>)
+ * has its own key. In the packed layout, all the fields of one level or world
+ * are stored together as one record under
+ * <code>&lt;prefix&gt;&lt;id&gt;.record</code>, so they're read (and cached
+ * by the mirror) with a single lookup.
+ *
+ * The storage classes keep using field keys either way,
+ * <code>LUKeyValueStorage</code> maps them to records here. The layout is
+ * chosen by <code>LevelUpConfig.packedStateRecords</code> when LevelUp is
+ * initialized, and the stored state is migrated when it changes.
+ *
+ * A record is its fields in order, separated by commas. A field that has a
+ * value is written as <code>=</code> followed by the value, with commas and
+ * backslashes escaped by a backslash, and a field without one is left empty.
+ */
+class RecordLayout {
+
+    /**
+     * A field key, mapped to the record it's in.
+     */
+    static class Field {
+
+        Field(String recordKey, int index, int count) {
+            this.recordKey = recordKey;
+            this.index = index;
+            this.count = count;
+        }
+
+        final String recordKey;
+        final int index;
+        final int count;
+    }
+
+    static boolean isPacked() {
+        return mPacked;
+    }
+
+    static void setPacked(boolean packed) {
+        mPacked = packed;
+    }
+
+    /**
+     * Maps the given key to the record it's stored in, when the layout is
+     * packed.
+     *
+     * @param key a storage key
+     * @return the field, or <code>null</code> if the layout isn't packed or
+     * the key isn't a level or world field
+     */
+    static Field getField(String key) {
+        if (!mPacked) {
+            return null;
+        }
+
+        Field field = FIELDS.get(key);
+        if (field == null) {
+            field = parseField(key);
+            FIELDS.put(key, field != null ? field : NOT_A_FIELD);
+        }
+        return field != NOT_A_FIELD ? field : null;
+    }
+
+    /**
+     * Retrieves a field of a record.
+     *
+     * @param record the record, or <code>null</code> if there's none
+     * @param index the index of the field
+     * @return the field's value, or <code>null</code> if it has none
+     */
+    static String get(String record, int index) {
+        if (record == null) {
+            return null;
+        }
+
+        int field = 0;
+        int i = 0;
+        while (field < index) {
+            if (i >= record.length()) {
+                return null;
+            }
+            char c = record.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == SEPARATOR) {
+                field++;
+            }
+        }
+        return i < record.length() && record.charAt(i) == VALUE ? unescape(record, i + 1) : null;
+    }
+
+    /**
+     * Sets a field of a record.
+     *
+     * @param record the record, or <code>null</code> if there's none
+     * @param field the field to set
+     * @param value the field's new value, or <code>null</code> to clear it
+     * @return the new record, or <code>null</code> if none of its fields has
+     * a value
+     */
+    static String with(String record, Field field, String value) {
+        String[] values = new String[field.count];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i == field.index ? value : get(record, i);
+        }
+        return join(values);
+    }
+
+    /**
+     * Splits a record into its fields.
+     *
+     * @param key a storage key
+     * @param record the record stored under it, or <code>null</code> if
+     *               there's none
+     * @return the values of the record's fields, <code>null</code> for those
+     * without one, or <code>null</code> if the key isn't a level or world
+     * record
+     */
+    static String[] split(String key, String record) {
+        ItemKeys itemKeys = getItemKeys(key);
+        if (itemKeys == null || !key.endsWith(RECORD_POSTFIX)) {
+            return null;
+        }
+
+        String[] values = new String[itemKeys.getPostfixes().length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(record, i);
+        }
+        return values;
+    }
+
+    /**
+     * Packs the given field keys into records.
+     *
+     * @param keys storage keys, of which the level and world fields are
+     *             packed
+     * @param values the stored values of the keys
+     * @param writes receives the records, and the field keys to delete
+     *               (mapped to <code>null</code>)
+     */
+    static void pack(Collection<String> keys, Map<String, String> values, Map<String, String> writes) {
+        HashMap<String, String[]> records = new HashMap<String, String[]>();
+        for (String key : keys) {
+            Field field = parseField(key);
+            if (field == null) {
+                continue;
+            }
+
+            String value = values.get(key);
+            if (value != null) {
+                String[] fields = records.get(field.recordKey);
+                if (fields == null) {
+                    fields = new String[field.count];
+                    records.put(field.recordKey, fields);
+                }
+                fields[field.index] = value;
+            }
+            writes.put(key, null);
+        }
+
+        for (Map.Entry<String, String[]> record : records.entrySet()) {
+            writes.put(record.getKey(), join(record.getValue()));
+        }
+    }
+
+    /**
+     * Unpacks the given records into field keys.
+     *
+     * @param keys storage keys, of which the level and world records are
+     *             unpacked
+     * @param values the stored values of the keys
+     * @param writes receives the field keys, and the records to delete
+     *               (mapped to <code>null</code>)
+     */
+    static void unpack(Collection<String> keys, Map<String, String> values, Map<String, String> writes) {
+        for (String key : keys) {
+            ItemKeys itemKeys = getItemKeys(key);
+            if (itemKeys == null || !key.endsWith(RECORD_POSTFIX)) {
+                continue;
+            }
+
+            String record = values.get(key);
+            String itemPrefix = key.substring(0, key.length() - RECORD_POSTFIX.length() + 1);
+            String[] postfixes = itemKeys.getPostfixes();
+            for (int i = 0; i < postfixes.length; i++) {
+                String value = get(record, i);
+                if (value != null) {
+                    writes.put(itemPrefix + postfixes[i], value);
+                }
+            }
+            writes.put(key, null);
+        }
+    }
+
+    private static Field parseField(String key) {
+        ItemKeys itemKeys = getItemKeys(key);
+        if (itemKeys == null) {
+            return null;
+        }
+
+        String prefix = itemKeys.getPrefix();
+        String[] postfixes = itemKeys.getPostfixes();
+        for (int i = 0; i < postfixes.length; i++) {
+            String postfix = postfixes[i];
+            int idEnd = key.length() - postfix.length() - 1;
+            if (idEnd > prefix.length() && key.endsWith(postfix) && key.charAt(idEnd) == '.') {
+                return new Field(key.substring(0, idEnd) + RECORD_POSTFIX, i, postfixes.length);
+            }
+        }
+        return null;
+    }
+
+    private static ItemKeys getItemKeys(String key) {
+        if (key.startsWith(LevelStorage.DB_LEVEL_KEY_PREFIX)) {
+            return LevelStorage.KEYS;
+        }
+        if (key.startsWith(WorldStorage.DB_WORLD_KEY_PREFIX)) {
+            return WorldStorage.KEYS;
+        }
+        return null;
+    }
+
+    /**
+     * Joins the given field values into a record.
+     *
+     * @return the record, or <code>null</code> if none of the fields has a
+     * value
+     */
+    static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        boolean empty = true;
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            String value = values[i];
+            if (value == null) {
+                continue;
+            }
+
+            empty = false;
+            sb.append(VALUE);
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == SEPARATOR || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return empty ? null : sb.toString();
+    }
+
+    private static String unescape(String record, int start) {
+        StringBuilder sb = null;
+        int i = start;
+        while (i < record.length()) {
+            char c = record.charAt(i);
+            if (c == SEPARATOR) {
+                break;
+            }
+            if (c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder(record.substring(start, i));
+                }
+                i++;
+                if (i < record.length()) {
+                    sb.append(record.charAt(i));
+                }
+            } else if (sb != null) {
+                sb.append(c);
+            }
+            i++;
+        }
+        return sb != null ? sb.toString() : record.substring(start, i);
+    }
+
+
+    /** Private Members **/
+
+    static final String RECORD_POSTFIX = ".record";
+    private static final char SEPARATOR = ',';
+    private static final char VALUE = '=';
+
+    private static final Field NOT_A_FIELD = new Field(null, -1, 0);
+
+    // the mapping of every key looked up while packed
+    private static final ConcurrentHashMap<String, Field> FIELDS = new ConcurrentHashMap<String, Field>();
+
+    private static volatile boolean mPacked = false;
+}
@@ -18,8 +18,6 @@ package com.soomla.levelup.data;
 
 import android.text.TextUtils;
 
-import com.soomla.BusProvider;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.LevelUp;
 import com.soomla.levelup.events.LatestScoreChangedEvent;
 import com.soomla.levelup.events.ScoreRecordChangedEvent;
@@ -45,6 +43,16 @@ public class ScoreStorage {
         return keyScores(scoreId, "record");
     }
 
+    /**
+     * Retrieves all the keys the state of the given score may be stored under.
+     */
+    static String[] stateKeys(String scoreId) {
+        return new String[] {
+                keyLatestScore(scoreId),
+                keyRecordScore(scoreId)
+        };
+    }
+
 
     /** Latest ScoreId **/
 
@@ -58,12 +66,36 @@ public class ScoreStorage {
         setLatestScore(scoreId, latest, true);
     }
     public static void setLatestScore(String scoreId, double latest, boolean notify) {
+        int scoreHandle = ItemKeys.getHandle(scoreId);
+        if (scoreHandle != ModelIndex.NO_HANDLE) {
+            setLatestScore(scoreHandle, latest, notify);
+            return;
+        }
+
         String key = keyLatestScore(scoreId);
-        String val = String.valueOf(latest);
-        KeyValueStorage.setValue(key, val);
+        String val = NumberCodec.encode(latest);
+        LUKeyValueStorage.setValue(key, val);
+
+        if (notify) {
+            StateTransaction.post(new LatestScoreChangedEvent(scoreId));
+        }
+    }
+
+    /**
+     * Saves a new value for the score with the given handle
+     *
+     * @param scoreHandle the handle of the score in the model index
+     * @param latest the latest value to save
+     */
+    public static void setLatestScore(int scoreHandle, double latest) {
+        setLatestScore(scoreHandle, latest, true);
+    }
+
+    public static void setLatestScore(int scoreHandle, double latest, boolean notify) {
+        LATEST_SCORE.setDouble(scoreHandle, latest);
 
         if (notify) {
-            BusProvider.getInstance().post(new LatestScoreChangedEvent(scoreId));
+            StateTransaction.post(new LatestScoreChangedEvent(KEYS.getItemId(scoreHandle)));
         }
     }
 
@@ -74,9 +106,21 @@ public class ScoreStorage {
      * @return the last saved value
      */
     public static double getLatestScore(String scoreId) {
-        String key = keyLatestScore(scoreId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? -1 : Double.parseDouble(val);
+        int scoreHandle = ItemKeys.getHandle(scoreId);
+        if (scoreHandle != ModelIndex.NO_HANDLE) {
+            return getLatestScore(scoreHandle);
+        }
+        return getScoreForKey(keyLatestScore(scoreId));
+    }
+
+    /**
+     * Gets the most recently saved value of the score with the given handle.
+     *
+     * @param scoreHandle the handle of the score in the model index
+     * @return the last saved value
+     */
+    public static double getLatestScore(int scoreHandle) {
+        return LATEST_SCORE.getDouble(scoreHandle);
     }
 
 
@@ -93,12 +137,36 @@ public class ScoreStorage {
      * @param record the new record value
      */
     public static void setRecordScore(String scoreId, double record, boolean notify) {
+        int scoreHandle = ItemKeys.getHandle(scoreId);
+        if (scoreHandle != ModelIndex.NO_HANDLE) {
+            setRecordScore(scoreHandle, record, notify);
+            return;
+        }
+
         String key = keyRecordScore(scoreId);
-        String val = String.valueOf(record);
-        KeyValueStorage.setValue(key, val);
+        String val = NumberCodec.encode(record);
+        LUKeyValueStorage.setValue(key, val);
+
+        if (notify) {
+            StateTransaction.post(new ScoreRecordChangedEvent(scoreId));
+        }
+    }
+
+    public static void setRecordScore(int scoreHandle, double record) {
+        setRecordScore(scoreHandle, record, true);
+    }
+
+    /**
+     * Sets a new record for the score with the given handle.
+     *
+     * @param scoreHandle the handle of the score in the model index
+     * @param record the new record value
+     */
+    public static void setRecordScore(int scoreHandle, double record, boolean notify) {
+        RECORD_SCORE.setDouble(scoreHandle, record);
 
         if (notify) {
-            BusProvider.getInstance().post(new ScoreRecordChangedEvent(scoreId));
+            StateTransaction.post(new ScoreRecordChangedEvent(KEYS.getItemId(scoreHandle)));
         }
     }
 
@@ -109,10 +177,30 @@ public class ScoreStorage {
      * @return the record of the given score
      */
     public static double getRecordScore(String scoreId) {
-        String key = keyRecordScore(scoreId);
-        String val = KeyValueStorage.getValue(key);
-        return TextUtils.isEmpty(val) ? -1 : Double.parseDouble(val);
+        int scoreHandle = ItemKeys.getHandle(scoreId);
+        if (scoreHandle != ModelIndex.NO_HANDLE) {
+            return getRecordScore(scoreHandle);
+        }
+        return getScoreForKey(keyRecordScore(scoreId));
+    }
+
+    /**
+     * Retrieves the record of the score with the given handle
+     *
+     * @param scoreHandle the handle of the score in the model index
+     * @return the record of the given score
+     */
+    public static double getRecordScore(int scoreHandle) {
+        return RECORD_SCORE.getDouble(scoreHandle);
+    }
+
+    private static double getScoreForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
+        return TextUtils.isEmpty(val) ? -1 : NumberCodec.decodeDouble(val);
     }
 
     public static final String DB_SCORE_KEY_PREFIX = LevelUp.DB_KEY_PREFIX + "scores.";
+    private static final ItemKeys KEYS = new ItemKeys(DB_SCORE_KEY_PREFIX, "latest", "record");
+    private static final StateColumn LATEST_SCORE = StateColumn.ofDouble(KEYS, 0, -1);
+    private static final StateColumn RECORD_SCORE = StateColumn.ofDouble(KEYS, 1, -1);
 }
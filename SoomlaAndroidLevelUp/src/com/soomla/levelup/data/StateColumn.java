@@ -0,0 +1,660 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory column of one numeric state value (such as the times a level
+ * was played) for all model items, in an <code>int[]</code> or
+ * <code>long[]</code> indexed by item handle. Doubles are kept as their raw
+ * bits in a <code>long[]</code>.
+ *
+ * A value is read from <code>KeyValueStorage</code> and parsed the first time
+ * it's needed, after which reads are an array load. Writes go to both the
+ * column and <code>KeyValueStorage</code>, so the column stays in sync with
+ * persistence as long as the state is only changed through the storage
+ * classes. Anything that changes state keys directly must call
+ * {@link #invalidateAll()} afterwards.
+ *
+ * A column is dropped and re-read whenever the model index is replaced,
+ * since handles differ between indexes.
+ *
+ * A thread with an open <code>StateTransaction</code> reads and writes past
+ * the column, since its writes must not be seen by other threads before
+ * they're committed.
+ *
+ * Each item's value is guarded by one of {@link #STRIPES} locks, picked by
+ * its handle, so reads, writes and increments of different items rarely wait
+ * for each other, while those of the same item (including the write to
+ * storage) happen one at a time and are never lost. A committed
+ * <code>StateTransaction</code> becomes visible with the locks of the values
+ * it changes held, and its counter updates are added to the values as they
+ * are then.
+ *
+ * With <code>LevelUpConfig.mappedState</code> on, values are kept in a
+ * <code>MappedState</code> file instead, which reads and writes go straight
+ * to, and <code>KeyValueStorage</code> isn't used for them.
+ */
+public class StateColumn {
+
+    /**
+     * Drops the values of all columns, so they're read again from
+     * <code>KeyValueStorage</code>.
+     */
+    public static void invalidateAll() {
+        synchronized (ALL_COLUMNS) {
+            for (StateColumn column : ALL_COLUMNS) {
+                column.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Sets the mapped state the columns keep their values in, or
+     * <code>null</code> to go back to <code>KeyValueStorage</code>.
+     */
+    static void setMapped(MappedState mapped) {
+        mMapped = mapped;
+        invalidateAll();
+    }
+
+    static MappedState getMapped() {
+        return mMapped;
+    }
+
+    /**
+     * Copies the values stored under the given keys into the given mapped
+     * state.
+     *
+     * @param mapped the mapped state
+     * @param keys storage keys, of which those of items with columns are
+     *             copied (field keys and packed records alike)
+     */
+    static void copyToMapped(MappedState mapped, Collection<String> keys) {
+        for (StateColumn column : getColumns()) {
+            HashSet<String> itemIds = new HashSet<String>();
+            for (String key : keys) {
+                String itemId = column.getItemId(key, true);
+                if (itemId != null && itemIds.add(itemId)) {
+                    String val = LUKeyValueStorage.getValue(column.keyOf(itemId));
+                    if (!TextUtils.isEmpty(val)) {
+                        mapped.set(itemId, column.mPostfix, column.mCategory, column.parse(val));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies all the values in the given mapped state to storage.
+     *
+     * @param mapped the mapped state
+     */
+    static void copyFromMapped(MappedState mapped) {
+        List<StateColumn> columns = getColumns();
+        for (int slot = 0; slot < mapped.getSlotCount(); slot++) {
+            int category = mapped.getCategory(slot);
+            for (StateColumn column : columns) {
+                if (column.mCategory == category && mapped.hasSlotValue(slot, column.mPostfix)) {
+                    String key = column.keyOf(mapped.getItemId(slot));
+                    LUKeyValueStorage.setValue(key, column.encode(mapped.getSlotValue(slot, column.mPostfix)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the committed writes of a transaction visible, with the locks of
+     * the column values they change held, so no other thread reads or
+     * increments one of those values in the meantime. Counter updates are
+     * added to the values as they are once the locks are held (counters
+     * without a column are held by their <code>KeyLocks</code>). The columns
+     * with changed values are dropped (and the mapped state updated) before
+     * the locks are released.
+     *
+     * @param writes key to value, or to <code>null</code> for a delete
+     * @param counts key of a counter to the change to make to it
+     * @param clearedPrefixes the prefixes of the items whose mapped values
+     *                        the commit replaces, cleared once the writes
+     *                        are published
+     */
+    static void commit(Map<String, String> writes, Map<String, Integer> counts, String... clearedPrefixes) {
+        // taken in column order, then stripe order, so two commits can't deadlock
+        List<Object> locks = new ArrayList<Object>();
+        List<StateColumn> changed = new ArrayList<StateColumn>();
+        HashSet<String> columnCounts = new HashSet<String>();
+        for (StateColumn column : getColumns()) {
+            boolean[] stripes = new boolean[STRIPES];
+            boolean any = column.markStripes(writes.keySet(), stripes, null);
+            any |= column.markStripes(counts.keySet(), stripes, columnCounts);
+            if (any) {
+                changed.add(column);
+                for (int i = 0; i < STRIPES; i++) {
+                    if (stripes[i]) {
+                        locks.add(column.mLocks[i]);
+                    }
+                }
+            }
+        }
+
+        boolean[] keyStripes = new boolean[KeyLocks.STRIPES];
+        for (String key : counts.keySet()) {
+            if (!columnCounts.contains(key)) {
+                keyStripes[KeyLocks.stripeOf(key)] = true;
+            }
+        }
+        for (int i = 0; i < KeyLocks.STRIPES; i++) {
+            if (keyStripes[i]) {
+                locks.add(KeyLocks.forStripe(i));
+            }
+        }
+
+        commitLocked(writes, counts, clearedPrefixes, changed, locks, 0);
+    }
+
+    private static void commitLocked(Map<String, String> writes, Map<String, Integer> counts, String[] clearedPrefixes,
+                                     List<StateColumn> changed, List<Object> locks, int next) {
+        if (next < locks.size()) {
+            synchronized (locks.get(next)) {
+                commitLocked(writes, counts, clearedPrefixes, changed, locks, next + 1);
+            }
+            return;
+        }
+
+        if (!counts.isEmpty()) {
+            LinkedHashMap<String, String> counted = new LinkedHashMap<String, String>(writes);
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                String key = count.getKey();
+                long value = StateTransaction.applyCount(getCount(key, writes, clearedPrefixes), count.getValue());
+                counted.put(key, NumberCodec.encode(value));
+            }
+            writes = counted;
+        }
+
+        LUKeyValueStorage.publish(writes);
+        // the columns didn't see the transaction's writes
+        clearMapped(clearedPrefixes);
+        applyToMapped(writes);
+        for (StateColumn column : changed) {
+            column.invalidate();
+        }
+    }
+
+    /**
+     * Marks the stripes of the values of this column that have one of the
+     * given keys.
+     *
+     * @param keys storage keys
+     * @param stripes the stripes to mark
+     * @param columnKeys where to add the keys that are of this column, or
+     *                   <code>null</code>
+     * @return <code>true</code> if any of the keys is of this column
+     */
+    private boolean markStripes(Collection<String> keys, boolean[] stripes, Collection<String> columnKeys) {
+        boolean any = false;
+        for (String key : keys) {
+            String itemId = getItemId(key, true);
+            int handle = itemId != null ? ItemKeys.getHandle(itemId) : ModelIndex.NO_HANDLE;
+            if (handle != ModelIndex.NO_HANDLE) {
+                stripes[handle & (STRIPES - 1)] = true;
+                any = true;
+                if (columnKeys != null) {
+                    columnKeys.add(key);
+                }
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Reads a counter as it is before the given writes are published, or as
+     * the writes leave it if they replace it.
+     */
+    private static long getCount(String key, Map<String, String> writes, String[] clearedPrefixes) {
+        if (writes.containsKey(key)) {
+            return StateTransaction.parseCount(writes.get(key));
+        }
+        for (String prefix : clearedPrefixes) {
+            if (key.startsWith(prefix)) {
+                return 0;
+            }
+        }
+
+        MappedState mapped = mMapped;
+        if (mapped != null) {
+            for (StateColumn column : getColumns()) {
+                String itemId = column.getItemId(key, false);
+                int handle = itemId != null ? ItemKeys.getHandle(itemId) : ModelIndex.NO_HANDLE;
+                if (handle != ModelIndex.NO_HANDLE) {
+                    return mapped.get(handle, column.mPostfix, column.mDefaultValue);
+                }
+            }
+        }
+        return StateTransaction.parseCount(LUKeyValueStorage.getValue(key));
+    }
+
+    /**
+     * Applies the committed writes of a transaction to the mapped state,
+     * which doesn't see them otherwise.
+     *
+     * @param writes key to value, or to <code>null</code> for a delete
+     */
+    static void applyToMapped(Map<String, String> writes) {
+        MappedState mapped = mMapped;
+        if (mapped == null) {
+            return;
+        }
+
+        for (StateColumn column : getColumns()) {
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                String itemId = column.getItemId(write.getKey(), false);
+                int handle = itemId != null ? ItemKeys.getHandle(itemId) : ModelIndex.NO_HANDLE;
+                if (handle != ModelIndex.NO_HANDLE) {
+                    synchronized (column.lockFor(handle)) {
+                        mapped.set(handle, column.mPostfix, column.mCategory, column.parse(write.getValue()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the mapped values of the items stored under the given prefixes.
+     */
+    static void clearMapped(String... prefixes) {
+        MappedState mapped = mMapped;
+        if (mapped != null) {
+            for (String prefix : prefixes) {
+                int category = MappedState.categoryOf(prefix);
+                if (category > 0) {
+                    mapped.clear(category);
+                }
+            }
+        }
+    }
+
+    static StateColumn ofInt(ItemKeys keys, int postfix, int defaultValue) {
+        return new StateColumn(keys, postfix, KIND_INT, defaultValue);
+    }
+
+    static StateColumn ofLong(ItemKeys keys, int postfix, long defaultValue) {
+        return new StateColumn(keys, postfix, KIND_LONG, defaultValue);
+    }
+
+    static StateColumn ofDouble(ItemKeys keys, int postfix, double defaultValue) {
+        return new StateColumn(keys, postfix, KIND_DOUBLE, Double.doubleToRawLongBits(defaultValue));
+    }
+
+    /**
+     * A column of flags, which are stored as a value when they're set and
+     * as no value when they're not.
+     */
+    static StateColumn ofFlag(ItemKeys keys, int postfix) {
+        return new StateColumn(keys, postfix, KIND_FLAG, 0);
+    }
+
+    private StateColumn(ItemKeys keys, int postfix, int kind, long defaultValue) {
+        mKeys = keys;
+        mPostfix = postfix;
+        mKind = kind;
+        mDefaultValue = defaultValue;
+        mCategory = MappedState.categoryOf(keys.getPrefix());
+
+        mLocks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+
+        synchronized (ALL_COLUMNS) {
+            ALL_COLUMNS.add(this);
+        }
+    }
+
+    int getInt(int handle) {
+        synchronized (lockFor(handle)) {
+            if (StateTransaction.isOpen()) {
+                return (int) read(handle);
+            }
+            MappedState mapped = mMapped;
+            if (mapped != null) {
+                return (int) mapped.get(handle, mPostfix, mDefaultValue);
+            }
+            Values values = load(handle);
+            return values.ints[handle];
+        }
+    }
+
+    void setInt(int handle, int value) {
+        synchronized (lockFor(handle)) {
+            if (StateTransaction.isOpen()) {
+                write(handle, encode(value));
+                return;
+            }
+            MappedState mapped = mMapped;
+            if (mapped != null) {
+                mapped.set(handle, mPostfix, mCategory, value);
+                StateVersions.touch(mKeys.get(handle, mPostfix));
+                return;
+            }
+            Values values = getValues(handle);
+            values.ints[handle] = value;
+            values.setLoaded(handle);
+            write(handle, encode(value));
+        }
+    }
+
+    boolean getFlag(int handle) {
+        return getInt(handle) != 0;
+    }
+
+    void setFlag(int handle, boolean value) {
+        setInt(handle, value ? 1 : 0);
+    }
+
+    /**
+     * Adds one to the value, treating negative values as 0.
+     *
+     * @return the new value
+     */
+    int increment(int handle) {
+        synchronized (lockFor(handle)) {
+            int value = getInt(handle);
+            int count = value < 0 ? 0 : value; /* can't be negative */
+            setCount(handle, value, count + 1);
+            return count + 1;
+        }
+    }
+
+    /**
+     * Subtracts one from the value, unless it's already 0 or less.
+     *
+     * @return the new value, 0 if it couldn't be decremented
+     */
+    int decrement(int handle) {
+        synchronized (lockFor(handle)) {
+            int value = getInt(handle);
+            if (value <= 0) { /* can't be negative or zero */
+                return 0;
+            }
+            setCount(handle, value, value - 1);
+            return value - 1;
+        }
+    }
+
+    /**
+     * Adds the given delta to the value, without going below 0.
+     *
+     * @return the new value
+     */
+    int add(int handle, int delta) {
+        synchronized (lockFor(handle)) {
+            int oldValue = getInt(handle);
+            int value = oldValue + delta;
+            if (value < 0) {
+                value = 0;
+            }
+            setCount(handle, oldValue, value);
+            return value;
+        }
+    }
+
+    /**
+     * Sets a counter to its updated value, or records the update in the
+     * calling thread's transaction, to be applied to the counter as it is on
+     * commit. Called with the handle's lock held.
+     */
+    private void setCount(int handle, int oldValue, int value) {
+        if (!StateTransaction.count(mKeys.get(handle, mPostfix), value - oldValue)) {
+            setInt(handle, value);
+        }
+    }
+
+    long getLong(int handle) {
+        synchronized (lockFor(handle)) {
+            if (StateTransaction.isOpen()) {
+                return read(handle);
+            }
+            MappedState mapped = mMapped;
+            if (mapped != null) {
+                return mapped.get(handle, mPostfix, mDefaultValue);
+            }
+            Values values = load(handle);
+            return values.longs[handle];
+        }
+    }
+
+    void setLong(int handle, long value) {
+        setLongBits(handle, value);
+    }
+
+    double getDouble(int handle) {
+        return Double.longBitsToDouble(getLong(handle));
+    }
+
+    void setDouble(int handle, double value) {
+        setLongBits(handle, Double.doubleToRawLongBits(value));
+    }
+
+    private void setLongBits(int handle, long bits) {
+        synchronized (lockFor(handle)) {
+            if (StateTransaction.isOpen()) {
+                write(handle, encode(bits));
+                return;
+            }
+            MappedState mapped = mMapped;
+            if (mapped != null) {
+                mapped.set(handle, mPostfix, mCategory, bits);
+                StateVersions.touch(mKeys.get(handle, mPostfix));
+                return;
+            }
+            Values values = getValues(handle);
+            values.longs[handle] = bits;
+            values.setLoaded(handle);
+            write(handle, encode(bits));
+        }
+    }
+
+    private Object lockFor(int handle) {
+        return mLocks[handle & (STRIPES - 1)];
+    }
+
+    private void invalidate() {
+        mValues = null;
+    }
+
+    private Values load(int handle) {
+        Values values = getValues(handle);
+        if (values.isLoaded(handle)) {
+            return values;
+        }
+
+        if (mKind != KIND_LONG && mKind != KIND_DOUBLE) {
+            values.ints[handle] = (int) read(handle);
+        } else {
+            values.longs[handle] = read(handle);
+        }
+        values.setLoaded(handle);
+        return values;
+    }
+
+    /**
+     * Reads the value from storage (or the mapped state, unless the calling
+     * thread's transaction wrote it), as an int, a long, or the raw bits of
+     * a double. A counter includes the updates recorded by the calling
+     * thread's transaction.
+     */
+    private long read(int handle) {
+        String key = mKeys.get(handle, mPostfix);
+        int count = StateTransaction.pendingCount(key);
+        MappedState mapped = mMapped;
+        if (mapped != null) {
+            StateTransaction transaction = StateTransaction.current();
+            if (transaction == null || !transaction.hasWrite(key)) {
+                return mapped.get(handle, mPostfix, mDefaultValue) + count;
+            }
+        }
+        return parse(LUKeyValueStorage.getValue(key)) + count;
+    }
+
+    private long parse(String val) {
+        if (TextUtils.isEmpty(val)) {
+            return mDefaultValue;
+        }
+        if (mKind == KIND_FLAG) {
+            return 1;
+        }
+        if (mKind == KIND_DOUBLE) {
+            return Double.doubleToRawLongBits(NumberCodec.decodeDouble(val));
+        }
+        return NumberCodec.decodeLong(val);
+    }
+
+    private String encode(long value) {
+        if (mKind == KIND_FLAG) {
+            return value != 0 ? FLAG_SET : null;
+        }
+        if (mKind == KIND_DOUBLE) {
+            return NumberCodec.encode(Double.longBitsToDouble(value));
+        }
+        return NumberCodec.encode(value);
+    }
+
+    /**
+     * Retrieves the id of the item the given key belongs to, if it's a key
+     * of this column.
+     *
+     * @param key a storage key
+     * @param records whether to take packed records as keys of the column
+     * @return the item's id, or <code>null</code> if the key isn't one of
+     * this column's
+     */
+    private String getItemId(String key, boolean records) {
+        String prefix = mKeys.getPrefix();
+        if (!key.startsWith(prefix)) {
+            return null;
+        }
+        String postfix = "." + mKeys.getPostfixes()[mPostfix];
+        if (key.endsWith(postfix) && key.length() > prefix.length() + postfix.length()) {
+            return key.substring(prefix.length(), key.length() - postfix.length());
+        }
+        if (records && key.endsWith(RecordLayout.RECORD_POSTFIX) && key.length() > prefix.length() + RecordLayout.RECORD_POSTFIX.length()) {
+            return key.substring(prefix.length(), key.length() - RecordLayout.RECORD_POSTFIX.length());
+        }
+        return null;
+    }
+
+    private String keyOf(String itemId) {
+        return mKeys.getPrefix() + itemId + "." + mKeys.getPostfixes()[mPostfix];
+    }
+
+    private static List<StateColumn> getColumns() {
+        synchronized (ALL_COLUMNS) {
+            return new ArrayList<StateColumn>(ALL_COLUMNS);
+        }
+    }
+
+    private void write(int handle, String value) {
+        LUKeyValueStorage.setValue(mKeys.get(handle, mPostfix), value);
+    }
+
+    /**
+     * Retrieves the values, making new ones if the index was replaced or
+     * gave out more handles. Called with the handle's lock held.
+     */
+    private Values getValues(int handle) {
+        Values values = mValues;
+        ModelIndex index = ModelCache.getIndex();
+        if (values != null && values.index == index && handle >= 0 && handle < values.capacity) {
+            return values;
+        }
+
+        if (index == null || handle < 0 || handle >= index.getHandleCount()) {
+            throw new IllegalArgumentException("No model item with handle " + handle);
+        }
+
+        synchronized (this) {
+            values = mValues;
+            if (values == null || values.index != index || handle >= values.capacity) {
+                // not copied from the old values, which other stripes may still be writing to
+                values = new Values(index, mKind == KIND_INT || mKind == KIND_FLAG);
+                mValues = values;
+            }
+            return values;
+        }
+    }
+
+    /**
+     * The values of a column. Each value, and its loaded bit, is only read
+     * and written with its handle's lock held. Loaded bits are set without
+     * locking the word they're in, so a bit may be lost to a race with
+     * another stripe, which just means the value is read again.
+     */
+    private static class Values {
+
+        Values(ModelIndex index, boolean ints) {
+            this.index = index;
+            capacity = index.getHandleCount();
+            this.ints = ints ? new int[capacity] : null;
+            this.longs = ints ? null : new long[capacity];
+            loaded = new long[(capacity + 63) / 64];
+        }
+
+        boolean isLoaded(int handle) {
+            return (loaded[handle >>> 6] & (1L << handle)) != 0;
+        }
+
+        void setLoaded(int handle) {
+            loaded[handle >>> 6] |= 1L << handle;
+        }
+
+        final ModelIndex index;
+        final int capacity;
+        final int[] ints;
+        final long[] longs;
+        final long[] loaded;
+    }
+
+    private final ItemKeys mKeys;
+    private final int mPostfix;
+    private final int mKind;
+    private final long mDefaultValue;
+    private final int mCategory;
+    private final Object[] mLocks;
+    private volatile Values mValues;
+
+    private static final List<StateColumn> ALL_COLUMNS = new ArrayList<StateColumn>();
+
+    // a power of two
+    private static final int STRIPES = 16;
+
+    private static final int KIND_INT = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_DOUBLE = 2;
+    private static final int KIND_FLAG = 3;
+
+    private static final String FLAG_SET = "yes";
+
+    private static volatile MappedState mMapped;
+}
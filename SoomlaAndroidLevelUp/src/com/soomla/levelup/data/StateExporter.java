@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the LevelUp state as JSON straight to a <code>Writer</code>, item
+ * by item, instead of building a <code>JSONObject</code> tree of it first,
+ * so exporting takes the same little memory however big the model is.
+ *
+ * The JSON holds the same objects as <code>LevelUp.getLevelUpState()</code>,
+ * with items in model order, <code>null</code> values left out, and numbers
+ * and strings formatted like <code>JSONObject</code> does. It can also
+ * hold just the items changed since an earlier export, which takes time
+ * and space by the number of changes rather than the size of the model.
+ */
+public class StateExporter {
+
+    /**
+     * Writes the state of the items in the given model index.
+     *
+     * @param index the model index, or <code>null</code> for no model
+     * @param writer the writer to write the JSON to, which is neither
+     *               flushed nor closed
+     * @throws IOException if the writer fails
+     */
+    public static void writeState(ModelIndex index, Writer writer) throws IOException {
+        new StateExporter(writer).write(index);
+    }
+
+    /**
+     * Writes the state of the items changed since the given version, in the
+     * same objects as {@link #writeState(ModelIndex, Writer)}, followed by
+     * <code>"version"</code>, the version to ask for changes since next
+     * time, and <code>"full"</code>, which is <code>true</code> if the
+     * changes since the given version aren't known (see
+     * <code>StateVersions</code>), and all items were written.
+     *
+     * @param index the model index, or <code>null</code> for no model
+     * @param since a version returned by an earlier call, or 0 for all items
+     * @param writer the writer to write the JSON to, which is neither
+     *               flushed nor closed
+     * @return the version to ask for changes since next time
+     * @throws IOException if the writer fails
+     */
+    public static long writeChanges(ModelIndex index, long since, Writer writer) throws IOException {
+        StateVersions.Changes changes = StateVersions.getChanges(since);
+        StateExporter exporter = new StateExporter(writer);
+
+        writer.write('{');
+        if (index != null) {
+            if (changes.itemIds == null) {
+                exporter.writeCategories(index, index.getGateIds(), index.getWorldIds(), index.getMissionIds(),
+                        index.getScoreIds());
+            } else {
+                exporter.writeChanges(index, changes.itemIds);
+            }
+            writer.write(',');
+        }
+        exporter.writeKey("version", true);
+        exporter.writeLong(changes.version);
+        exporter.writeBoolean("full", changes.itemIds == null, false);
+        writer.write('}');
+        return changes.version;
+    }
+
+    private StateExporter(Writer writer) {
+        mWriter = writer;
+    }
+
+    private void write(ModelIndex index) throws IOException {
+        mWriter.write('{');
+        if (index != null) {
+            writeCategories(index, index.getGateIds(), index.getWorldIds(), index.getMissionIds(),
+                    index.getScoreIds());
+        }
+        mWriter.write('}');
+    }
+
+    /**
+     * Sorts the changed items into their categories, leaving out items
+     * that are no longer in the model, and writes them.
+     */
+    private void writeChanges(ModelIndex index, List<String> itemIds) throws IOException {
+        List<String> gateIds = new ArrayList<String>();
+        List<String> worldIds = new ArrayList<String>();
+        List<String> missionIds = new ArrayList<String>();
+        List<String> scoreIds = new ArrayList<String>();
+        for (String itemId : itemIds) {
+            ModelIndex.ItemType type = index.getItemType(itemId);
+            if (type == null) {
+                continue;
+            }
+            switch (type) {
+                case GATE:
+                case GATES_LIST:
+                    gateIds.add(itemId);
+                    break;
+                case WORLD:
+                case LEVEL:
+                    worldIds.add(itemId);
+                    break;
+                case MISSION:
+                case CHALLENGE:
+                    missionIds.add(itemId);
+                    break;
+                case SCORE:
+                    scoreIds.add(itemId);
+                    break;
+            }
+        }
+        writeCategories(index, gateIds, worldIds, missionIds, scoreIds);
+    }
+
+    private void writeCategories(ModelIndex index, List<String> gateIds, List<String> worldIds,
+                                 List<String> missionIds, List<String> scoreIds) throws IOException {
+        writeGates(index, gateIds);
+        mWriter.write(',');
+        writeWorlds(index, worldIds);
+        mWriter.write(',');
+        writeLevels(index, worldIds);
+        mWriter.write(',');
+        writeMissions(index, missionIds);
+        mWriter.write(',');
+        writeScores(index, scoreIds);
+    }
+
+    private void writeGates(ModelIndex index, List<String> gateIds) throws IOException {
+        startCategory("gates");
+        for (int i = 0; i < gateIds.size(); i++) {
+            String gateId = gateIds.get(i);
+            int handle = index.getHandle(gateId);
+
+            startItem(gateId, i);
+            writeBoolean("open", GateStorage.isOpen(handle), true);
+            mWriter.write('}');
+        }
+        mWriter.write('}');
+    }
+
+    private void writeWorlds(ModelIndex index, List<String> worldIds) throws IOException {
+        startCategory("worlds");
+        for (int i = 0; i < worldIds.size(); i++) {
+            String worldId = worldIds.get(i);
+            int handle = index.getHandle(worldId);
+
+            startItem(worldId, i);
+            writeBoolean("completed", WorldStorage.isCompleted(handle), true);
+            writeString("assignedReward", WorldStorage.getAssignedReward(handle));
+            writeString("lastCompletedInnerWorld", WorldStorage.getLastCompletedInnerWorld(handle));
+            mWriter.write('}');
+        }
+        mWriter.write('}');
+    }
+
+    private void writeLevels(ModelIndex index, List<String> worldIds) throws IOException {
+        startCategory("levels");
+        int count = 0;
+        for (String worldId : worldIds) {
+            int handle = index.getHandle(worldId);
+            if (!WorldStorage.isLevel(handle)) {
+                continue;
+            }
+
+            startItem(worldId, count++);
+            writeNumber("started", LevelStorage.getTimesStarted(handle), true);
+            writeNumber("played", LevelStorage.getTimesPlayed(handle), false);
+            writeNumber("timesCompleted", LevelStorage.getTimesCompleted(handle), false);
+            writeNumber("slowest", LevelStorage.getSlowestDurationMillis(handle), false);
+            writeNumber("fastest", LevelStorage.getFastestDurationMillis(handle), false);
+            mWriter.write('}');
+        }
+        mWriter.write('}');
+    }
+
+    private void writeMissions(ModelIndex index, List<String> missionIds) throws IOException {
+        startCategory("missions");
+        for (int i = 0; i < missionIds.size(); i++) {
+            String missionId = missionIds.get(i);
+            int handle = index.getHandle(missionId);
+
+            startItem(missionId, i);
+            writeNumber("timesCompleted", MissionStorage.getTimesCompleted(handle), true);
+            mWriter.write('}');
+        }
+        mWriter.write('}');
+    }
+
+    private void writeScores(ModelIndex index, List<String> scoreIds) throws IOException {
+        startCategory("scores");
+        int count = 0;
+        for (String scoreId : scoreIds) {
+            int handle = index.getHandle(scoreId);
+            double latest = ScoreStorage.getLatestScore(handle);
+            double record = ScoreStorage.getRecordScore(handle);
+            if (!isFinite(latest) || !isFinite(record)) {
+                // JSONObject can't hold it, left out like getLevelUpState() does
+                SoomlaUtils.LogDebug(TAG, "Unable to get Scores state of " + scoreId);
+                continue;
+            }
+
+            startItem(scoreId, count++);
+            writeDouble("latest", latest, true);
+            writeDouble("record", record, false);
+            mWriter.write('}');
+        }
+        mWriter.write('}');
+    }
+
+    private void startCategory(String name) throws IOException {
+        writeQuoted(name);
+        mWriter.write(":{");
+    }
+
+    private void startItem(String itemId, int position) throws IOException {
+        if (position > 0) {
+            mWriter.write(',');
+        }
+        writeQuoted(itemId);
+        mWriter.write(":{");
+    }
+
+    private void writeKey(String name, boolean first) throws IOException {
+        if (!first) {
+            mWriter.write(',');
+        }
+        writeQuoted(name);
+        mWriter.write(':');
+    }
+
+    private void writeBoolean(String name, boolean value, boolean first) throws IOException {
+        writeKey(name, first);
+        mWriter.write(value ? "true" : "false");
+    }
+
+    private void writeNumber(String name, long value, boolean first) throws IOException {
+        writeKey(name, first);
+        writeLong(value);
+    }
+
+    /**
+     * Writes a double the way <code>JSONObject</code> does: whole numbers
+     * (that fit a long) without a fraction, anything else like
+     * <code>Double.toString()</code>.
+     */
+    private void writeDouble(String name, double value, boolean first) throws IOException {
+        writeKey(name, first);
+        long whole = (long) value;
+        if (Double.doubleToRawLongBits(value) == NEGATIVE_ZERO_BITS) {
+            mWriter.write("-0");
+        } else if (value == (double) whole) {
+            writeLong(whole);
+        } else {
+            mWriter.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes a string value, which always follows another value, and is
+     * left out if it's <code>null</code>.
+     */
+    private void writeString(String name, String value) throws IOException {
+        if (value != null) {
+            writeKey(name, false);
+            writeQuoted(value);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            mWriter.write(Long.toString(value));
+            return;
+        }
+
+        int pos = mDigits.length;
+        long rest = Math.abs(value);
+        do {
+            mDigits[--pos] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            mDigits[--pos] = '-';
+        }
+        mWriter.write(mDigits, pos, mDigits.length - pos);
+    }
+
+    /**
+     * Writes a quoted string, escaped like <code>JSONObject.quote()</code>
+     * does, in runs of the chars that need no escaping.
+     */
+    private void writeQuoted(String value) throws IOException {
+        mWriter.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escape;
+            switch (c) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '/':
+                    escape = "\\/";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                case '\b':
+                    escape = "\\b";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\f':
+                    escape = "\\f";
+                    break;
+                default:
+                    escape = c <= 0x1F ? String.format("\\u%04x", (int) c) : null;
+            }
+
+            if (escape != null) {
+                mWriter.write(value, start, i - start);
+                mWriter.write(escape);
+                start = i + 1;
+            }
+        }
+        mWriter.write(value, start, value.length() - start);
+        mWriter.write('"');
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StateExporter";
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+    private final Writer mWriter;
+
+    // room for any long
+    private final char[] mDigits = new char[20];
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the LevelUp state with the one in a JSON object (as returned by
+ * <code>LevelUp.getLevelUpState()</code>) on a background thread, see
+ * <code>LevelUp.resetLevelUpStateAsync()</code>.
+ *
+ * The whole JSON is read and checked first, and nothing is changed if any of
+ * it is invalid. The current state is then deleted and the new one written
+ * in a <code>StateTransaction</code>, item by item, reporting progress as it
+ * goes, and the transaction is committed as a single batch. If the import is
+ * cancelled or fails before that, the transaction is dropped, and the state
+ * stays as it was; once committed, the batch is stored entirely even if the
+ * app dies half way or storing it fails, and the import has completed (see
+ * <code>LUKeyValueStorage</code>).
+ *
+ * State written by other threads while the import runs is replaced too.
+ * Imports run one at a time, in the order they were started.
+ *
+ * {@link #applyInParallel(JSONObject, int)} replaces the state the same way
+ * on the calling thread, spreading the work over a pool of threads.
+ */
+public class StateImport {
+
+    /**
+     * Hears how an import goes. Called on the import's thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called every so often while items are written.
+         *
+         * @param applied the number of items written so far
+         * @param total the number of items in the imported state
+         */
+        void onProgress(StateImport stateImport, int applied, int total);
+
+        /**
+         * Called once the new state is committed. If storing it failed, it's
+         * stored again later, like any pending write.
+         */
+        void onCompleted(StateImport stateImport);
+
+        /**
+         * Called if the import failed, in which case the state wasn't
+         * changed.
+         *
+         * @param error what went wrong
+         */
+        void onFailed(StateImport stateImport, String error);
+
+        /**
+         * Called if the import was cancelled before it was stored, in which
+         * case the state wasn't changed.
+         */
+        void onCancelled(StateImport stateImport);
+    }
+
+    /**
+     * Starts importing the given state on the import thread.
+     *
+     * @param state the state to import
+     * @param listener the listener to report to, or <code>null</code>
+     * @return the running import
+     */
+    public static StateImport start(JSONObject state, Listener listener) {
+        final StateImport stateImport = new StateImport(state, listener);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                stateImport.run();
+            }
+        });
+        return stateImport;
+    }
+
+    /**
+     * Replaces the state with the given one on the calling thread, applying
+     * it on a pool of the given number of threads (see
+     * <code>LevelUpConfig.restoreThreads</code>).
+     *
+     * The state is read and checked first. Each category, and each range of
+     * {@link #MIN_PARTITION_SIZE} items or more in a large one, is then
+     * applied in a <code>StateTransaction</code> of its own on the pool.
+     * Categories are stored under keys of their own, so the transactions
+     * don't overlap; their writes are put together in order, and stored in
+     * a single batch that also deletes the current state. Nothing is
+     * changed if the state is invalid, or if any part fails.
+     *
+     * @param state the state to import
+     * @param threads the number of threads to apply the state on
+     * @return <code>true</code> if the state was replaced,
+     * <code>false</code> otherwise
+     * @throws IllegalStateException if the calling thread has an open
+     * transaction
+     */
+    public static boolean applyInParallel(JSONObject state, int threads) {
+        List<List<ItemState>> categories;
+        try {
+            categories = read(state);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Invalid state: " + e.getLocalizedMessage());
+            return false;
+        }
+
+        int total = 0;
+        for (List<ItemState> category : categories) {
+            total += category.size();
+        }
+        int partitionSize = Math.max(MIN_PARTITION_SIZE, total / (threads * PARTITIONS_PER_THREAD));
+
+        StateTransaction combined = StateTransaction.begin();
+        ExecutorService pool = getPool(threads);
+        List<Future<StateTransaction>> partitions = new ArrayList<Future<StateTransaction>>();
+        try {
+            for (List<ItemState> category : categories) {
+                for (int start = 0; start < category.size(); start += partitionSize) {
+                    List<ItemState> items = category.subList(start, Math.min(category.size(), start + partitionSize));
+                    partitions.add(pool.submit(new Partition(items)));
+                }
+            }
+
+            for (Future<StateTransaction> partition : partitions) {
+                combined.include(partition.get());
+            }
+            combined.commitReplacing(CATEGORY_PREFIXES);
+            return true;
+        } catch (ExecutionException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't apply the state: " + e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            for (Future<StateTransaction> partition : partitions) {
+                partition.cancel(true);
+            }
+            combined.end();
+        }
+    }
+
+    /**
+     * Cancels the import, unless it's already being stored or done.
+     *
+     * @return <code>true</code> if the import was cancelled and won't change
+     * the state, <code>false</code> if it's too late
+     */
+    public synchronized boolean cancel() {
+        if (mCommitting || mDone) {
+            return false;
+        }
+        mCancelled = true;
+        return true;
+    }
+
+    /**
+     * Checks if the import is over, whether it completed, failed or was
+     * cancelled.
+     *
+     * @return <code>true</code> if it's over, <code>false</code> otherwise
+     */
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Waits for the import to be over, and its listener to have heard of it.
+     *
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public synchronized void await() throws InterruptedException {
+        while (!mDone) {
+            wait();
+        }
+    }
+
+    private StateImport(JSONObject state, Listener listener) {
+        mState = state;
+        mListener = listener;
+    }
+
+    private void run() {
+        if (mState == null) {
+            fail("No state to import");
+            return;
+        }
+
+        List<ItemState> items = new ArrayList<ItemState>();
+        try {
+            for (List<ItemState> category : read(mState)) {
+                items.addAll(category);
+            }
+        } catch (JSONException e) {
+            fail("Invalid state: " + e.getLocalizedMessage());
+            return;
+        }
+
+        StateTransaction transaction;
+        try {
+            transaction = StateTransaction.begin();
+        } catch (IllegalStateException e) {
+            fail(e.getMessage());
+            return;
+        }
+
+        try {
+            int total = items.size();
+            int step = Math.max(1, total / PROGRESS_STEPS);
+            for (int i = 0; i < total; i++) {
+                if (mCancelled) {
+                    cancelled();
+                    return;
+                }
+                items.get(i).apply();
+                if ((i + 1) % step == 0 || i + 1 == total) {
+                    if (mListener != null) {
+                        mListener.onProgress(this, i + 1, total);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                mCommitting = !mCancelled;
+            }
+            if (!mCommitting) {
+                cancelled();
+                return;
+            }
+
+            transaction.commitReplacing(CATEGORY_PREFIXES);
+        } catch (RuntimeException e) {
+            fail(e.toString());
+            return;
+        } finally {
+            transaction.end();
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Imported the state");
+        try {
+            if (mListener != null) {
+                mListener.onCompleted(this);
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    private void cancelled() {
+        SoomlaUtils.LogDebug(TAG, "State import was cancelled");
+        try {
+            if (mListener != null) {
+                mListener.onCancelled(this);
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    private void fail(String error) {
+        SoomlaUtils.LogError(TAG, "Couldn't import the state: " + error);
+        try {
+            if (mListener != null) {
+                mListener.onFailed(this, error);
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        mDone = true;
+        notifyAll();
+    }
+
+    /**
+     * Reads and checks the given state.
+     *
+     * @return the states of the items of each category, in the order they're
+     * applied
+     * @throws JSONException if the state is invalid
+     */
+    private static List<List<ItemState>> read(JSONObject state) throws JSONException {
+        List<ItemState> gates = new ArrayList<ItemState>();
+        List<ItemState> worlds = new ArrayList<ItemState>();
+        List<ItemState> levels = new ArrayList<ItemState>();
+        List<ItemState> missions = new ArrayList<ItemState>();
+        List<ItemState> scores = new ArrayList<ItemState>();
+        readGates(state, gates);
+        readWorlds(state, worlds);
+        readLevels(state, levels);
+        readMissions(state, missions);
+        readScores(state, scores);
+        return Arrays.asList(gates, worlds, levels, missions, scores);
+    }
+
+    private static void readGates(JSONObject state, List<ItemState> items) throws JSONException {
+        JSONObject itemsJSON = getCategory(state, "gates");
+        Iterator ids = itemsJSON.keys();
+        while (ids.hasNext()) {
+            final String gateId = (String) ids.next();
+            JSONObject itemJSON = itemsJSON.getJSONObject(gateId);
+            final Boolean open = itemJSON.has("open") ? itemJSON.getBoolean("open") : null;
+            items.add(new ItemState() {
+                @Override
+                void apply() {
+                    if (open != null) {
+                        GateStorage.setOpen(gateId, open, false);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void readWorlds(JSONObject state, List<ItemState> items) throws JSONException {
+        JSONObject itemsJSON = getCategory(state, "worlds");
+        Iterator ids = itemsJSON.keys();
+        while (ids.hasNext()) {
+            final String worldId = (String) ids.next();
+            JSONObject itemJSON = itemsJSON.getJSONObject(worldId);
+            final Boolean completed = itemJSON.has("completed") ? itemJSON.getBoolean("completed") : null;
+            final String reward = itemJSON.has("assignedReward") ? itemJSON.getString("assignedReward") : null;
+            final String innerWorld = itemJSON.has("lastCompletedInnerWorld") ?
+                    itemJSON.getString("lastCompletedInnerWorld") : null;
+            items.add(new ItemState() {
+                @Override
+                void apply() {
+                    if (completed != null) {
+                        WorldStorage.setCompleted(worldId, completed, false);
+                    }
+                    if (reward != null) {
+                        WorldStorage.setReward(worldId, reward, false);
+                    }
+                    if (innerWorld != null) {
+                        WorldStorage.setLastCompletedInnerWorld(worldId, innerWorld, false);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void readLevels(JSONObject state, List<ItemState> items) throws JSONException {
+        JSONObject itemsJSON = getCategory(state, "levels");
+        Iterator ids = itemsJSON.keys();
+        while (ids.hasNext()) {
+            final String levelId = (String) ids.next();
+            JSONObject itemJSON = itemsJSON.getJSONObject(levelId);
+            final Integer started = itemJSON.has("started") ? itemJSON.getInt("started") : null;
+            final Integer played = itemJSON.has("played") ? itemJSON.getInt("played") : null;
+            final Integer timesCompleted = itemJSON.has("timesCompleted") ? itemJSON.getInt("timesCompleted") : null;
+            final Long slowest = itemJSON.has("slowest") ? itemJSON.getLong("slowest") : null;
+            final Long fastest = itemJSON.has("fastest") ? itemJSON.getLong("fastest") : null;
+            items.add(new ItemState() {
+                @Override
+                void apply() {
+                    if (started != null) {
+                        LevelStorage.setTimesStarted(levelId, started);
+                    }
+                    if (played != null) {
+                        LevelStorage.setTimesPlayed(levelId, played);
+                    }
+                    if (timesCompleted != null) {
+                        LevelStorage.setTimesCompleted(levelId, timesCompleted);
+                    }
+                    if (slowest != null) {
+                        LevelStorage.setSlowestDurationMillis(levelId, slowest);
+                    }
+                    if (fastest != null) {
+                        LevelStorage.setFastestDurationMillis(levelId, fastest);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void readMissions(JSONObject state, List<ItemState> items) throws JSONException {
+        JSONObject itemsJSON = getCategory(state, "missions");
+        Iterator ids = itemsJSON.keys();
+        while (ids.hasNext()) {
+            final String missionId = (String) ids.next();
+            JSONObject itemJSON = itemsJSON.getJSONObject(missionId);
+            final Integer timesCompleted = itemJSON.has("timesCompleted") ? itemJSON.getInt("timesCompleted") : null;
+            items.add(new ItemState() {
+                @Override
+                void apply() {
+                    if (timesCompleted != null) {
+                        MissionStorage.setTimesCompleted(missionId, timesCompleted);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void readScores(JSONObject state, List<ItemState> items) throws JSONException {
+        JSONObject itemsJSON = getCategory(state, "scores");
+        Iterator ids = itemsJSON.keys();
+        while (ids.hasNext()) {
+            final String scoreId = (String) ids.next();
+            JSONObject itemJSON = itemsJSON.getJSONObject(scoreId);
+            final Double latest = itemJSON.has("latest") ? itemJSON.getDouble("latest") : null;
+            final Double record = itemJSON.has("record") ? itemJSON.getDouble("record") : null;
+            items.add(new ItemState() {
+                @Override
+                void apply() {
+                    if (latest != null) {
+                        ScoreStorage.setLatestScore(scoreId, latest, false);
+                    }
+                    if (record != null) {
+                        ScoreStorage.setRecordScore(scoreId, record, false);
+                    }
+                }
+            });
+        }
+    }
+
+    private static JSONObject getCategory(JSONObject state, String name) throws JSONException {
+        return state.has(name) ? state.getJSONObject(name) : new JSONObject();
+    }
+
+    private static synchronized ExecutorService getPool(int threads) {
+        if (mPool == null || mPool.getMaximumPoolSize() != threads) {
+            if (mPool != null) {
+                mPool.shutdown();
+            }
+            mPool = new ThreadPoolExecutor(threads, threads, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SOOMLA LevelUp restore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mPool.allowCoreThreadTimeOut(true);
+        }
+        return mPool;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SOOMLA LevelUp import");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * The checked state of one item, ready to be written.
+     */
+    private static abstract class ItemState {
+        abstract void apply();
+    }
+
+    /**
+     * Applies a range of items in a transaction of the pool thread, and
+     * hands it over, ended but not committed.
+     */
+    private static class Partition implements Callable<StateTransaction> {
+
+        Partition(List<ItemState> items) {
+            mItems = items;
+        }
+
+        @Override
+        public StateTransaction call() {
+            StateTransaction transaction = StateTransaction.begin();
+            try {
+                for (ItemState item : mItems) {
+                    item.apply();
+                }
+                return transaction;
+            } finally {
+                transaction.end();
+            }
+        }
+
+        private final List<ItemState> mItems;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StateImport";
+
+    private static final String[] CATEGORY_PREFIXES = {
+            GateStorage.DB_GATE_KEY_PREFIX, LevelStorage.DB_LEVEL_KEY_PREFIX, MissionStorage.DB_MISSION_KEY_PREFIX,
+            ScoreStorage.DB_SCORE_KEY_PREFIX, WorldStorage.DB_WORLD_KEY_PREFIX};
+
+    // how many times progress is reported
+    private static final int PROGRESS_STEPS = 100;
+
+    // items of a category applied together, at the least
+    private static final int MIN_PARTITION_SIZE = 256;
+
+    // partitions per pool thread, so threads that finish early take more
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private static final long POOL_KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorService mExecutor;
+    private static ThreadPoolExecutor mPool;
+
+    private final JSONObject mState;
+    private final Listener mListener;
+
+    private volatile boolean mCancelled = false;
+    private boolean mCommitting = false;
+    private boolean mDone = false;
+}
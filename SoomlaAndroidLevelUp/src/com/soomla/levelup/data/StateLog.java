@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of state writes, which <code>LUKeyValueStorage</code>
+ * writes batches to instead of overwriting keys in
+ * <code>KeyValueStorage</code> one by one, when
+ * <code>LevelUpConfig.stateLog</code> is on. The state in
+ * <code>KeyValueStorage</code> is the snapshot the log goes on from, and
+ * compacting the log writes it into the snapshot and empties it.
+ * <code>FileStateStorage</code> keeps all its keys in one.
+ *
+ * Every batch is one record, with a checksum, so a record cut short by a
+ * crash is recognized and dropped when the log is read, and a batch is
+ * logged either entirely or not at all:
+ *
+ * <pre>
+ * int magic, short version
+ * records x (int length, int crc32, int count, count x (boolean set, string key, [string value]))
+ * </pre>
+ *
+ * Strings are written as an int byte count followed by their UTF-8 bytes.
+ *
+ * Not thread safe, its users guard it.
+ */
+class StateLog {
+
+    StateLog(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the records in the log, and drops a last record that was cut
+     * short, if any.
+     *
+     * @return key to value, or to <code>null</code> for a delete, with the
+     * last write of every key in the log
+     * @throws IOException if the log couldn't be read
+     */
+    Map<String, String> read() throws IOException {
+        Map<String, String> writes = new LinkedHashMap<String, String>();
+        if (!mFile.exists()) {
+            return writes;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long valid = 0;
+            try {
+                if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                    SoomlaUtils.LogError(TAG, "Unknown state log, dropping it");
+                    bytes = new byte[0];
+                } else {
+                    valid = HEADER_LENGTH;
+                }
+
+                while (valid > 0 && valid < bytes.length) {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length < 0 || length > bytes.length - valid - RECORD_HEADER_LENGTH) {
+                        break;
+                    }
+                    CRC32 crc32 = new CRC32();
+                    crc32.update(bytes, (int) valid + RECORD_HEADER_LENGTH, length);
+                    if ((int) crc32.getValue() != crc) {
+                        break;
+                    }
+
+                    readRecord(in, writes);
+                    valid += RECORD_HEADER_LENGTH + length;
+                }
+            } catch (EOFException e) {
+                // a record cut short
+            }
+
+            if (valid < file.length()) {
+                SoomlaUtils.LogDebug(TAG, "Dropping the end of the state log, it was cut short");
+                file.setLength(valid);
+            }
+            return writes;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Appends a batch of writes to the log as one record, and returns once
+     * it's on disk. If it fails, the log is cut back to where it ended, so
+     * the records appended later aren't lost behind a torn one.
+     *
+     * @param writes key to value, or to <code>null</code> for a delete
+     * @throws IOException if the record couldn't be written
+     */
+    void append(Map<String, String> writes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(writes.size());
+        for (Map.Entry<String, String> entry : writes.entrySet()) {
+            out.writeBoolean(entry.getValue() != null);
+            writeString(out, entry.getKey());
+            if (entry.getValue() != null) {
+                writeString(out, entry.getValue());
+            }
+        }
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - RECORD_HEADER_LENGTH;
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, RECORD_HEADER_LENGTH, length);
+        putInt(record, 0, length);
+        putInt(record, 4, (int) crc32.getValue());
+
+        RandomAccessFile file = open();
+        if (mTornLength >= 0) {
+            // a record after a torn one would be dropped with it when the log is read
+            file.setLength(mTornLength);
+            mTornLength = -1;
+        }
+        long end = file.length();
+        try {
+            file.seek(end);
+            file.write(record);
+            file.getFD().sync();
+        } catch (IOException e) {
+            mTornLength = end;
+            try {
+                file.setLength(end);
+                mTornLength = -1;
+            } catch (IOException ignored) {
+                // it's cut off before the next append
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves the size of the log.
+     *
+     * @return the size of the log file in bytes
+     */
+    long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Empties the log, once everything in it is in the snapshot.
+     *
+     * @throws IOException if the log couldn't be emptied
+     */
+    void clear() throws IOException {
+        RandomAccessFile file = open();
+        file.setLength(HEADER_LENGTH);
+        file.getFD().sync();
+        mTornLength = -1;
+    }
+
+    /**
+     * Closes and deletes the log file.
+     */
+    void delete() {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            SoomlaUtils.LogError(TAG, "Unable to delete the state log");
+        }
+    }
+
+    void close() {
+        // a log that's read again drops a torn record by itself
+        mTornLength = -1;
+        if (mOpenFile != null) {
+            try {
+                mOpenFile.close();
+            } catch (IOException e) {
+                // nothing to do about it
+            }
+            mOpenFile = null;
+        }
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (mOpenFile == null) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            if (file.length() < HEADER_LENGTH) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeShort(VERSION);
+            }
+            mOpenFile = file;
+        }
+        return mOpenFile;
+    }
+
+    private static void readRecord(DataInputStream in, Map<String, String> writes) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            boolean set = in.readBoolean();
+            String key = readString(in);
+            String value = set ? readString(in) : null;
+
+            // the last write of a key is the one that counts
+            writes.remove(key);
+            writes.put(key, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StateLog";
+
+    private static final int MAGIC = 0x4c554c47; // "LULG"
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = 6;
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final File mFile;
+    private RandomAccessFile mOpenFile;
+    // where a failed append left part of a record, -1 if none did
+    private long mTornLength = -1;
+}
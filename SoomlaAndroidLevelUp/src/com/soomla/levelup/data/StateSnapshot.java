@@ -0,0 +1,679 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact binary form of the LevelUp state, for uploading and backing it
+ * up, holding the same as <code>LevelUp.getLevelUpState()</code>: decoding
+ * a snapshot gives a JSON object equal to the state it was taken of, which
+ * <code>LevelUp.resetLevelUpState()</code> takes.
+ *
+ * Every string (item ids, rewards) is written once, in a dictionary, and
+ * referred to by its position in it. Flags are packed into bitsets, and
+ * counters and durations are written as varints (zigzag encoded, so small
+ * negative values stay small). Scores that are whole numbers are written as
+ * varints too, and other scores as the 8 bytes of the double:
+ *
+ * <pre>
+ * int magic, byte version, byte flags (1 = the rest is deflated),
+ * int crc32 (of the flags and everything after the crc)
+ * varint string count, strings x (varint shared, varint byte count, UTF-8 bytes)
+ * gates:    varint count, ids, open bitset
+ * worlds:   varint count, ids, completed bitset,
+ *           varint count, (varint world, reward) pairs,
+ *           varint count, (varint world, last completed inner world) pairs
+ * levels:   varint count, ids, (started, played, timesCompleted, slowest, fastest) per level
+ * missions: varint count, ids, timesCompleted per mission
+ * scores:   varint count, ids, (latest, record) per score
+ * </pre>
+ *
+ * Strings in the dictionary are written in the order they're first used,
+ * which for ids is model order, each as the number of chars it shares with
+ * the one before it and the UTF-8 bytes of the rest, since ids of items next
+ * to each other mostly start the same way.
+ *
+ * Ids and rewards are varint dictionary positions, and bitsets are a byte
+ * per 8 items, lowest bit first. Like <code>getLevelUpState()</code>,
+ * scores that aren't finite numbers are left out.
+ */
+public class StateSnapshot {
+
+    /**
+     * Takes a snapshot of the state of the items in the given model index.
+     *
+     * @param index the model index, or <code>null</code> for no model
+     * @param deflate whether to compress the snapshot with deflate
+     * @return the snapshot
+     */
+    public static byte[] encode(ModelIndex index, boolean deflate) {
+        List<String> none = Collections.emptyList();
+        List<String> worldIds = index != null ? index.getWorldIds() : none;
+
+        Encoder encoder = new Encoder();
+        encoder.writeGates(index, index != null ? index.getGateIds() : none);
+        encoder.writeWorlds(index, worldIds);
+        encoder.writeLevels(index, worldIds);
+        encoder.writeMissions(index, index != null ? index.getMissionIds() : none);
+        encoder.writeScores(index, index != null ? index.getScoreIds() : none);
+        return encoder.finish(deflate);
+    }
+
+    /**
+     * Reads a snapshot back into the JSON form of the state.
+     *
+     * @param snapshot a snapshot taken by {@link #encode(ModelIndex, boolean)}
+     * @return the state, as <code>LevelUp.getLevelUpState()</code> returned
+     * it when the snapshot was taken
+     * @throws IOException if the snapshot is invalid
+     */
+    public static JSONObject decode(byte[] snapshot) throws IOException {
+        try {
+            return new Decoder(snapshot).read();
+        } catch (JSONException e) {
+            throw new IOException("Invalid snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the sections into a body, adding strings to the dictionary as
+     * they come, and puts the dictionary before the body when done.
+     */
+    private static class Encoder {
+
+        void writeGates(ModelIndex index, List<String> gateIds) {
+            int[] handles = writeIds(index, gateIds);
+            byte[] open = new byte[bitsetLength(handles.length)];
+            for (int i = 0; i < handles.length; i++) {
+                if (GateStorage.isOpen(handles[i])) {
+                    setBit(open, i);
+                }
+            }
+            mBody.write(open, 0, open.length);
+        }
+
+        void writeWorlds(ModelIndex index, List<String> worldIds) {
+            int[] handles = writeIds(index, worldIds);
+            byte[] completed = new byte[bitsetLength(handles.length)];
+            List<String> rewards = new ArrayList<String>();
+            List<String> innerWorlds = new ArrayList<String>();
+            for (int i = 0; i < handles.length; i++) {
+                if (WorldStorage.isCompleted(handles[i])) {
+                    setBit(completed, i);
+                }
+                rewards.add(WorldStorage.getAssignedReward(handles[i]));
+                innerWorlds.add(WorldStorage.getLastCompletedInnerWorld(handles[i]));
+            }
+            mBody.write(completed, 0, completed.length);
+            writeSparseStrings(rewards);
+            writeSparseStrings(innerWorlds);
+        }
+
+        void writeLevels(ModelIndex index, List<String> worldIds) {
+            List<String> levelIds = new ArrayList<String>();
+            for (String worldId : worldIds) {
+                if (WorldStorage.isLevel(index.getHandle(worldId))) {
+                    levelIds.add(worldId);
+                }
+            }
+
+            int[] handles = writeIds(index, levelIds);
+            for (int handle : handles) {
+                mBody.writeVarLong(zigzag(LevelStorage.getTimesStarted(handle)));
+                mBody.writeVarLong(zigzag(LevelStorage.getTimesPlayed(handle)));
+                mBody.writeVarLong(zigzag(LevelStorage.getTimesCompleted(handle)));
+                mBody.writeVarLong(zigzag(LevelStorage.getSlowestDurationMillis(handle)));
+                mBody.writeVarLong(zigzag(LevelStorage.getFastestDurationMillis(handle)));
+            }
+        }
+
+        void writeMissions(ModelIndex index, List<String> missionIds) {
+            int[] handles = writeIds(index, missionIds);
+            for (int handle : handles) {
+                mBody.writeVarLong(zigzag(MissionStorage.getTimesCompleted(handle)));
+            }
+        }
+
+        void writeScores(ModelIndex index, List<String> scoreIds) {
+            List<String> finiteIds = new ArrayList<String>();
+            List<double[]> scores = new ArrayList<double[]>();
+            for (String scoreId : scoreIds) {
+                int handle = index.getHandle(scoreId);
+                double latest = ScoreStorage.getLatestScore(handle);
+                double record = ScoreStorage.getRecordScore(handle);
+                if (!isFinite(latest) || !isFinite(record)) {
+                    // JSONObject can't hold it, left out like getLevelUpState() does
+                    SoomlaUtils.LogDebug(TAG, "Unable to get Scores state of " + scoreId);
+                    continue;
+                }
+                finiteIds.add(scoreId);
+                scores.add(new double[]{latest, record});
+            }
+
+            writeIds(index, finiteIds);
+            for (double[] score : scores) {
+                writeDouble(score[0]);
+                writeDouble(score[1]);
+            }
+        }
+
+        byte[] finish(boolean deflate) {
+            int flags = deflate ? FLAG_DEFLATED : 0;
+            ByteArray payload = writePayload(deflate);
+            CRC32 crc32 = new CRC32();
+            crc32.update(flags);
+            crc32.update(payload.mBytes, 0, payload.mLength);
+
+            ByteArray out = new ByteArray();
+            out.writeInt(MAGIC);
+            out.write(VERSION);
+            out.write(flags);
+            out.writeInt((int) crc32.getValue());
+            out.write(payload.mBytes, 0, payload.mLength);
+            return out.toByteArray();
+        }
+
+        private ByteArray writePayload(boolean deflate) {
+            ByteArray content = new ByteArray();
+            content.writeVarLong(mStrings.size());
+            String previous = "";
+            for (String string : mStrings) {
+                int shared = sharedLength(previous, string);
+                byte[] bytes = utf8(string.substring(shared));
+                content.writeVarLong(shared);
+                content.writeVarLong(bytes.length);
+                content.write(bytes, 0, bytes.length);
+                previous = string;
+            }
+            content.write(mBody.mBytes, 0, mBody.mLength);
+
+            if (!deflate) {
+                return content;
+            }
+
+            ByteArray out = new ByteArray();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(content.mBytes, 0, content.mLength);
+                deflater.finish();
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(chunk);
+                    out.write(chunk, 0, length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return out;
+        }
+
+        /**
+         * Writes the count and dictionary positions of the given ids.
+         *
+         * @return the handles of the items
+         */
+        private int[] writeIds(ModelIndex index, List<String> itemIds) {
+            int[] handles = new int[itemIds.size()];
+            mBody.writeVarLong(itemIds.size());
+            for (int i = 0; i < handles.length; i++) {
+                String itemId = itemIds.get(i);
+                mBody.writeVarLong(stringRef(itemId));
+                handles[i] = index.getHandle(itemId);
+            }
+            return handles;
+        }
+
+        /**
+         * Writes the strings that aren't <code>null</code>, with their
+         * positions in the given list.
+         */
+        private void writeSparseStrings(List<String> strings) {
+            int count = 0;
+            for (String string : strings) {
+                if (string != null) {
+                    count++;
+                }
+            }
+            mBody.writeVarLong(count);
+            for (int i = 0; i < strings.size(); i++) {
+                if (strings.get(i) != null) {
+                    mBody.writeVarLong(i);
+                    mBody.writeVarLong(stringRef(strings.get(i)));
+                }
+            }
+        }
+
+        /**
+         * Writes a whole score (that fits well within a long) as an even
+         * varint, and anything else as 1 followed by the bits of the double.
+         */
+        private void writeDouble(double value) {
+            long whole = (long) value;
+            if (value == (double) whole && Math.abs(whole) <= MAX_WHOLE
+                    && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO_BITS) {
+                mBody.writeVarLong(zigzag(whole) << 1);
+            } else {
+                mBody.writeVarLong(1);
+                mBody.writeLong(Double.doubleToRawLongBits(value));
+            }
+        }
+
+        private int stringRef(String string) {
+            Integer ref = mStringRefs.get(string);
+            if (ref == null) {
+                ref = mStrings.size();
+                mStrings.add(string);
+                mStringRefs.put(string, ref);
+            }
+            return ref;
+        }
+
+        private final ByteArray mBody = new ByteArray();
+        private final List<String> mStrings = new ArrayList<String>();
+        private final Map<String, Integer> mStringRefs = new HashMap<String, Integer>();
+    }
+
+    private static class Decoder {
+
+        Decoder(byte[] snapshot) {
+            mBytes = snapshot;
+            mLength = snapshot.length;
+        }
+
+        JSONObject read() throws IOException, JSONException {
+            if (readInt() != MAGIC || readByte() != VERSION) {
+                throw new IOException("Not a LevelUp state snapshot");
+            }
+            int flags = readByte();
+            int crc = readInt();
+            // checked before decoding, since a flipped bit mostly decodes into another valid state
+            CRC32 crc32 = new CRC32();
+            crc32.update(flags);
+            crc32.update(mBytes, mPos, mLength - mPos);
+            if ((int) crc32.getValue() != crc) {
+                throw new IOException("Invalid snapshot: checksum mismatch");
+            }
+            if ((flags & FLAG_DEFLATED) != 0) {
+                inflate();
+            }
+
+            String[] strings = new String[readCount()];
+            String previous = "";
+            for (int i = 0; i < strings.length; i++) {
+                int shared = readCount();
+                int length = readCount();
+                if (shared > previous.length()) {
+                    throw new IOException("Invalid snapshot: bad shared length " + shared);
+                }
+                checkAvailable(length);
+                strings[i] = previous.substring(0, shared) + new String(mBytes, mPos, length, UTF_8);
+                mPos += length;
+                previous = strings[i];
+            }
+            mStrings = strings;
+
+            JSONObject state = new JSONObject();
+            state.put("gates", readGates());
+            state.put("worlds", readWorlds());
+            state.put("levels", readLevels());
+            state.put("missions", readMissions());
+            state.put("scores", readScores());
+            if (mPos != mLength) {
+                throw new IOException("Invalid snapshot: unexpected data at the end");
+            }
+            return state;
+        }
+
+        private JSONObject readGates() throws IOException, JSONException {
+            String[] gateIds = readIds();
+            byte[] open = readBitset(gateIds.length);
+
+            JSONObject gatesJSON = new JSONObject();
+            for (int i = 0; i < gateIds.length; i++) {
+                JSONObject gateJSON = new JSONObject();
+                gateJSON.put("open", getBit(open, i));
+                gatesJSON.put(gateIds[i], gateJSON);
+            }
+            return gatesJSON;
+        }
+
+        private JSONObject readWorlds() throws IOException, JSONException {
+            String[] worldIds = readIds();
+            byte[] completed = readBitset(worldIds.length);
+
+            JSONObject[] worldJSONs = new JSONObject[worldIds.length];
+            for (int i = 0; i < worldIds.length; i++) {
+                worldJSONs[i] = new JSONObject();
+                worldJSONs[i].put("completed", getBit(completed, i));
+            }
+            readSparseStrings(worldJSONs, "assignedReward");
+            readSparseStrings(worldJSONs, "lastCompletedInnerWorld");
+
+            JSONObject worldsJSON = new JSONObject();
+            for (int i = 0; i < worldIds.length; i++) {
+                worldsJSON.put(worldIds[i], worldJSONs[i]);
+            }
+            return worldsJSON;
+        }
+
+        private JSONObject readLevels() throws IOException, JSONException {
+            String[] levelIds = readIds();
+            JSONObject levelsJSON = new JSONObject();
+            for (String levelId : levelIds) {
+                JSONObject levelJSON = new JSONObject();
+                levelJSON.put("started", (int) unzigzag(readVarLong()));
+                levelJSON.put("played", (int) unzigzag(readVarLong()));
+                levelJSON.put("timesCompleted", (int) unzigzag(readVarLong()));
+                levelJSON.put("slowest", unzigzag(readVarLong()));
+                levelJSON.put("fastest", unzigzag(readVarLong()));
+                levelsJSON.put(levelId, levelJSON);
+            }
+            return levelsJSON;
+        }
+
+        private JSONObject readMissions() throws IOException, JSONException {
+            String[] missionIds = readIds();
+            JSONObject missionsJSON = new JSONObject();
+            for (String missionId : missionIds) {
+                JSONObject missionJSON = new JSONObject();
+                missionJSON.put("timesCompleted", (int) unzigzag(readVarLong()));
+                missionsJSON.put(missionId, missionJSON);
+            }
+            return missionsJSON;
+        }
+
+        private JSONObject readScores() throws IOException, JSONException {
+            String[] scoreIds = readIds();
+            JSONObject scoresJSON = new JSONObject();
+            for (String scoreId : scoreIds) {
+                JSONObject scoreJSON = new JSONObject();
+                scoreJSON.put("latest", readDouble());
+                scoreJSON.put("record", readDouble());
+                scoresJSON.put(scoreId, scoreJSON);
+            }
+            return scoresJSON;
+        }
+
+        private void readSparseStrings(JSONObject[] itemJSONs, String name) throws IOException, JSONException {
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                int position = readCount();
+                if (position >= itemJSONs.length) {
+                    throw new IOException("Invalid snapshot: no item " + position);
+                }
+                itemJSONs[position].put(name, readString());
+            }
+        }
+
+        private String[] readIds() throws IOException {
+            String[] itemIds = new String[readCount()];
+            for (int i = 0; i < itemIds.length; i++) {
+                itemIds[i] = readString();
+            }
+            return itemIds;
+        }
+
+        private String readString() throws IOException {
+            int ref = readCount();
+            if (ref >= mStrings.length) {
+                throw new IOException("Invalid snapshot: no string " + ref);
+            }
+            return mStrings[ref];
+        }
+
+        private byte[] readBitset(int bits) throws IOException {
+            int length = bitsetLength(bits);
+            checkAvailable(length);
+            byte[] bitset = Arrays.copyOfRange(mBytes, mPos, mPos + length);
+            mPos += length;
+            return bitset;
+        }
+
+        private double readDouble() throws IOException {
+            long tag = readVarLong();
+            if ((tag & 1) == 0) {
+                return unzigzag(tag >>> 1);
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        /**
+         * Reads a varint that counts or points at something in the
+         * snapshot, and so can't be more than its length.
+         */
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            if (count < 0 || count > mLength) {
+                throw new IOException("Invalid snapshot: bad count " + count);
+            }
+            return (int) count;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid snapshot: varint too long");
+        }
+
+        private int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private int readByte() throws IOException {
+            checkAvailable(1);
+            return mBytes[mPos++] & 0xff;
+        }
+
+        private void checkAvailable(int length) throws IOException {
+            if (length > mLength - mPos) {
+                throw new IOException("Invalid snapshot: cut short");
+            }
+        }
+
+        /**
+         * Replaces the rest of the snapshot with its inflated form, which
+         * can't be more than {@link #MAX_INFLATE_RATIO} times its size (or
+         * {@link #MIN_INFLATE_LIMIT}), and never over
+         * {@link #MAX_INFLATED_LENGTH}.
+         */
+        private void inflate() throws IOException {
+            int compressed = mLength - mPos;
+            long limit = Math.min(MAX_INFLATED_LENGTH,
+                    Math.max(MIN_INFLATE_LIMIT, (long) compressed * MAX_INFLATE_RATIO));
+            Inflater inflater = new Inflater();
+            ByteArray out = new ByteArray();
+            try {
+                inflater.setInput(mBytes, mPos, compressed);
+                byte[] chunk = new byte[8192];
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(chunk);
+                    if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Invalid snapshot: compressed data cut short");
+                    }
+                    if (out.mLength + length > limit) {
+                        throw new IOException("Invalid snapshot: inflates to over " + limit + " bytes");
+                    }
+                    out.write(chunk, 0, length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid snapshot: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            mBytes = out.mBytes;
+            mLength = out.mLength;
+            mPos = 0;
+        }
+
+        private byte[] mBytes;
+        private int mLength;
+        private int mPos = 0;
+        private String[] mStrings;
+    }
+
+    /**
+     * A growable byte array, written to without the locking of
+     * <code>ByteArrayOutputStream</code>.
+     */
+    private static class ByteArray {
+
+        void write(int b) {
+            ensureCapacity(1);
+            mBytes[mLength++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, mBytes, mLength, length);
+            mLength += length;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(MAX_VARLONG_LENGTH);
+            while ((value & ~0x7fL) != 0) {
+                mBytes[mLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mLength);
+        }
+
+        private void ensureCapacity(int length) {
+            if (mLength + length > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + length));
+            }
+        }
+
+        byte[] mBytes = new byte[1024];
+        int mLength = 0;
+    }
+
+    private static int bitsetLength(int bits) {
+        return (bits + 7) / 8;
+    }
+
+    private static void setBit(byte[] bitset, int bit) {
+        bitset[bit >> 3] |= 1 << (bit & 7);
+    }
+
+    private static boolean getBit(byte[] bitset, int bit) {
+        return (bitset[bit >> 3] & (1 << (bit & 7))) != 0;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Counts the chars the given strings start with in common, without
+     * splitting a surrogate pair.
+     */
+    private static int sharedLength(String first, String second) {
+        int max = Math.min(first.length(), second.length());
+        int shared = 0;
+        while (shared < max && first.charAt(shared) == second.charAt(shared)) {
+            shared++;
+        }
+        if (shared > 0 && Character.isHighSurrogate(second.charAt(shared - 1))) {
+            shared--;
+        }
+        return shared;
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            // every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StateSnapshot";
+
+    private static final int MAGIC = 0x4c555353; // "LUSS"
+    private static final int VERSION = 2;
+    private static final int FLAG_DEFLATED = 1;
+
+    private static final int MAX_VARLONG_LENGTH = 10;
+
+    // snapshots deflate far less than this, a bigger inflated form isn't one that was encoded here
+    private static final int MAX_INFLATE_RATIO = 64;
+    private static final int MIN_INFLATE_LIMIT = 1 << 20;
+    private static final int MAX_INFLATED_LENGTH = 64 << 20;
+
+    // whole scores up to this are written as varints, so the shift can't overflow
+    private static final long MAX_WHOLE = 1L << 52;
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+    private static final String UTF_8 = "UTF-8";
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A key-value store LevelUp keeps its model and state in. All of LevelUp's
+ * reads and writes go through <code>LUKeyValueStorage</code> to the storage
+ * set in <code>LevelUpConfig.stateStorage</code>, which is
+ * {@link KeyValueStateStorage} (SOOMLA's encrypted
+ * <code>KeyValueStorage</code>) by default. {@link MemoryStateStorage} and
+ * {@link FileStateStorage} don't need an Android context, so LevelUp can
+ * also run in a plain JVM, e.g. for tests, benchmarks or server-side tools.
+ *
+ * Implementations must be thread safe. Values are never <code>null</code>;
+ * a <code>null</code> value in {@link #setValues(Map)} deletes the key.
+ */
+public interface StateStorage {
+
+    /**
+     * Retrieves the value of the given key.
+     *
+     * @param key the key to look up
+     * @return the key's value, or <code>null</code> if it has none
+     */
+    String getValue(String key);
+
+    /**
+     * Sets the value of the given key.
+     *
+     * @param key the key to set
+     * @param value the new value
+     */
+    void setValue(String key, String value);
+
+    /**
+     * Deletes the given key, if it exists.
+     *
+     * @param key the key to delete
+     */
+    void deleteKeyValue(String key);
+
+    /**
+     * Retrieves the values of the given keys.
+     *
+     * @param keys the keys to look up
+     * @return key to value, for the keys that have one
+     */
+    Map<String, String> getValues(Collection<String> keys);
+
+    /**
+     * Sets and deletes the given keys.
+     *
+     * @param values key to value, or to <code>null</code> for a delete
+     */
+    void setValues(Map<String, String> values);
+
+    /**
+     * Lists the keys that start with the given prefix.
+     *
+     * @param prefix the key prefix
+     * @return the matching keys
+     */
+    List<String> getKeys(String prefix);
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.text.TextUtils;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups state changes made through the storage classes (such as everything
+ * that happens when a level ends) so they're stored all together or not at
+ * all:
+ *
+ * <pre>
+ * StateTransaction transaction = StateTransaction.begin();
+ * try {
+ *     LevelStorage.incTimesPlayed(levelId);
+ *     WorldStorage.setCompleted(levelId, true);
+ *     GateStorage.setOpen(gateId, true);
+ *     transaction.commit();
+ * } finally {
+ *     transaction.end();
+ * }
+ * </pre>
+ *
+ * A transaction belongs to the thread that began it. Until it's committed,
+ * its writes are only seen by that thread, and the events of the storage
+ * classes are held back. On commit, the writes become visible to everyone at
+ * once, are stored in one batch (see <code>LUKeyValueStorage.flush()</code>,
+ * which makes a batch survive a crash half way), and then the events are
+ * posted. Ending a transaction that wasn't committed drops its writes and
+ * events.
+ *
+ * Counter updates made in a transaction (such as <code>incTimesPlayed</code>)
+ * are kept as deltas, which the commit adds to the counters as they are by
+ * then, so updates made outside the transaction in the meantime aren't lost.
+ * Setting a counter outright in a transaction overrides its earlier updates,
+ * and later ones are applied to the value that was set.
+ */
+public class StateTransaction {
+
+    /**
+     * Begins a transaction on the calling thread.
+     *
+     * @return the new transaction
+     * @throws IllegalStateException if the thread already has an open
+     * transaction
+     */
+    public static StateTransaction begin() {
+        if (CURRENT.get() != null) {
+            throw new IllegalStateException("A transaction is already open on this thread");
+        }
+
+        StateTransaction transaction = new StateTransaction();
+        CURRENT.set(transaction);
+        return transaction;
+    }
+
+    /**
+     * Checks if the calling thread has an open transaction.
+     *
+     * @return <code>true</code> if it has, <code>false</code> otherwise
+     */
+    public static boolean isOpen() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Stores the writes of this transaction, and then posts its events.
+     * Once the writes are visible, failing to store them doesn't fail the
+     * commit: they stay pending and are stored again later, as in
+     * write-behind mode.
+     *
+     * @throws IllegalStateException if the transaction was already ended, or
+     * belongs to another thread
+     */
+    public void commit() {
+        commit(mWrites, NO_PREFIXES);
+    }
+
+    /**
+     * Commits this transaction in place of all the state stored under the
+     * given prefixes, which is deleted in the same batch, before the writes
+     * of the transaction. As with {@link #commit()}, the commit doesn't fail
+     * once the new state is visible.
+     *
+     * @param prefixes the key prefixes
+     * @throws IllegalStateException if the transaction was already ended, or
+     * belongs to another thread
+     */
+    void commitReplacing(String... prefixes) {
+        checkOpen();
+        List<String> keys = LUKeyValueStorage.getKeys(prefixes);
+        LinkedHashMap<String, String> writes = new LinkedHashMap<String, String>(
+                (keys.size() + mWrites.size()) * 4 / 3 + 1);
+        for (String key : keys) {
+            writes.put(key, null);
+        }
+        writes.putAll(mWrites);
+
+        // the mapped state has values no key lists, they're cleared along with the commit
+        commit(writes, prefixes);
+    }
+
+    /**
+     * Adds the writes and events of the given transaction, which ended
+     * without being committed (on another thread), after those of this one.
+     *
+     * @param other the ended transaction
+     */
+    void include(StateTransaction other) {
+        for (Map.Entry<String, String> write : other.mWrites.entrySet()) {
+            mCounts.remove(write.getKey());
+            mWrites.put(write.getKey(), write.getValue());
+        }
+        for (Map.Entry<String, Integer> count : other.mCounts.entrySet()) {
+            String key = count.getKey();
+            if (mWrites.containsKey(key)) {
+                mWrites.put(key, NumberCodec.encode(applyCount(parseCount(mWrites.get(key)), count.getValue())));
+            } else {
+                addCount(key, count.getValue());
+            }
+        }
+        mEvents.addAll(other.mEvents);
+    }
+
+    /**
+     * Ends this transaction, dropping its writes and events unless it was
+     * committed. Does nothing if it already ended.
+     */
+    public void end() {
+        if (mEnded) {
+            return;
+        }
+        checkOpen();
+        CURRENT.remove();
+        mEnded = true;
+    }
+
+    /**
+     * Posts the given event, or holds it back until the calling thread's
+     * open transaction is committed.
+     *
+     * @param event the event to post
+     */
+    static void post(Object event) {
+        StateTransaction transaction = CURRENT.get();
+        if (transaction != null) {
+            transaction.mEvents.add(event);
+        } else {
+            BusProvider.getInstance().post(event);
+        }
+    }
+
+    /**
+     * Retrieves the calling thread's open transaction.
+     *
+     * @return the transaction, or <code>null</code> if there's none
+     */
+    static StateTransaction current() {
+        return CURRENT.get();
+    }
+
+    boolean hasWrite(String key) {
+        return mWrites.containsKey(key);
+    }
+
+    String getWrite(String key) {
+        return mWrites.get(key);
+    }
+
+    void write(String key, String value) {
+        mCounts.remove(key);
+        mWrites.put(key, value);
+    }
+
+    /**
+     * Records a counter update in the calling thread's open transaction,
+     * unless the transaction set the counter outright, in which case the
+     * caller writes the new value as usual.
+     *
+     * @param key the counter's key
+     * @param delta the change to the counter
+     * @return <code>true</code> if the update was recorded,
+     * <code>false</code> if there's no transaction or it set the counter
+     */
+    static boolean count(String key, int delta) {
+        StateTransaction transaction = CURRENT.get();
+        if (transaction == null || transaction.mWrites.containsKey(key)) {
+            return false;
+        }
+        transaction.addCount(key, delta);
+        return true;
+    }
+
+    /**
+     * Retrieves the change to the given counter recorded by the calling
+     * thread's open transaction, to be added to the stored value.
+     *
+     * @param key the counter's key
+     * @return the recorded change, 0 if there's none
+     */
+    static int pendingCount(String key) {
+        StateTransaction transaction = CURRENT.get();
+        if (transaction == null) {
+            return 0;
+        }
+        Integer delta = transaction.mCounts.get(key);
+        return delta != null ? delta : 0;
+    }
+
+    /**
+     * Adds a recorded change to a counter, without going below 0.
+     */
+    static long applyCount(long value, int delta) {
+        return Math.max(value + delta, 0);
+    }
+
+    static long parseCount(String val) {
+        return TextUtils.isEmpty(val) ? 0 : NumberCodec.decodeLong(val);
+    }
+
+    private void addCount(String key, int delta) {
+        Integer total = mCounts.get(key);
+        mCounts.put(key, total != null ? total + delta : delta);
+    }
+
+    private StateTransaction() {
+    }
+
+    private void commit(LinkedHashMap<String, String> writes, String[] clearedPrefixes) {
+        checkOpen();
+        CURRENT.remove();
+        mEnded = true;
+
+        if (!writes.isEmpty() || !mCounts.isEmpty() || clearedPrefixes.length > 0) {
+            StateColumn.commit(writes, mCounts, clearedPrefixes);
+            try {
+                LUKeyValueStorage.storePublished();
+            } catch (RuntimeException e) {
+                // the writes are visible, and pending again until they're stored
+                SoomlaUtils.LogError(TAG, "Couldn't store the committed state, will retry: " + e.getMessage());
+            }
+        }
+
+        for (Object event : mEvents) {
+            BusProvider.getInstance().post(event);
+        }
+    }
+
+    private void checkOpen() {
+        if (mEnded || CURRENT.get() != this) {
+            throw new IllegalStateException("The transaction isn't open on this thread");
+        }
+    }
+
+
+    /** Private Members **/
+
+    // key to value, or to null for a delete
+    private final LinkedHashMap<String, String> mWrites = new LinkedHashMap<String, String>();
+    // key of a counter to the change to make to it, for counters not written outright
+    private final LinkedHashMap<String, Integer> mCounts = new LinkedHashMap<String, Integer>();
+    private final List<Object> mEvents = new ArrayList<Object>();
+    private boolean mEnded = false;
+
+    private static final String TAG = "SOOMLA StateTransaction";
+
+    private static final String[] NO_PREFIXES = new String[0];
+
+    private static final ThreadLocal<StateTransaction> CURRENT = new ThreadLocal<StateTransaction>();
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import android.text.TextUtils;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.levelup.LevelUp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which model items had their state changed, with a version per item
+ * taken from one counter that only goes up, so the items changed since a
+ * given version (a watermark handed out by an earlier export) can be
+ * listed without going through the whole model.
+ *
+ * Every state write through <code>LUKeyValueStorage</code> (and the mapped
+ * state) marks its item. The versions are kept in memory, in the order
+ * they were given out, and stored under <code>soomla.levelup.versions</code>
+ * when the app goes to the background and on every export, as:
+ *
+ * <pre>
+ * floor next
+ * key \t version   (one line per changed key, oldest first)
+ * </pre>
+ *
+ * Versions below the floor aren't known any more, and asking for changes
+ * since one of them gets everything. That's the case after state was
+ * cleared, for versions older than the last one asked for, and after the
+ * app died with versions that weren't stored: a marker key is set on the
+ * first change after storing them, and finding it on start means they
+ * were lost. The marker is set and deleted off the calling thread, as
+ * <code>LUKeyValueStorage.setValueInBackground()</code> does it.
+ *
+ * An item is marked once its write is visible to other threads, so an
+ * export that runs in between lists it the next time rather than never.
+ */
+class StateVersions {
+
+    /**
+     * The items changed since a given version.
+     */
+    static class Changes {
+
+        Changes(List<String> itemIds, long version) {
+            this.itemIds = itemIds;
+            this.version = version;
+        }
+
+        /**
+         * The changed items, oldest change first, or <code>null</code> if
+         * the changes since the given version aren't known, and all items
+         * must be taken as changed.
+         */
+        final List<String> itemIds;
+
+        /**
+         * The version to ask for changes since next time.
+         */
+        final long version;
+    }
+
+    /**
+     * Reads the stored versions. Called when LevelUp is first initialized.
+     */
+    static synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        StateStorage storage = LUKeyValueStorage.getStorage();
+        mVersions.clear();
+        mLogLength = 0;
+        mFloor = 1;
+        mNext = 1;
+
+        String stored = storage.getValue(DB_VERSIONS_KEY);
+        if (!TextUtils.isEmpty(stored)) {
+            try {
+                String[] lines = stored.split(LINE_SEPARATOR);
+                String[] header = lines[0].split(" ");
+                mFloor = Long.parseLong(header[0]);
+                mNext = Long.parseLong(header[1]);
+                for (int i = 1; i < lines.length; i++) {
+                    int tab = lines[i].lastIndexOf(FIELD_SEPARATOR);
+                    String key = lines[i].substring(0, tab);
+                    long version = Long.parseLong(lines[i].substring(tab + 1));
+                    mVersions.put(key, version);
+                    log(key, version);
+                }
+            } catch (RuntimeException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the state versions, dropping them: " + e.getMessage());
+                mVersions.clear();
+                mLogLength = 0;
+                mFloor = mNext;
+            }
+        }
+
+        mOpen = storage.getValue(DB_VERSIONS_OPEN_KEY) != null;
+        if (mOpen) {
+            // changed items weren't stored, and their versions may be handed out again
+            SoomlaUtils.LogDebug(TAG, "State versions weren't stored, the next export is a full one");
+            forget();
+        }
+    }
+
+    /**
+     * Marks the item the given key belongs to as changed, if it's a state
+     * key. Versions are kept by key rather than by item, since keys come
+     * from <code>ItemKeys</code>, and their hash codes are already known.
+     *
+     * @param key a storage key
+     */
+    static void touch(String key) {
+        if (!isStateKey(key)) {
+            return;
+        }
+        boolean opened;
+        synchronized (StateVersions.class) {
+            opened = open();
+            long version = mNext++;
+            mVersions.put(key, version);
+            log(key, version);
+            if (mLogLength > 2 * mVersions.size() + MIN_LOG_LENGTH) {
+                compact();
+            }
+        }
+        if (opened) {
+            setOpenMarker();
+        }
+    }
+
+    /**
+     * Forgets all versions, after all state was cleared.
+     */
+    static void reset() {
+        boolean opened;
+        synchronized (StateVersions.class) {
+            opened = open();
+            forget();
+        }
+        if (opened) {
+            setOpenMarker();
+        }
+    }
+
+    /**
+     * Lists the items changed since the given version, and stores the
+     * versions, so the version handed out can be asked for after a restart.
+     * Versions before the given one are forgotten, assuming it's never asked
+     * for changes since an earlier version again.
+     *
+     * @param since a version handed out by an earlier call, or 0
+     * @return the changes
+     */
+    static synchronized Changes getChanges(long since) {
+        Changes changes;
+        if (since < mFloor || since > mNext) {
+            changes = new Changes(null, mNext);
+        } else {
+            Set<String> itemIds = new LinkedHashSet<String>();
+            int start = Arrays.binarySearch(mLogVersions, 0, mLogLength, since);
+            for (int i = start >= 0 ? start : -start - 1; i < mLogLength; i++) {
+                // only the last change of a key counts
+                String itemId = isLatest(i) ? getItemId(mLogKeys[i]) : null;
+                if (itemId != null) {
+                    itemIds.add(itemId);
+                }
+            }
+            changes = new Changes(new ArrayList<String>(itemIds), mNext);
+
+            // dropped when they're stored
+            mFloor = Math.max(mFloor, since);
+        }
+
+        save();
+        return changes;
+    }
+
+    /**
+     * Stores the versions, if they changed since they were last stored.
+     * Called when the app goes to the background.
+     */
+    static synchronized void store() {
+        if (mOpen) {
+            save();
+        }
+    }
+
+    private static void forget() {
+        mVersions.clear();
+        mLogLength = 0;
+        mNext++;
+        mFloor = mNext;
+    }
+
+    /**
+     * Marks the versions as changed since they were stored.
+     *
+     * @return <code>true</code> if they weren't, and the marker key must be
+     * set
+     */
+    private static boolean open() {
+        if (mOpen) {
+            return false;
+        }
+        mOpen = true;
+        return true;
+    }
+
+    /**
+     * Sets the marker key, off the calling thread and outside the lock, since
+     * it's set on the first state write after every save. A marker left over
+     * by a save that raced with it only makes the next export a full one.
+     */
+    private static void setOpenMarker() {
+        LUKeyValueStorage.setValueInBackground(DB_VERSIONS_OPEN_KEY, "1");
+    }
+
+    private static void save() {
+        compact();
+        StringBuilder stored = new StringBuilder();
+        stored.append(mFloor).append(' ').append(mNext);
+        for (int i = 0; i < mLogLength; i++) {
+            stored.append(LINE_SEPARATOR).append(mLogKeys[i]).append(FIELD_SEPARATOR).append(mLogVersions[i]);
+        }
+
+        StateStorage storage = LUKeyValueStorage.getStorage();
+        storage.setValue(DB_VERSIONS_KEY, stored.toString());
+        // the same way it's set, so it's never deleted before it's set
+        LUKeyValueStorage.setValueInBackground(DB_VERSIONS_OPEN_KEY, null);
+        mOpen = false;
+    }
+
+    private static void log(String key, long version) {
+        if (mLogLength == mLogVersions.length) {
+            int capacity = Math.max(INITIAL_LOG_CAPACITY, mLogLength * 2);
+            mLogKeys = Arrays.copyOf(mLogKeys, capacity);
+            mLogVersions = Arrays.copyOf(mLogVersions, capacity);
+        }
+        mLogKeys[mLogLength] = key;
+        mLogVersions[mLogLength] = version;
+        mLogLength++;
+    }
+
+    private static boolean isStateKey(String key) {
+        for (String prefix : CATEGORY_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the id of the item the given state key belongs to.
+     *
+     * @return the item's id, or <code>null</code> if the key isn't a state key
+     */
+    private static String getItemId(String key) {
+        for (String prefix : CATEGORY_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                int dot = key.lastIndexOf('.');
+                return dot > prefix.length() ? key.substring(prefix.length(), dot) : null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLatest(int position) {
+        Long version = mVersions.get(mLogKeys[position]);
+        return version != null && version == mLogVersions[position];
+    }
+
+    /**
+     * Drops the changes that were overwritten by later ones, or are older
+     * than the floor.
+     */
+    private static void compact() {
+        int length = 0;
+        for (int i = 0; i < mLogLength; i++) {
+            String key = mLogKeys[i];
+            long version = mLogVersions[i];
+            if (!isLatest(i)) {
+                continue;
+            }
+            if (version < mFloor) {
+                mVersions.remove(key);
+                continue;
+            }
+            mLogKeys[length] = key;
+            mLogVersions[length] = version;
+            length++;
+        }
+        Arrays.fill(mLogKeys, length, mLogLength, null);
+        mLogLength = length;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA StateVersions";
+
+    private static final String DB_VERSIONS_KEY = LevelUp.DB_KEY_PREFIX + "versions";
+    private static final String DB_VERSIONS_OPEN_KEY = LevelUp.DB_KEY_PREFIX + "versions.open";
+
+    private static final String[] CATEGORY_PREFIXES = {
+            GateStorage.DB_GATE_KEY_PREFIX, WorldStorage.DB_WORLD_KEY_PREFIX, LevelStorage.DB_LEVEL_KEY_PREFIX,
+            MissionStorage.DB_MISSION_KEY_PREFIX, ScoreStorage.DB_SCORE_KEY_PREFIX};
+
+    private static final String LINE_SEPARATOR = "\n";
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private static final int INITIAL_LOG_CAPACITY = 64;
+    private static final int MIN_LOG_LENGTH = 64;
+
+    // state key to the version of its last change
+    private static final Map<String, Long> mVersions = new HashMap<String, Long>();
+
+    // the changes, in the order they were made
+    private static String[] mLogKeys = new String[0];
+    private static long[] mLogVersions = new long[0];
+    private static int mLogLength = 0;
+
+    private static long mFloor = 1;
+    private static long mNext = 1;
+    private static boolean mOpen = false;
+    private static boolean mLoaded = false;
+}
@@ -20,21 +20,12 @@ import android.text.TextUtils;
 
 import com.soomla.BusProvider;
 import com.soomla.Soomla;
-import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.levelup.LevelUp;
 import com.soomla.levelup.events.LastCompletedInnerWorldChanged;
 import com.soomla.levelup.events.LevelUpInitializedEvent;
 import com.soomla.levelup.events.WorldAssignedRewardEvent;
 import com.soomla.levelup.events.WorldCompletedEvent;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-
 public class WorldStorage {
 
     private static String keyWorlds(String worldId, String postfix) {
@@ -53,7 +44,34 @@ public class WorldStorage {
         return keyWorlds(worldId, "lastCompletedInnerWorld");
     }
 
+    private static String keyWorldCompleted(int worldHandle) {
+        return KEYS.get(worldHandle, 0);
+    }
+
+    private static String keyReward(int worldHandle) {
+        return KEYS.get(worldHandle, 1);
+    }
+
+    private static String keyLastCompletedInnerWorld(int worldHandle) {
+        return KEYS.get(worldHandle, 2);
+    }
+
+    /**
+     * Retrieves all the keys the state of the given world may be stored under.
+     */
+    static String[] stateKeys(String worldId) {
+        return new String[] {
+                keyWorldCompleted(worldId),
+                keyReward(worldId),
+                keyLastCompletedInnerWorld(worldId)
+        };
+    }
+
     public static void initLevelUp() {
+        // The bridge saves the model before initializing, make sure it's re-read
+        ModelCache.invalidate();
+        LUKeyValueStorage.init();
+
         BusProvider.getInstance().post(new LevelUpInitializedEvent());
     }
 
@@ -62,23 +80,39 @@ public class WorldStorage {
     }
 
     public static void setCompleted(String worldId, boolean completed, boolean notify) {
+        setCompleted(worldId, keyWorldCompleted(worldId), completed, notify);
+    }
 
-        String key = keyWorldCompleted(worldId);
+    public static void setCompleted(int worldHandle, boolean completed) {
+        setCompleted(worldHandle, completed, true);
+    }
+
+    public static void setCompleted(int worldHandle, boolean completed, boolean notify) {
+        setCompleted(KEYS.getItemId(worldHandle), keyWorldCompleted(worldHandle), completed, notify);
+    }
 
+    private static void setCompleted(String worldId, String key, boolean completed, boolean notify) {
         if (completed) {
-            KeyValueStorage.setValue(key, "yes");
+            LUKeyValueStorage.setValue(key, "yes");
 
             if (notify) {
-                BusProvider.getInstance().post(new WorldCompletedEvent(worldId));
+                StateTransaction.post(new WorldCompletedEvent(worldId));
             }
         } else {
-            KeyValueStorage.deleteKeyValue(key);
+            LUKeyValueStorage.deleteKeyValue(key);
         }
     }
 
     public static boolean isCompleted(String worldId) {
-        String key = keyWorldCompleted(worldId);
-        String val = KeyValueStorage.getValue(key);
+        return isCompletedForKey(keyWorldCompleted(worldId));
+    }
+
+    public static boolean isCompleted(int worldHandle) {
+        return isCompletedForKey(keyWorldCompleted(worldHandle));
+    }
+
+    private static boolean isCompletedForKey(String key) {
+        String val = LUKeyValueStorage.getValue(key);
         return !TextUtils.isEmpty(val);
     }
 
@@ -92,23 +126,38 @@ public class WorldStorage {
     }
 
     public static void setReward(String worldId, String rewardId, boolean notify) {
+        setReward(worldId, keyReward(worldId), rewardId, notify);
+    }
 
-        String key = keyReward(worldId);
+    public static void setReward(int worldHandle, String rewardId) {
+        setReward(worldHandle, rewardId, true);
+    }
+
+    public static void setReward(int worldHandle, String rewardId, boolean notify) {
+        setReward(KEYS.getItemId(worldHandle), keyReward(worldHandle), rewardId, notify);
+    }
+
+    private static void setReward(String worldId, String key, String rewardId, boolean notify) {
         if (!TextUtils.isEmpty(rewardId)) {
-            KeyValueStorage.setValue(key, rewardId);
+            LUKeyValueStorage.setValue(key, rewardId);
         } else {
-            KeyValueStorage.deleteKeyValue(key);
+            LUKeyValueStorage.deleteKeyValue(key);
         }
 
         if (notify) {
             // Notify world was assigned a reward
-            BusProvider.getInstance().post(new WorldAssignedRewardEvent(worldId));
+            StateTransaction.post(new WorldAssignedRewardEvent(worldId));
         }
     }
 
     public static String getAssignedReward(String worldId) {
         String key = keyReward(worldId);
-        return KeyValueStorage.getValue(key);
+        return LUKeyValueStorage.getValue(key);
+    }
+
+    public static String getAssignedReward(int worldHandle) {
+        String key = keyReward(worldHandle);
+        return LUKeyValueStorage.getValue(key);
     }
 
     /**
@@ -120,45 +169,67 @@ public class WorldStorage {
     }
 
     public static void setLastCompletedInnerWorld(String worldId, String innerWorldId, boolean notify) {
+        setLastCompletedInnerWorld(worldId, keyLastCompletedInnerWorld(worldId), innerWorldId, notify);
+    }
 
-        String key = keyLastCompletedInnerWorld(worldId);
+    public static void setLastCompletedInnerWorld(int worldHandle, String innerWorldId) {
+        setLastCompletedInnerWorld(worldHandle, innerWorldId, true);
+    }
+
+    public static void setLastCompletedInnerWorld(int worldHandle, String innerWorldId, boolean notify) {
+        setLastCompletedInnerWorld(KEYS.getItemId(worldHandle), keyLastCompletedInnerWorld(worldHandle),
+                innerWorldId, notify);
+    }
+
+    private static void setLastCompletedInnerWorld(String worldId, String key, String innerWorldId, boolean notify) {
         if (!TextUtils.isEmpty(innerWorldId)) {
-            KeyValueStorage.setValue(key, innerWorldId);
+            LUKeyValueStorage.setValue(key, innerWorldId);
         } else {
-            KeyValueStorage.deleteKeyValue(key);
+            LUKeyValueStorage.deleteKeyValue(key);
         }
 
         if (notify) {
             // Notify world had inner level complete
-            BusProvider.getInstance().post(new LastCompletedInnerWorldChanged(worldId, innerWorldId));
+            StateTransaction.post(new LastCompletedInnerWorldChanged(worldId, innerWorldId));
         }
     }
 
     public static String getLastCompletedInnerWorld(String worldId) {
         String key = keyLastCompletedInnerWorld(worldId);
-        return KeyValueStorage.getValue(key);
+        return LUKeyValueStorage.getValue(key);
+    }
+
+    public static String getLastCompletedInnerWorld(int worldHandle) {
+        String key = keyLastCompletedInnerWorld(worldHandle);
+        return LUKeyValueStorage.getValue(key);
     }
 
+    /**
+     * Checks if the given world is a level.
+     *
+     * @param worldId the id of the world to check
+     * @return <code>true</code> if the world is a level, <code>false</code>
+     * otherwise or if there is no model
+     */
     public static boolean isLevel(String worldId) {
-        JSONObject model = LevelUp.getLevelUpModel();
-        if (model != null) {
-            HashMap<String, JSONObject> worlds = LevelUp.getWorlds(model);
-            JSONObject world = worlds.get(worldId);
-            if (world != null) {
-                try {
-                    if (world.getString("itemId").equals(worldId)) {
-                        return (world.getString("className").equals("Level"));
-                    }
-                }
-                catch (JSONException ex) {
-                    SoomlaUtils.LogDebug(TAG, "Model JSON is malformed " + ex.getMessage());
-                }
-            }
-        }
+        ModelIndex index = ModelCache.getIndex();
+        return index != null && index.isLevel(worldId);
+    }
 
-        return false;
+    /**
+     * Checks if the world with the given handle is a level.
+     *
+     * @param worldHandle the handle of the world in the model index
+     * @return <code>true</code> if the world is a level, <code>false</code>
+     * otherwise or if there is no model
+     */
+    public static boolean isLevel(int worldHandle) {
+        ModelIndex index = ModelCache.getIndex();
+        return index != null && index.getItemType(worldHandle) == ModelIndex.ItemType.LEVEL;
     }
 
     public static final String DB_WORLD_KEY_PREFIX = LevelUp.DB_KEY_PREFIX + "worlds.";
+    static final ItemKeys KEYS = new ItemKeys(DB_WORLD_KEY_PREFIX,
+            "completed", "assignedReward", "lastCompletedInnerWorld");
     private static final String TAG = "SOOMLA WorldStorage";
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.levelup.data;
+
+import com.soomla.levelup.LevelUpConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hammers the LevelUp counters from several threads at once and checks that
+ * not a single update is lost, first with the values kept in
+ * <code>StateColumn</code>s and then in a <code>MappedState</code> file.
+ *
+ * Every thread goes through all levels in turn, starting at a different one,
+ * so threads keep racing on the same items (and, in the mapped state, on
+ * giving an item its slot). Some of the updates are made in transactions.
+ *
+ * Runs on a plain JVM, over a <code>MemoryStateStorage</code>, see
+ * <code>run_stress_test</code>. Exits with status 1 if any count is off.
+ */
+public class StateCountsStressTest {
+
+    public static void main(String[] args) throws Exception {
+        LevelUpConfig.lazyModelLoading = true;
+        LevelUpConfig.stateStorage = new MemoryStateStorage();
+        LevelUpConfig.stateStorage.setValue(ModelCache.DB_MODEL_KEY, buildModel());
+        LUKeyValueStorage.init();
+
+        boolean ok = run("columns");
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "levelup-stress-" + System.nanoTime());
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        MappedState mapped = MappedState.open(new File(dir, "state.bin"));
+        StateColumn.setMapped(mapped);
+        try {
+            ok &= run("mapped state");
+        } finally {
+            StateColumn.setMapped(null);
+            mapped.delete();
+            dir.delete();
+        }
+
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean run(String name) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        update((first + i) % LEVELS, i % 4 == 0);
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int expected = THREADS * (ITERATIONS / LEVELS);
+        int wrong = 0;
+        for (int level = 0; level < LEVELS; level++) {
+            wrong += check(LEVEL_ID + level + " started", LevelStorage.getTimesStarted(LEVEL_ID + level), expected);
+            wrong += check(LEVEL_ID + level + " played", LevelStorage.getTimesPlayed(LEVEL_ID + level), expected);
+            wrong += check(MISSION_ID + level + " completed", MissionStorage.getTimesCompleted(MISSION_ID + level), expected);
+        }
+        System.out.println(name + ": " + (wrong == 0 ? "ok" : wrong + " counts off") +
+                " (" + (System.currentTimeMillis() - start) + " ms)");
+        return wrong == 0;
+    }
+
+    private static void update(int level, boolean inTransaction) {
+        String levelId = LEVEL_ID + level;
+        StateTransaction transaction = inTransaction ? StateTransaction.begin() : null;
+        try {
+            LevelStorage.incTimesStarted(levelId);
+            LevelStorage.incTimesPlayed(levelId);
+            // undone right away, leaving the count as it was
+            LevelStorage.incTimesPlayed(levelId);
+            LevelStorage.decTimesPlayed(levelId);
+            MissionStorage.setCompleted(MISSION_ID + level, true, false);
+            if (transaction != null) {
+                transaction.commit();
+            }
+        } finally {
+            if (transaction != null) {
+                transaction.end();
+            }
+        }
+    }
+
+    private static int check(String what, int count, int expected) {
+        if (count == expected) {
+            return 0;
+        }
+        System.out.println(what + ": " + count + ", expected " + expected);
+        return 1;
+    }
+
+    private static String buildModel() {
+        StringBuilder model = new StringBuilder("{\"mainWorld\":{\"itemId\":\"main\",\"className\":\"World\",\"worlds\":[");
+        for (int level = 0; level < LEVELS; level++) {
+            if (level > 0) {
+                model.append(',');
+            }
+            model.append("{\"itemId\":\"").append(LEVEL_ID).append(level).append("\",\"className\":\"Level\",")
+                    .append("\"missions\":[{\"itemId\":\"").append(MISSION_ID).append(level)
+                    .append("\",\"className\":\"Record\"}]}");
+        }
+        return model.append("]}}").toString();
+    }
+
+    private static final int THREADS = 8;
+    private static final int LEVELS = 64;
+    // a multiple of LEVELS, so each thread updates every level as often
+    private static final int ITERATIONS = LEVELS * 250;
+
+    private static final String LEVEL_ID = "stress_level_";
+    private static final String MISSION_ID = "stress_mission_";
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+/**
+ * Stand-in for the Android class, so LevelUp's data classes run on a plain
+ * JVM.
+ */
+public final class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+
+    public static String join(CharSequence delimiter, Iterable tokens) {
+        StringBuilder joined = new StringBuilder();
+        for (Object token : tokens) {
+            if (joined.length() > 0) {
+                joined.append(delimiter);
+            }
+            joined.append(token);
+        }
+        return joined.toString();
+    }
+}
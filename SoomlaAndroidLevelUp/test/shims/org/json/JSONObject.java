@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the class Android bundles, so LevelUp's data classes run on a
+ * plain JVM. It only writes the flat string maps the state journal is made
+ * of, reading one back fails.
+ */
+public class JSONObject {
+
+    public static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "null";
+        }
+    };
+
+    public JSONObject() {
+    }
+
+    public JSONObject(String json) throws JSONException {
+        throw new JSONException("Parsing isn't supported here");
+    }
+
+    public JSONObject put(String name, Object value) throws JSONException {
+        if (name == null) {
+            throw new JSONException("Names must be non-null");
+        }
+        mValues.put(name, value);
+        return this;
+    }
+
+    public Iterator<String> keys() {
+        return mValues.keySet().iterator();
+    }
+
+    public boolean isNull(String name) {
+        Object value = mValues.get(name);
+        return value == null || value == NULL;
+    }
+
+    public String getString(String name) throws JSONException {
+        Object value = mValues.get(name);
+        if (value == null) {
+            throw new JSONException("No value for " + name);
+        }
+        return value.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            quote(json, entry.getKey());
+            json.append(':');
+            if (entry.getValue() == NULL) {
+                json.append("null");
+            } else {
+                quote(json, entry.getValue().toString());
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private final Map<String, Object> mValues = new LinkedHashMap<String, Object>();
+}